@@ -0,0 +1,60 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.cmds;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks for turning post fragments into HTML, on fragments from a
+ * typical post's size up to the size of a large export. Each op handles
+ * the whole fragment, so the larger sizes report far fewer ops.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FragToHtmlBenchmark {
+	@Param({ "1024", "65536", "1048576", "52428800" })
+	public int size;
+
+	private String body;
+	private Writer dest;
+
+	/**
+	 * Make a fragment of about the given size: paragraphs of a few
+	 * lines each, separated by blank lines.
+	 */
+	@Setup
+	public void setup() {
+		String line = "The quick brown fox jumps over the lazy dog, then does it again.\n";
+		StringBuilder buf = new StringBuilder(size + line.length());
+		int lines = 0;
+		while (buf.length() < size) {
+			buf.append(line);
+			if (++lines % 5 == 0)
+				buf.append('\n');
+		}
+		buf.setLength(size);
+		body = buf.toString();
+		dest = Writer.nullWriter();
+	}
+
+	@Benchmark
+	public void emitBody() throws IOException {
+		FragToHtml.emitBody(dest, new StringReader(body));
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.cmds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for printing post headers, as GetPost --full and SyncPosts
+ * do for every post.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GetPostBenchmark {
+	private Map<String, Object> post;
+	private ByteArrayOutputStream bytes;
+	private PrintStream dest;
+
+	@Setup
+	public void setup() {
+		Date now = new Date(1488603967000L);
+		post = new HashMap<String, Object>();
+		for (String field : GetPost.ALL_FIELDS)
+			post.put(field, "value of " + field);
+		post.put("post_id", "1234");
+		post.put("post_date", now);
+		post.put("post_date_gmt", now);
+		post.put("post_modified", now);
+		post.put("post_modified_gmt", now);
+		post.put("post_password", "");
+		post.put("sticky", Boolean.FALSE);
+		Object[] terms = new Object[4];
+		for (int i = 0; i < terms.length; i++) {
+			Map<String, Object> term = new HashMap<String, Object>();
+			term.put("taxonomy", i == 0 ? "category" : "post_tag");
+			term.put("name", "term" + i);
+			terms[i] = term;
+		}
+		post.put("terms", terms);
+		bytes = new ByteArrayOutputStream(4096);
+		dest = new PrintStream(bytes);
+	}
+
+	@Benchmark
+	public void headerName(Blackhole bh) {
+		for (String field : GetPost.ALL_FIELDS)
+			bh.consume(GetPost.headerName(field));
+	}
+
+	@Benchmark
+	public int printHeaders() {
+		bytes.reset();
+		GetPost.printHeaders(dest, post);
+		dest.flush();
+		return bytes.size();
+	}
+}
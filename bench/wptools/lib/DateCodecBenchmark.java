@@ -0,0 +1,84 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks for DateCodec, which formats several dates for every post
+ * printed or exported, against the String.format and SimpleDateFormat
+ * code it replaced (copied here so the two can be compared).
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DateCodecBenchmark {
+	@Param({ "2017-03-04T05:06:07", "2017-03-04T05:06:07Z", "2017-03-04" })
+	public String dateString;
+
+	private Date date;
+	private char[] buf;
+	private SimpleDateFormat[] formats;
+
+	@Setup
+	public void setup() {
+		date = new Date(1488603967000L);
+		buf = new char[DateCodec.MAX_LENGTH];
+		formats = new SimpleDateFormat[] {
+			new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss"),
+			new SimpleDateFormat("yyyy-MM-dd'T'HH:mm"),
+			new SimpleDateFormat("yyyy-MM-dd")
+		};
+		for (SimpleDateFormat f : formats)
+			f.setLenient(false);
+	}
+
+	@Benchmark
+	public String formatLegacy() {
+		return String.format("%tY-%<tm-%<tdT%<tH:%<tM:%<tS%s", date, DateCodec.UTC);
+	}
+
+	@Benchmark
+	public String format() {
+		return DateCodec.formatUtc(date);
+	}
+
+	@Benchmark
+	public int formatToBuffer() {
+		return DateCodec.format(date, buf, 0);
+	}
+
+	@Benchmark
+	public Date parseLegacy() throws ParseException {
+		String munged = dateString.toUpperCase();
+		if (munged.endsWith(DateCodec.UTC))
+			munged = munged.substring(0, munged.length() - 1);
+		for (SimpleDateFormat fmt : formats) {
+			Date ret = fmt.parse(munged, new ParsePosition(0));
+			if (ret != null)
+				return ret;
+		}
+		throw new ParseException("Unparseable date: " + dateString, 0);
+	}
+
+	@Benchmark
+	public Date parse() throws ParseException {
+		return DateCodec.parseUtc(dateString);
+	}
+}
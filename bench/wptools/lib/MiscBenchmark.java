@@ -0,0 +1,45 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks for the string helpers in Misc, which run once or more per
+ * post listed. The date helpers are covered by DateCodecBenchmark.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MiscBenchmark {
+	private String shortTitle;
+	private String longTitle;
+
+	@Setup
+	public void setup() {
+		shortTitle = "A short title";
+		longTitle = "A considerably longer title, of the sort that needs truncating to fit in a listing";
+	}
+
+	@Benchmark
+	public String truncateShort() {
+		return Misc.truncateString(shortTitle, 40);
+	}
+
+	@Benchmark
+	public String truncateLong() {
+		return Misc.truncateString(longTitle, 40);
+	}
+}
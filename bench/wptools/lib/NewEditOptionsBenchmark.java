@@ -0,0 +1,47 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark for parsing --terms values (and Terms: headers).
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NewEditOptionsBenchmark {
+	@Param({ "1", "10", "100" })
+	public int count;
+
+	private String terms;
+
+	@Setup
+	public void setup() {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				buf.append(", ");
+			buf.append(i % 2 == 0 ? "category.Category" : "post_tag.tag").append(i);
+		}
+		terms = buf.toString();
+	}
+
+	@Benchmark
+	public Object parseTerms() throws ParseException {
+		return NewEditOptions.PARSE_TERMS.parse(terms);
+	}
+}
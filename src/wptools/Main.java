@@ -0,0 +1,102 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Single entry point for all the commands, e.g.
+ *     java -jar wptools.jar GetPost 1234
+ * Only standard library classes are used here, so that nothing but the
+ * command being run gets loaded.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class Main {
+	private static final String MY_NAME = "Main";
+
+	/** The commands, and what each does. */
+	public static final String[][] COMMANDS = {
+		{ "Client", "Run a command via the daemon." },
+		{ "Daemon", "Run commands on behalf of Client." },
+		{ "DeletePost", "Delete posts." },
+		{ "DumpCerts", "Show the certificates a server presents." },
+		{ "EditPost", "Edit existing posts." },
+		{ "ExportPosts", "Export posts as JSON." },
+		{ "FragToHtml", "Turn a post fragment into an HTML document." },
+		{ "GetPost", "Print posts." },
+		{ "ImportPosts", "Create or update many posts at once." },
+		{ "ListAuthors", "List the authors of a blog." },
+		{ "ListBlogs", "List all known blogs." },
+		{ "ListPosts", "List the posts in a blog." },
+		{ "NewPost", "Create a new post." },
+		{ "SearchPosts", "Search posts using a local index." },
+		{ "SyncPosts", "Mirror posts into a local directory." },
+		{ "UploadMedia", "Upload media files." }
+	};
+
+	public static void main(String[] args) {
+		if (args.length == 0 || args[0].equals("-?") || args[0].equals("--help")) {
+			usage();
+			System.exit(args.length == 0 ? 2 : 0);
+		}
+		Method main = getCommand(args[0]);
+		if (main == null) {
+			System.err.println(MY_NAME + ": unknown command: " + args[0]);
+			System.exit(2);
+		}
+		String[] cargs = new String[args.length - 1];
+		System.arraycopy(args, 1, cargs, 0, cargs.length);
+		try {
+			main.invoke(null, (Object) cargs);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		} catch (IllegalAccessException e) {
+			System.err.println(MY_NAME + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Find the main method of a command.
+	 * @param name    Command name, e.g. "GetPost".
+	 * @return        Method, or null if no such command.
+	 */
+	public static Method getCommand(String name) {
+		boolean found = false;
+		for (String[] command : COMMANDS) {
+			if (command[0].equals(name)) {
+				found = true;
+				break;
+			}
+		}
+		if (!found)
+			return null;
+		try {
+			Method ret = Class.forName("wptools.cmds." + name).getMethod("main",
+				String[].class);
+			return Modifier.isStatic(ret.getModifiers()) ? ret : null;
+		} catch (ClassNotFoundException|NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static void usage() {
+		System.err.println("usage: " + MY_NAME + " command [options] [arguments]");
+		System.err.println("Commands (use \"command --help\" for more about each):");
+		for (String[] command : COMMANDS)
+			System.err.format("  %-12s %s%n", command[0], command[1]);
+	}
+}
@@ -0,0 +1,928 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.common.TypeFactory;
+import org.apache.xmlrpc.common.TypeFactoryImpl;
+import org.apache.xmlrpc.parser.XmlRpcRequestParser;
+import org.apache.xmlrpc.serializer.DefaultXMLWriterFactory;
+import org.apache.xmlrpc.serializer.XmlRpcWriter;
+import org.apache.xmlrpc.serializer.XmlWriterFactory;
+import org.apache.xmlrpc.util.SAXParsers;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import wptools.lib.Misc;
+
+/**
+ * A stand-in for a WordPress site's XML-RPC interface, on the loopback
+ * interface, keeping its posts in memory. It implements the calls the
+ * commands make (wp.getPost, wp.getPosts, wp.newPost, wp.editPost,
+ * wp.deletePost, wp.getAuthors, wp.getUsersBlogs, wp.uploadFile and
+ * system.multicall), accepting any user name and password, e.g.
+ *     java -cp wptools.jar wptools.bench.FakeServer --port 8080 --latency 50
+ *
+ * It can be made to behave like a real (and not very capable) host:
+ * each request can take a fixed time plus a random extra, and each call
+ * in it more time still; some requests can fail; and like PHP on a
+ * shared host, only so many requests are worked on at once, with a few
+ * more waiting their turn and the rest turned away with a 503. See
+ * LoadGenerator for the other half of the benchmark.
+ *
+ * It can also answer every call with a fault, noting when each request
+ * arrives. That is enough to exercise a command's start-up path, and to
+ * time it (see StartupBenchmark and Training), without any posts.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class FakeServer {
+	private static final String MY_NAME = "FakeServer";
+
+	// What we say we are.
+	private static final String BLOG_NAME = "Fake Blog";
+	private static final String USER_ID = "1";
+	private static final String BLOG_URL = "https://blog.example.com/";
+
+	// Where seeded post dates start, and how far apart they are.
+	private static final long FIRST_DATE = 1577836800000L;  /* 2020-01-01 */
+	private static final long DATE_STEP = 3600000L;
+
+	// Seeds our random post contents, so every run serves the same posts.
+	private static final long SEED = 1488603967L;
+
+	// Fault codes, as WordPress sends them.
+	private static final int FORBIDDEN = 403;
+	private static final int NOT_FOUND = 404;
+	private static final int NO_METHOD = -32601;
+	private static final int BAD_REQUEST = -32700;
+
+	private static final String[] WORDS = { "lorem", "ipsum", "dolor", "sit",
+		"amet", "consectetur", "adipiscing", "elit", "sed", "do", "eiusmod",
+		"tempor", "incididunt", "ut", "labore", "et", "dolore", "magna",
+		"aliqua", "enim", "ad", "minim", "veniam", "quis", "nostrud" };
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private XmlRpcClientConfigImpl config;
+	private TypeFactory types;
+	private XmlWriterFactory writers;
+
+	// Settings.
+	private volatile long latency;
+	private volatile long jitter;
+	private volatile long callCost;
+	private volatile double errorRate;
+	private volatile boolean multicall;
+	private volatile boolean faulting;
+	private int workers;
+	private int queue;
+	private int postSize;
+
+	// Requests being worked on or waiting to be.
+	private Semaphore working;
+	private AtomicInteger admitted;
+
+	// The blog.
+	private TreeMap<Integer, Map<String, Object>> posts;
+	private int nextId;
+	private int nextMedia;
+
+	// Counters.
+	private AtomicLong requests;
+	private AtomicLong calls;
+	private AtomicLong rejected;
+	private AtomicLong failed;
+
+	// When requests arrived, if noting that (see reset).
+	private volatile BlockingQueue<Long> arrivals;
+
+	/**
+	 * Constructor. The server starts out with no posts, and serving
+	 * requests as fast as it can; use the setters to change that, then
+	 * call start.
+	 */
+	public FakeServer() {
+		config = new XmlRpcClientConfigImpl();
+		config.setEncoding(XmlRpcClientConfigImpl.UTF8_ENCODING);
+		types = new TypeFactoryImpl(new XmlRpcClient());
+		writers = new DefaultXMLWriterFactory();
+		latency = jitter = callCost = 0L;
+		errorRate = 0.0;
+		multicall = true;
+		faulting = false;
+		workers = 8;
+		queue = 16;
+		postSize = 4096;
+		posts = new TreeMap<Integer, Map<String, Object>>();
+		nextId = 1;
+		nextMedia = 1000000;
+		requests = new AtomicLong();
+		calls = new AtomicLong();
+		rejected = new AtomicLong();
+		failed = new AtomicLong();
+	}
+
+	public static void main(String[] args) throws IOException {
+		FakeServer server = new FakeServer();
+		int port = 0;
+		int count = 0;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-?") || args[i].equals("--help")) {
+				System.out.format("usage: %s [-p port] [--posts n] [options]%n", MY_NAME);
+				System.out.println(" -p,--port <arg>          Port to listen on (default: any free one).");
+				System.out.println(" --posts <arg>            Posts to start out with (default: 0).");
+				printOptions(System.out);
+				System.exit(0);
+			}
+			try {
+				int next = server.parseOption(args, i);
+				if (next >= 0) {
+					i = next;
+				} else if ((args[i].equals("-p") || args[i].equals("--port")) && i + 1 < args.length) {
+					port = parseInt(args[i], args[++i], 0);
+				} else if (args[i].equals("--posts") && i + 1 < args.length) {
+					count = parseInt(args[i], args[++i], 0);
+				} else {
+					die("unknown option: " + args[i], 2);
+				}
+			} catch (IllegalArgumentException e) {
+				die(e.getMessage(), 2);
+			}
+		}
+		server.seed(count);
+		server.start(port);
+		System.out.format("%s: serving %d posts at %s%n", MY_NAME, count, server.getUrl());
+	}
+
+	/**
+	 * Print a description of the options parseOption understands.
+	 * @param out     Where to print it.
+	 */
+	public static void printOptions(PrintStream out) {
+		out.println(" --latency <arg>          Milliseconds each request takes (default: 0).");
+		out.println(" --jitter <arg>           Mean random extra milliseconds (default: 0).");
+		out.println(" --call-cost <arg>        Extra milliseconds per call in a request (default: 0).");
+		out.println(" --error-rate <arg>       Fraction of requests failing with HTTP 500 (default: 0).");
+		out.println(" --workers <arg>          Requests worked on at once (default: 8).");
+		out.println(" --queue <arg>            Requests waiting before 503s are sent (default: 16).");
+		out.println(" --post-size <arg>        Bytes of content per seeded post (default: 4096).");
+		out.println(" --no-multicall           Don't support system.multicall.");
+		out.println(" --fault-all              Answer every call with a fault.");
+	}
+
+	/**
+	 * Parse one of our settings from a command line.
+	 * @param args    Arguments.
+	 * @param i       Index of the one to parse.
+	 * @return        Index of the last argument used, or -1 if args[i]
+	 *                isn't one of ours.
+	 * @throws IllegalArgumentException if the setting is invalid
+	 */
+	public int parseOption(String[] args, int i) {
+		String name = args[i];
+		if (name.equals("--no-multicall")) {
+			setMulticall(false);
+			return i;
+		}
+		if (name.equals("--fault-all")) {
+			setFaulting(true);
+			return i;
+		}
+		if (i + 1 >= args.length)
+			return -1;
+		String value = args[i + 1];
+		if (name.equals("--latency"))
+			setLatency(parseDouble(name, value, 0.0, Double.MAX_VALUE));
+		else if (name.equals("--jitter"))
+			setJitter(parseDouble(name, value, 0.0, Double.MAX_VALUE));
+		else if (name.equals("--call-cost"))
+			setCallCost(parseDouble(name, value, 0.0, Double.MAX_VALUE));
+		else if (name.equals("--error-rate"))
+			setErrorRate(parseDouble(name, value, 0.0, 1.0));
+		else if (name.equals("--workers"))
+			setWorkers(parseInt(name, value, 1));
+		else if (name.equals("--queue"))
+			setQueue(parseInt(name, value, 0));
+		else if (name.equals("--post-size"))
+			setPostSize(parseInt(name, value, 0));
+		else
+			return -1;
+		return i + 1;
+	}
+
+	private static int parseInt(String name, String value, int min) {
+		try {
+			int ret = Integer.parseInt(value);
+			if (ret >= min)
+				return ret;
+		} catch (NumberFormatException e) {
+			/* fall through */
+		}
+		throw new IllegalArgumentException("invalid value for " + name + ": " + value);
+	}
+
+	private static double parseDouble(String name, String value, double min, double max) {
+		try {
+			double ret = Double.parseDouble(value);
+			if (ret >= min && ret <= max)
+				return ret;
+		} catch (NumberFormatException e) {
+			/* fall through */
+		}
+		throw new IllegalArgumentException("invalid value for " + name + ": " + value);
+	}
+
+	/**
+	 * Set how long each request takes, before any jitter.
+	 * @param millis  Milliseconds.
+	 */
+	public void setLatency(double millis) {
+		latency = (long) (millis * 1e6);
+	}
+
+	/**
+	 * Set the mean of the random extra time each request takes. The
+	 * extra time is exponentially distributed, so that a few requests
+	 * take much longer than most, as on real servers.
+	 * @param millis  Milliseconds.
+	 */
+	public void setJitter(double millis) {
+		jitter = (long) (millis * 1e6);
+	}
+
+	/**
+	 * Set how long each call in a request takes, on top of the time the
+	 * request itself takes. Each call in a system.multicall batch counts.
+	 * @param millis  Milliseconds.
+	 */
+	public void setCallCost(double millis) {
+		callCost = (long) (millis * 1e6);
+	}
+
+	/**
+	 * Set the fraction of requests that fail with an HTTP 500 status.
+	 * @param rate    Fraction, from 0 to 1.
+	 */
+	public void setErrorRate(double rate) {
+		errorRate = rate;
+	}
+
+	/**
+	 * Set whether system.multicall is supported.
+	 */
+	public void setMulticall(boolean multicall) {
+		this.multicall = multicall;
+	}
+
+	/**
+	 * Set whether every call is answered with a fault, as if the user
+	 * name or password were wrong, instead of being done.
+	 */
+	public void setFaulting(boolean faulting) {
+		this.faulting = faulting;
+	}
+
+	/**
+	 * Set how many requests are worked on at once. Must be called before
+	 * start to have any effect.
+	 */
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * Set how many requests may wait for a worker; any more get a 503.
+	 * Must be called before start to have any effect.
+	 */
+	public void setQueue(int queue) {
+		this.queue = queue;
+	}
+
+	/**
+	 * Set roughly how many bytes of content each post made by seed has.
+	 */
+	public void setPostSize(int postSize) {
+		this.postSize = postSize;
+	}
+
+	/**
+	 * Start serving, on a port of the loopback interface.
+	 * @param port    Port, or 0 for any free one.
+	 */
+	public void start(int port) throws IOException {
+		// Otherwise small responses wait on the client's delayed ACK,
+		// adding tens of milliseconds to calls no real server would.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		working = new Semaphore(workers, true);
+		admitted = new AtomicInteger();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					admit(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, MY_NAME);
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Get the URL to give commands.
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Start noting when requests arrive, forgetting about any that have
+	 * already arrived.
+	 */
+	public void reset() {
+		if (arrivals == null)
+			arrivals = new LinkedBlockingQueue<Long>();
+		else
+			arrivals.clear();
+	}
+
+	/**
+	 * Wait for a request to arrive. Only works after reset has been called.
+	 * @param timeout Milliseconds to wait.
+	 * @return        When (per System.nanoTime) it arrived, or -1 if none
+	 *                arrived in time.
+	 */
+	public long awaitRequest(long timeout) throws InterruptedException {
+		Long ret = arrivals.poll(timeout, TimeUnit.MILLISECONDS);
+		return ret == null ? -1L : ret;
+	}
+
+	/**
+	 * Get how many HTTP requests have arrived.
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Get how many XML-RPC calls have been made, counting each one in a
+	 * system.multicall batch (but not the batch itself).
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+
+	/**
+	 * Get how many requests were turned away because all the workers
+	 * were busy and the queue was full.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Get how many requests were failed on purpose (see setErrorRate).
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Replace all posts with new ones. The posts are always the same for
+	 * the same count and post size, and are numbered from 1.
+	 * @param count   Number of posts.
+	 */
+	public void seed(int count) {
+		Random random = new Random(SEED);
+		synchronized (posts) {
+			posts.clear();
+			for (int i = 1; i <= count; i++) {
+				Date date = new Date(FIRST_DATE + i * DATE_STEP);
+				Map<String, Object> post = newPost(i, date);
+				post.put("post_title", "Post " + i);
+				post.put("post_name", "post-" + i);
+				post.put("post_content", content(random));
+				post.put("terms", new Object[] {
+					term("category", "Category " + (i % 5)),
+					term("post_tag", "tag" + (i % 17)) });
+				posts.put(i, post);
+			}
+			nextId = count + 1;
+		}
+	}
+
+	/**
+	 * Add posts for a benchmark to delete.
+	 * @param count   How many to add.
+	 * @return        Their IDs.
+	 */
+	public String[] addPosts(int count) {
+		String[] ret = new String[count];
+		Date now = new Date();
+		synchronized (posts) {
+			for (int i = 0; i < count; i++) {
+				int id = nextId++;
+				Map<String, Object> post = newPost(id, now);
+				post.put("post_title", "Doomed " + id);
+				posts.put(id, post);
+				ret[i] = Integer.toString(id);
+			}
+		}
+		return ret;
+	}
+
+	private String content(Random random) {
+		StringBuilder ret = new StringBuilder(postSize + 64);
+		while (ret.length() < postSize) {
+			ret.append("<p>");
+			int words = 20 + random.nextInt(60);
+			for (int i = 0; i < words; i++) {
+				if (i > 0)
+					ret.append(' ');
+				ret.append(WORDS[random.nextInt(WORDS.length)]);
+			}
+			ret.append(".</p>\n\n");
+		}
+		return ret.toString();
+	}
+
+	private static Map<String, Object> newPost(int id, Date date) {
+		Map<String, Object> ret = new HashMap<String, Object>();
+		String sid = Integer.toString(id);
+		ret.put("post_id", sid);
+		ret.put("post_title", "");
+		ret.put("post_date", date);
+		ret.put("post_date_gmt", date);
+		ret.put("post_modified", date);
+		ret.put("post_modified_gmt", date);
+		ret.put("post_status", "publish");
+		ret.put("post_type", "post");
+		ret.put("post_format", "standard");
+		ret.put("post_name", "");
+		ret.put("post_author", USER_ID);
+		ret.put("post_password", "");
+		ret.put("post_excerpt", "");
+		ret.put("post_content", "");
+		ret.put("post_parent", "0");
+		ret.put("post_mime_type", "");
+		ret.put("link", BLOG_URL + "?p=" + sid);
+		ret.put("guid", BLOG_URL + "?p=" + sid);
+		ret.put("menu_order", 0);
+		ret.put("comment_status", "open");
+		ret.put("ping_status", "open");
+		ret.put("sticky", Boolean.FALSE);
+		ret.put("terms", new Object[0]);
+		ret.put("custom_fields", new Object[0]);
+		return ret;
+	}
+
+	private static Map<String, Object> term(String taxonomy, String name) {
+		Map<String, Object> ret = new HashMap<String, Object>();
+		ret.put("taxonomy", taxonomy);
+		ret.put("name", name);
+		ret.put("slug", name.toLowerCase().replace(' ', '-'));
+		return ret;
+	}
+
+	/**
+	 * Let a request in, if there is room for it.
+	 */
+	private void admit(HttpExchange exchange) throws IOException {
+		BlockingQueue<Long> noted = arrivals;
+		if (noted != null)
+			noted.add(System.nanoTime());
+		requests.incrementAndGet();
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			respond(exchange, 405, null);
+			return;
+		}
+		if (admitted.incrementAndGet() > workers + queue) {
+			admitted.decrementAndGet();
+			rejected.incrementAndGet();
+			exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+			respond(exchange, 503, null);
+			return;
+		}
+		try {
+			working.acquireUninterruptibly();
+			try {
+				serve(exchange);
+			} finally {
+				working.release();
+			}
+		} finally {
+			admitted.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Serve a request.
+	 */
+	private void serve(HttpExchange exchange) throws IOException {
+		// Read it.
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+			in = new GZIPInputStream(in);
+		XmlRpcRequestParser parser = new XmlRpcRequestParser(config, types);
+		try {
+			XMLReader reader = SAXParsers.newXMLReader();
+			reader.setContentHandler(parser);
+			reader.parse(new InputSource(in));
+		} catch (SAXException|XmlRpcException e) {
+			respondFault(exchange, BAD_REQUEST, "parse error. not well formed");
+			return;
+		}
+		String method = parser.getMethodName();
+		Object[] params = parser.getParams() == null ? new Object[0] : parser.getParams().toArray();
+
+		// Take our time, and maybe fail.
+		boolean batch = method.equals("system.multicall") && multicall;
+		int ncalls = batch && params.length > 0 && params[0] instanceof Object[] ?
+			((Object[]) params[0]).length : 1;
+		long delay = latency + (long) (callCost * (double) ncalls);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (jitter > 0)
+			delay += (long) (-Math.log(1.0 - random.nextDouble()) * jitter);
+		try {
+			TimeUnit.NANOSECONDS.sleep(delay);
+		} catch (InterruptedException e) {
+			return;  /* shutting down */
+		}
+		if (errorRate > 0.0 && random.nextDouble() < errorRate) {
+			failed.incrementAndGet();
+			respond(exchange, 500, null);
+			return;
+		}
+
+		// Do what it asks.
+		if (faulting) {
+			calls.incrementAndGet();
+			respondFault(exchange, FORBIDDEN, "Incorrect username or password.");
+			return;
+		}
+		Object result;
+		if (batch) {
+			result = multicall(params);
+		} else {
+			calls.incrementAndGet();
+			try {
+				result = call(method, params);
+			} catch (XmlRpcException e) {
+				respondFault(exchange, e.code, e.getMessage());
+				return;
+			}
+		}
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try {
+			new XmlRpcWriter(config, writers.getXmlWriter(config, buf), types).write(config, result);
+		} catch (SAXException|XmlRpcException e) {
+			respond(exchange, 500, null);
+			return;
+		}
+		respond(exchange, 200, buf.toByteArray());
+	}
+
+	private Object[] multicall(Object[] params) {
+		Object[] batch = params.length > 0 && params[0] instanceof Object[] ?
+			(Object[]) params[0] : new Object[0];
+		Object[] ret = new Object[batch.length];
+		for (int i = 0; i < batch.length; i++) {
+			calls.incrementAndGet();
+			try {
+				if (!(batch[i] instanceof Map))
+					throw new XmlRpcException(BAD_REQUEST, "Invalid multicall entry.");
+				Map<String, Object> entry = Misc.asStruct(batch[i]);
+				Object method = entry.get("methodName");
+				Object args = entry.get("params");
+				if (!(method instanceof String) || method.equals("system.multicall"))
+					throw new XmlRpcException(BAD_REQUEST, "Invalid multicall entry.");
+				ret[i] = new Object[] { call((String) method,
+					args instanceof Object[] ? (Object[]) args : new Object[0]) };
+			} catch (XmlRpcException e) {
+				Map<String, Object> fault = new HashMap<String, Object>();
+				fault.put("faultCode", e.code);
+				fault.put("faultString", e.getMessage());
+				ret[i] = fault;
+			}
+		}
+		return ret;
+	}
+
+	private void respondFault(HttpExchange exchange, int code, String message) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try {
+			new XmlRpcWriter(config, writers.getXmlWriter(config, buf), types).write(config, code, message);
+		} catch (SAXException|XmlRpcException e) {
+			respond(exchange, 500, null);
+			return;
+		}
+		respond(exchange, 200, buf.toByteArray());
+	}
+
+	/**
+	 * Send a response, compressed if the client can take that (as most
+	 * real servers would).
+	 */
+	private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		if (body == null) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (accept != null && accept.toLowerCase().contains("gzip")) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+			try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+				gzip.write(body);
+			}
+			body = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Make a call.
+	 * @param method  Method name.
+	 * @param params  Parameters.
+	 * @return        Result.
+	 */
+	private Object call(String method, Object[] params) throws XmlRpcException {
+		if (method.equals("wp.getPost"))
+			return getPost(params);
+		if (method.equals("wp.getPosts"))
+			return getPosts(params);
+		if (method.equals("wp.newPost"))
+			return newPost(params);
+		if (method.equals("wp.editPost"))
+			return editPost(params);
+		if (method.equals("wp.deletePost"))
+			return deletePost(params);
+		if (method.equals("wp.getAuthors"))
+			return getAuthors();
+		if (method.equals("wp.getUsersBlogs"))
+			return getUsersBlogs();
+		if (method.equals("wp.uploadFile"))
+			return uploadFile(params);
+		throw new XmlRpcException(NO_METHOD, "server error. requested method "
+			+ method + " does not exist.");
+	}
+
+	private static Object param(Object[] params, int i) {
+		return i < params.length ? params[i] : null;
+	}
+
+	private static int postId(Object raw) throws XmlRpcException {
+		try {
+			return Integer.parseInt(String.valueOf(raw));
+		} catch (NumberFormatException e) {
+			throw new XmlRpcException(NOT_FOUND, "Invalid post ID.");
+		}
+	}
+
+	private Map<String, Object> getPost(Object[] params) throws XmlRpcException {
+		int id = postId(param(params, 3));
+		Set<String> fields = fields(param(params, 4));
+		Map<String, Object> post;
+		synchronized (posts) {
+			post = posts.get(id);
+		}
+		if (post == null)
+			throw new XmlRpcException(NOT_FOUND, "Invalid post ID.");
+		return project(post, fields);
+	}
+
+	private Object[] getPosts(Object[] params) {
+		Map<String, Object> filter = param(params, 3) instanceof Map ?
+			Misc.asStruct(param(params, 3)) : new HashMap<String, Object>();
+		Set<String> fields = fields(param(params, 4));
+		Object type = filter.containsKey("post_type") ? filter.get("post_type") : "post";
+		Object status = filter.get("post_status");
+		final String key = "modified".equals(filter.get("orderby")) ? "post_modified_gmt" : "post_date_gmt";
+		final boolean ascending = "ASC".equalsIgnoreCase(String.valueOf(filter.get("order")));
+		int number = filter.get("number") instanceof Integer ? (Integer) filter.get("number") : 10;
+		int offset = filter.get("offset") instanceof Integer ? (Integer) filter.get("offset") : 0;
+
+		List<Map<String, Object>> matching = new ArrayList<Map<String, Object>>();
+		synchronized (posts) {
+			for (Map<String, Object> post : posts.values()) {
+				if (type.equals(post.get("post_type")) &&
+						(status == null || status.equals(post.get("post_status"))))
+					matching.add(post);
+			}
+		}
+		Collections.sort(matching, new Comparator<Map<String, Object>>() {
+			public int compare(Map<String, Object> a, Map<String, Object> b) {
+				int ret = ((Date) a.get(key)).compareTo((Date) b.get(key));
+				if (ret == 0)
+					ret = Integer.compare(Integer.parseInt((String) a.get("post_id")),
+						Integer.parseInt((String) b.get("post_id")));
+				return ascending ? ret : -ret;
+			}
+		});
+		int end = Math.min(matching.size(), offset + Math.max(0, number));
+		List<Object> ret = new ArrayList<Object>();
+		for (int i = Math.max(0, offset); i < end; i++)
+			ret.add(project(matching.get(i), fields));
+		return ret.toArray();
+	}
+
+	private String newPost(Object[] params) throws XmlRpcException {
+		Map<String, Object> content = content(param(params, 3));
+		synchronized (posts) {
+			int id = nextId++;
+			Map<String, Object> post = newPost(id, new Date());
+			update(post, content);
+			posts.put(id, post);
+			return Integer.toString(id);
+		}
+	}
+
+	private Boolean editPost(Object[] params) throws XmlRpcException {
+		int id = postId(param(params, 3));
+		Map<String, Object> content = content(param(params, 4));
+		synchronized (posts) {
+			Map<String, Object> post = posts.get(id);
+			if (post == null)
+				throw new XmlRpcException(NOT_FOUND, "Invalid post ID.");
+			// Posts are never changed once stored, since they are read
+			// (and sent) outside the lock.
+			post = new HashMap<String, Object>(post);
+			update(post, content);
+			Date now = new Date();
+			post.put("post_modified", now);
+			post.put("post_modified_gmt", now);
+			posts.put(id, post);
+			return Boolean.TRUE;
+		}
+	}
+
+	private Boolean deletePost(Object[] params) throws XmlRpcException {
+		int id = postId(param(params, 3));
+		synchronized (posts) {
+			if (posts.remove(id) == null)
+				throw new XmlRpcException(NOT_FOUND, "Invalid post ID.");
+		}
+		return Boolean.TRUE;
+	}
+
+	private Object[] getAuthors() {
+		Map<String, Object> author = new HashMap<String, Object>();
+		author.put("user_id", USER_ID);
+		author.put("user_login", "admin");
+		author.put("display_name", "Administrator");
+		return new Object[] { author };
+	}
+
+	private Object[] getUsersBlogs() {
+		Map<String, Object> blog = new HashMap<String, Object>();
+		blog.put("isAdmin", Boolean.TRUE);
+		blog.put("url", BLOG_URL);
+		blog.put("blogid", "1");
+		blog.put("blogName", BLOG_NAME);
+		blog.put("xmlrpc", getUrl());
+		return new Object[] { blog };
+	}
+
+	private Map<String, Object> uploadFile(Object[] params) throws XmlRpcException {
+		Map<String, Object> data = content(param(params, 3));
+		Object name = data.get("name");
+		if (!(name instanceof String) || !(data.get("bits") instanceof byte[]))
+			throw new XmlRpcException(500, "Could not write file.");
+		String id;
+		synchronized (posts) {
+			id = Integer.toString(nextMedia++);
+		}
+		Map<String, Object> ret = new HashMap<String, Object>();
+		ret.put("attachment_id", id);
+		ret.put("id", id);
+		ret.put("file", name);
+		ret.put("url", BLOG_URL + "wp-content/uploads/" + name);
+		ret.put("type", data.containsKey("type") ? data.get("type") : "application/octet-stream");
+		return ret;
+	}
+
+	private static Map<String, Object> content(Object raw) throws XmlRpcException {
+		if (!(raw instanceof Map))
+			throw new XmlRpcException(BAD_REQUEST, "Invalid content.");
+		return Misc.asStruct(raw);
+	}
+
+	/**
+	 * Apply a content struct, as wp.newPost and wp.editPost take, to a
+	 * post.
+	 */
+	private static void update(Map<String, Object> post, Map<String, Object> content) {
+		for (Map.Entry<String, Object> entry : content.entrySet()) {
+			String key = entry.getKey();
+			if (key.equals("post_id") || key.equals("terms") || key.equals("terms_names"))
+				continue;
+			post.put(key, entry.getValue());
+		}
+		if (content.get("terms_names") instanceof Map) {
+			List<Object> terms = new ArrayList<Object>();
+			for (Map.Entry<String, Object> entry : Misc.asStruct(content.get("terms_names")).entrySet()) {
+				if (entry.getValue() instanceof Object[])
+					for (Object name : (Object[]) entry.getValue())
+						terms.add(term(entry.getKey(), String.valueOf(name)));
+			}
+			post.put("terms", terms.toArray());
+		}
+	}
+
+	/**
+	 * Get the fields asked for, or null for all of them.
+	 */
+	private static Set<String> fields(Object raw) {
+		if (!(raw instanceof Object[]))
+			return null;
+		Set<String> ret = new HashSet<String>();
+		for (Object field : (Object[]) raw)
+			ret.add(String.valueOf(field));
+		return ret.contains("post") ? null : ret;
+	}
+
+	/**
+	 * Return only the requested fields of a post (which always include
+	 * post_id, as in WordPress).
+	 */
+	private static Map<String, Object> project(Map<String, Object> post, Set<String> fields) {
+		if (fields == null)
+			return post;
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("post_id", post.get("post_id"));
+		for (String field : fields) {
+			Object value = post.get(field);
+			if (value != null)
+				ret.put(field, value);
+		}
+		return ret;
+	}
+
+	private static void die(String message, int status) {
+		System.err.println(MY_NAME + ": " + message);
+		System.exit(status);
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import wptools.Main;
+import wptools.lib.Misc;
+
+/**
+ * Run the commands, over and over, against a FakeServer, and report how
+ * many runs of each complete per second and how long they take, e.g.
+ *     java -cp wptools.jar wptools.bench.LoadGenerator --latency 50 --jitter 20
+ * The server's behaviour can be set with the same options FakeServer
+ * takes, and a properties file (say, to pick a transport, or set
+ * host-limit or hedge) given with -p is passed to every command.
+ *
+ * Commands are run in this JVM, one after another, as the daemon runs
+ * them; so after the first few runs, what gets timed is the steady state,
+ * with classes loaded, code compiled and connections open. (See
+ * StartupBenchmark for the cost of starting up.) Before each command's
+ * runs, the server's posts are reset to the same seeded ones, so each
+ * command sees the same blog every time.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class LoadGenerator {
+	private static final String MY_NAME = "LoadGenerator";
+	private static final String[] COMMANDS = { "ListBlogs", "ListAuthors",
+		"ListPosts", "GetPost", "NewPost", "EditPost", "DeletePost",
+		"ExportPosts", "SyncPosts", "ImportPosts", "UploadMedia" };
+
+	// Posts each run of a command that takes post IDs gets or changes,
+	// and that each run of ImportPosts imports.
+	private static final int POSTS_PER_RUN = 20;
+
+	// Size of the file UploadMedia uploads.
+	private static final int UPLOAD_SIZE = 256 * 1024;
+
+	private static FakeServer server;
+	private static File dir;
+	private static File content;
+	private static File imports;
+	private static File upload;
+	private static String properties;
+	private static int posts;
+
+	/**
+	 * Makes the arguments for a run of a command.
+	 */
+	private interface Scenario {
+		/**
+		 * Get ready for a run (untimed).
+		 * @param run     Which run, counting from 0.
+		 * @return        Arguments to run the command with, not counting
+		 *                the URL, user name, blog ID and properties.
+		 */
+		public String[] prepare(int run) throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		// Parse arguments
+		int runs = 10;
+		int warmup = 3;
+		posts = 500;
+		server = new FakeServer();
+		List<String> commands = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-?") || args[i].equals("--help")) {
+				System.out.format("usage: %s [-n runs] [-w warmup] [-p properties] [--posts n] [options] [command ...]%n", MY_NAME);
+				System.out.println(" -n,--runs <arg>          Timed runs per command (default: 10).");
+				System.out.println(" -w,--warmup <arg>        Untimed runs first (default: 3).");
+				System.out.println(" -p,--properties <arg>    Properties file to pass to commands.");
+				System.out.println(" --posts <arg>            Posts on the server (default: 500).");
+				FakeServer.printOptions(System.out);
+				System.exit(0);
+			}
+			try {
+				int next = server.parseOption(args, i);
+				if (next >= 0) {
+					i = next;
+				} else if ((args[i].equals("-n") || args[i].equals("--runs")) && i + 1 < args.length) {
+					runs = parseCount(args[i], args[++i], 1);
+				} else if ((args[i].equals("-w") || args[i].equals("--warmup")) && i + 1 < args.length) {
+					warmup = parseCount(args[i], args[++i], 0);
+				} else if ((args[i].equals("-p") || args[i].equals("--properties")) && i + 1 < args.length) {
+					properties = new File(args[++i]).getAbsolutePath();
+				} else if (args[i].equals("--posts") && i + 1 < args.length) {
+					posts = parseCount(args[i], args[++i], POSTS_PER_RUN);
+				} else if (args[i].startsWith("-")) {
+					die("unknown option: " + args[i], 2);
+				} else if (!scenarios().containsKey(args[i])) {
+					die("unknown command: " + args[i], 2);
+				} else {
+					commands.add(args[i]);
+				}
+			} catch (IllegalArgumentException e) {
+				die(e.getMessage(), 2);
+			}
+		}
+		if (commands.isEmpty())
+			commands.addAll(Arrays.asList(COMMANDS));
+
+		// Set up the server, and the files some commands need.
+		server.start(0);
+		dir = mkTempDir();
+		try {
+			content = new File(dir, "content.html");
+			write(content, "<p>Benchmark.</p>\n".getBytes(StandardCharsets.UTF_8));
+			imports = new File(dir, "import");
+			imports.mkdir();
+			for (int i = 0; i < POSTS_PER_RUN; i++)
+				write(new File(imports, i + ".txt"), ("Title: Imported " + i
+					+ "\n\n<p>Imported.</p>\n").getBytes(StandardCharsets.UTF_8));
+			upload = new File(dir, "upload.bin");
+			byte[] bytes = new byte[UPLOAD_SIZE];
+			new java.util.Random(UPLOAD_SIZE).nextBytes(bytes);
+			write(upload, bytes);
+
+			System.out.format("%d timed run%s per command after %d untimed, against %d posts:%n",
+				runs, runs == 1 ? "" : "s", warmup, posts);
+			System.out.format("%-12s %5s %9s %9s %9s %9s %9s %6s%n", "COMMAND", "FAIL",
+				"RUNS/S", "P50", "P90", "MAX", "CALLS/RUN", "HTTP");
+			long totalRuns = 0, totalCalls = 0, totalNanos = 0;
+			for (String command : commands) {
+				Result result = time(command, scenarios().get(command), warmup, runs);
+				double[] times = result.times.clone();
+				Arrays.sort(times);
+				System.out.format("%-12s %5d %9.2f %7.1fms %7.1fms %7.1fms %9.1f %6.1f%n",
+					command, result.failures, runs / (result.nanos / 1e9),
+					percentile(times, 0.5), percentile(times, 0.9), times[times.length - 1],
+					(double) result.calls / runs, (double) result.requests / runs);
+				if (result.error != null)
+					System.err.println(MY_NAME + ": " + command + ": " + result.error);
+				totalRuns += runs;
+				totalCalls += result.calls;
+				totalNanos += result.nanos;
+			}
+			System.out.format("%d runs, %d calls in %.1f s: %.1f calls/s; server rejected %d requests, failed %d%n",
+				totalRuns, totalCalls, totalNanos / 1e9, totalCalls / (totalNanos / 1e9),
+				server.getRejected(), server.getFailed());
+		} finally {
+			server.close();
+			delete(dir);
+		}
+	}
+
+	/**
+	 * What happened when a command was run.
+	 */
+	private static class Result {
+		public double[] times;
+		public long nanos;
+		public long calls;
+		public long requests;
+		public int failures;
+		public String error;
+	}
+
+	/**
+	 * Time a command.
+	 * @param command Command name.
+	 * @param scenario What to run it with.
+	 * @param warmup  How many untimed runs.
+	 * @param runs    How many timed runs.
+	 */
+	private static Result time(String command, Scenario scenario, int warmup, int runs)
+			throws IOException {
+		Method main = Main.getCommand(command);
+		server.seed(posts);
+		Result ret = new Result();
+		ret.times = new double[runs];
+		for (int i = -warmup; i < runs; i++) {
+			String[] args = scenario.prepare(i + warmup);
+			long calls = server.getCalls();
+			long requests = server.getRequests();
+			long start = System.nanoTime();
+			String error = run(main, args);
+			long elapsed = System.nanoTime() - start;
+			if (i < 0)
+				continue;
+			ret.times[i] = elapsed / 1e6;
+			ret.nanos += elapsed;
+			ret.calls += server.getCalls() - calls;
+			ret.requests += server.getRequests() - requests;
+			if (error != null) {
+				ret.failures++;
+				if (ret.error == null)
+					ret.error = error;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Run a command, as the daemon would, with its output discarded.
+	 * @return        Null if it succeeded, else what went wrong.
+	 */
+	private static String run(Method main, String[] args) {
+		List<String> argv = new ArrayList<String>();
+		argv.addAll(Arrays.asList("-u", server.getUrl(), "-U", "benchmark"));
+		if (properties != null)
+			argv.addAll(Arrays.asList("-p", properties));
+		argv.addAll(Arrays.asList(args));
+		Map<String, String> env = new HashMap<String, String>();
+		env.put("WPTOOLS_PASS", "benchmark");
+		InputStream oldIn = System.in;
+		PrintStream oldOut = System.out;
+		PrintStream oldErr = System.err;
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		System.setIn(new ByteArrayInputStream(new byte[0]));
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		System.setErr(new PrintStream(errors, true));
+		Misc.beginInvocation(dir, env, false);
+		int status = 0;
+		try {
+			main.invoke(null, (Object) argv.toArray(new String[argv.size()]));
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof Misc.Exit)
+				status = ((Misc.Exit) e.getCause()).getStatus();
+			else
+				return e.getCause().toString();
+		} catch (IllegalAccessException e) {
+			return e.getMessage();
+		} finally {
+			Misc.endInvocation();
+			System.setIn(oldIn);
+			System.setOut(oldOut);
+			System.setErr(oldErr);
+		}
+		if (status == 0)
+			return null;
+		String message = errors.toString().trim();
+		return message.isEmpty() ? "exit status " + status : message.split("\n")[0];
+	}
+
+	/**
+	 * Get what to run each command with. Commands that take post IDs
+	 * are given the same ones every run, except DeletePost, which gets
+	 * posts made for it to delete.
+	 */
+	private static Map<String, Scenario> scenarios() {
+		final String[] blog = { "-b", "1" };
+		final String[] ids = new String[POSTS_PER_RUN];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = Integer.toString(i + 1);
+		Map<String, Scenario> ret = new LinkedHashMap<String, Scenario>();
+		ret.put("ListBlogs", new Scenario() {
+			public String[] prepare(int run) {
+				return new String[0];
+			}
+		});
+		ret.put("ListAuthors", new Scenario() {
+			public String[] prepare(int run) {
+				return blog;
+			}
+		});
+		ret.put("ListPosts", new Scenario() {
+			public String[] prepare(int run) {
+				return concat(blog, "-c", "all");
+			}
+		});
+		ret.put("GetPost", new Scenario() {
+			public String[] prepare(int run) {
+				return concat(concat(blog, "--full"), ids);
+			}
+		});
+		ret.put("NewPost", new Scenario() {
+			public String[] prepare(int run) {
+				return concat(blog, "--title", "New " + run, "--content", content.getPath());
+			}
+		});
+		ret.put("EditPost", new Scenario() {
+			public String[] prepare(int run) {
+				return concat(concat(blog, "--title", "Edited " + run, "--content",
+					content.getPath()), ids);
+			}
+		});
+		ret.put("DeletePost", new Scenario() {
+			public String[] prepare(int run) {
+				return concat(blog, server.addPosts(POSTS_PER_RUN));
+			}
+		});
+		ret.put("ExportPosts", new Scenario() {
+			public String[] prepare(int run) {
+				return concat(blog, "-o", new File(dir, "export.json").getPath());
+			}
+		});
+		ret.put("SyncPosts", new Scenario() {
+			public String[] prepare(int run) {
+				return concat(blog, "--full-sync", new File(dir, "mirror").getPath());
+			}
+		});
+		ret.put("ImportPosts", new Scenario() {
+			public String[] prepare(int run) {
+				File journal = new File(dir, "import.journal");
+				journal.delete();
+				return concat(blog, "--new", "-j", journal.getPath(), imports.getPath());
+			}
+		});
+		ret.put("UploadMedia", new Scenario() {
+			public String[] prepare(int run) {
+				return concat(blog, upload.getPath());
+			}
+		});
+		return ret;
+	}
+
+	private static double percentile(double[] sorted, double fraction) {
+		int i = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	private static int parseCount(String name, String value, int min) {
+		try {
+			int ret = Integer.parseInt(value);
+			if (ret >= min)
+				return ret;
+		} catch (NumberFormatException e) {
+			/* fall through */
+		}
+		throw new IllegalArgumentException("invalid value for " + name + ": " + value);
+	}
+
+	private static String[] concat(String[] head, String... tail) {
+		String[] ret = Arrays.copyOf(head, head.length + tail.length);
+		System.arraycopy(tail, 0, ret, head.length, tail.length);
+		return ret;
+	}
+
+	private static File mkTempDir() throws IOException {
+		File ret = File.createTempFile("wptools", ".load");
+		if (!ret.delete() || !ret.mkdir())
+			throw new IOException("unable to create " + ret);
+		return ret;
+	}
+
+	private static void write(File file, byte[] contents) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(contents);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	private static void die(String message, int status) {
+		System.err.println(MY_NAME + ": " + message);
+		System.exit(status);
+	}
+}
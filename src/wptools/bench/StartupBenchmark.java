@@ -0,0 +1,147 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measure how long each command takes from JVM launch to its first
+ * XML-RPC request, with and without the class-data sharing archive, e.g.
+ *     java -cp wptools.jar wptools.bench.StartupBenchmark -a wptools.jsa
+ * Each command is run as a separate process (via wptools.Main, with the
+ * same class path as we have) against a FakeServer that answers every
+ * call with a fault; the median of several runs is reported.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class StartupBenchmark {
+	private static final String MY_NAME = "StartupBenchmark";
+	private static final String[] COMMANDS = { "ListBlogs", "ListAuthors",
+		"ListPosts", "GetPost", "NewPost", "EditPost", "DeletePost" };
+	private static final long TIMEOUT = 60000;
+
+	private static FakeServer stub;
+	private static File content;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		// Parse arguments
+		int runs = 5;
+		String archive = "wptools.jsa";
+		List<String> commands = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-?") || args[i].equals("--help")) {
+				System.out.format("usage: %s [-n runs] [-a archive] [command ...]%n", MY_NAME);
+				System.out.println(" -a,--archive <arg>       CDS archive (default: wptools.jsa).");
+				System.out.println(" -n,--runs <arg>          Runs per command (default: 5).");
+				System.exit(0);
+			} else if ((args[i].equals("-n") || args[i].equals("--runs")) && i + 1 < args.length) {
+				try {
+					runs = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					runs = 0;
+				}
+				if (runs < 1)
+					die("invalid number of runs: " + args[i], 2);
+			} else if ((args[i].equals("-a") || args[i].equals("--archive")) && i + 1 < args.length) {
+				archive = args[++i];
+			} else if (args[i].startsWith("-")) {
+				die("unknown option: " + args[i], 2);
+			} else {
+				commands.add(args[i]);
+			}
+		}
+		if (commands.isEmpty())
+			commands.addAll(Arrays.asList(COMMANDS));
+		boolean haveArchive = new File(archive).exists();
+		if (!haveArchive)
+			System.err.println(MY_NAME + ": warning - " + archive + " not found, timing default start-up only");
+
+		// Time each command each way.
+		stub = new FakeServer();
+		stub.setFaulting(true);
+		stub.start(0);
+		content = File.createTempFile("wptools", ".html");
+		content.deleteOnExit();
+		try (OutputStream out = new FileOutputStream(content)) {
+			out.write("<p>Benchmark.</p>\n".getBytes(StandardCharsets.UTF_8));
+		}
+		System.out.format("Time to first request, median of %d run%s:%n", runs, runs == 1 ? "" : "s");
+		System.out.format("%-12s %10s %10s %8s%n", "COMMAND", "DEFAULT", "CDS", "RATIO");
+		for (String command : commands) {
+			double plain = time(command, null, runs);
+			if (haveArchive) {
+				double cds = time(command, archive, runs);
+				System.out.format("%-12s %8.1fms %8.1fms %7.2fx%n", command, plain, cds, plain / cds);
+			} else {
+				System.out.format("%-12s %8.1fms %10s %8s%n", command, plain, "-", "-");
+			}
+		}
+		stub.close();
+	}
+
+	/**
+	 * Time a command.
+	 * @param command Command name.
+	 * @param archive CDS archive to use, or null for none.
+	 * @param runs    How many timed runs.
+	 * @return        Median milliseconds to first request.
+	 */
+	private static double time(String command, String archive, int runs)
+			throws IOException, InterruptedException {
+		List<String> argv = new ArrayList<String>();
+		argv.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		if (archive != null)
+			argv.add("-XX:SharedArchiveFile=" + archive);
+		argv.add("-cp");
+		argv.add(System.getProperty("java.class.path"));
+		argv.add("wptools.Main");
+		argv.add(command);
+		argv.addAll(Arrays.asList("-u", stub.getUrl(), "-U", "benchmark"));
+		if (!command.equals("ListBlogs"))
+			argv.addAll(Arrays.asList("-b", "1"));
+		if (command.equals("NewPost") || command.equals("EditPost"))
+			argv.addAll(Arrays.asList("--title", "Benchmark", "--content", content.getPath()));
+		if (command.endsWith("Post") && !command.equals("NewPost"))
+			argv.add("1");
+		ProcessBuilder builder = new ProcessBuilder(argv);
+		builder.environment().put("WPTOOLS_PASS", "benchmark");
+		builder.redirectInput(ProcessBuilder.Redirect.PIPE);
+		builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+
+		// One untimed run first, so that all runs find the same things
+		// already in the OS's caches.
+		double[] times = new double[runs];
+		for (int i = -1; i < runs; i++) {
+			stub.reset();
+			long start = System.nanoTime();
+			Process process = builder.start();
+			process.getOutputStream().close();
+			long arrived = stub.awaitRequest(TIMEOUT);
+			process.waitFor();
+			if (arrived < 0)
+				die(command + " made no request", 1);
+			if (i >= 0)
+				times[i] = (arrived - start) / 1e6;
+		}
+		Arrays.sort(times);
+		return runs % 2 == 1 ? times[runs / 2] : (times[runs / 2 - 1] + times[runs / 2]) / 2.0;
+	}
+
+	private static void die(String message, int status) {
+		System.err.println(MY_NAME + ": " + message);
+		System.exit(status);
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import wptools.Main;
+import wptools.lib.Misc;
+
+/**
+ * The training run used to make the class-data sharing archive (see the
+ * jar target in build.xml): runs each command once, in this JVM, against
+ * a FakeServer that answers every call with a fault, so that the classes
+ * each needs to start up and make its first call get loaded (and thus
+ * archived).
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class Training {
+	private static final String MY_NAME = "Training";
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		FakeServer stub = new FakeServer();
+		stub.setFaulting(true);
+		stub.start(0);
+		File dir = mkTempDir();
+		try {
+			// Something to post, edit, import, upload and format.
+			File frag = new File(dir, "frag.html");
+			File imports = new File(dir, "import");
+			imports.mkdir();
+			write(frag, "<p>Training.</p>\n");
+			write(new File(imports, "1.txt"), "Title: Training\n\n<p>Training.</p>\n");
+
+			String[] base = { "-u", stub.getUrl(), "-U", "training" };
+			String[] blog = concat(base, "-b", "1");
+			run("ListBlogs", dir, base);
+			run("ListAuthors", dir, blog);
+			run("ListPosts", dir, blog);
+			run("GetPost", dir, concat(blog, "1"));
+			run("NewPost", dir, concat(blog, "--title", "Training", "--content", frag.getPath()));
+			run("EditPost", dir, concat(blog, "--title", "Training", "--content", frag.getPath(), "1"));
+			run("DeletePost", dir, concat(blog, "1"));
+			run("ExportPosts", dir, concat(blog, "-o", new File(dir, "export.json").getPath()));
+			run("SyncPosts", dir, concat(blog, new File(dir, "mirror").getPath()));
+			run("ImportPosts", dir, concat(blog, "--new", imports.getPath()));
+			run("UploadMedia", dir, concat(blog, frag.getPath()));
+			run("FragToHtml", dir, new String[] { "--content", frag.getPath(),
+				"-o", new File(dir, "frag.out").getPath() });
+		} finally {
+			stub.close();
+			delete(dir);
+		}
+	}
+
+	/**
+	 * Run a command, as the daemon would, with its output discarded.
+	 */
+	private static void run(String name, File cwd, String[] args) {
+		Method main = Main.getCommand(name);
+		if (main == null)
+			throw new IllegalArgumentException(MY_NAME + ": no such command: " + name);
+		Map<String, String> env = new HashMap<String, String>();
+		env.put("WPTOOLS_PASS", "training");
+		InputStream oldIn = System.in;
+		PrintStream oldOut = System.out;
+		PrintStream oldErr = System.err;
+		PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream());
+		System.setIn(new ByteArrayInputStream(new byte[0]));
+		System.setOut(nowhere);
+		System.setErr(nowhere);
+		Misc.beginInvocation(cwd, env, false);
+		try {
+			main.invoke(null, (Object) args);
+		} catch (InvocationTargetException e) {
+			if (!(e.getCause() instanceof Misc.Exit))
+				oldErr.println(MY_NAME + ": " + name + ": " + e.getCause());
+		} catch (IllegalAccessException e) {
+			oldErr.println(MY_NAME + ": " + name + ": " + e.getMessage());
+		} finally {
+			Misc.endInvocation();
+			System.setIn(oldIn);
+			System.setOut(oldOut);
+			System.setErr(oldErr);
+		}
+	}
+
+	private static String[] concat(String[] head, String... tail) {
+		String[] ret = Arrays.copyOf(head, head.length + tail.length);
+		System.arraycopy(tail, 0, ret, head.length, tail.length);
+		return ret;
+	}
+
+	private static File mkTempDir() throws IOException {
+		File ret = File.createTempFile("wptools", ".training");
+		if (!ret.delete() || !ret.mkdir())
+			throw new IOException("unable to create " + ret);
+		return ret;
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(contents.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.cmds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import wptools.Main;
+import wptools.lib.DaemonProtocol;
+
+/**
+ * Run a command via the daemon (see Daemon), e.g.
+ *     java -cp wptools.jar wptools.cmds.Client GetPost 1234
+ * If no daemon is running, the command is simply run here instead.
+ * Only standard library classes are used until then, so as to start
+ * as quickly as possible.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class Client {
+	private static final String MY_NAME = "Client";
+	private static final int BUFSIZE = 8192;
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println(MY_NAME + ": expecting a command");
+			System.exit(2);
+		}
+
+		// Find the daemon, or do without.
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+			channel.connect(UnixDomainSocketAddress.of(DaemonProtocol.getSocketPath()));
+		} catch (IOException e) {
+			runHere(args);
+			return;
+		}
+
+		try {
+			// Send our request.
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				DaemonProtocol.outputStream(channel), BUFSIZE));
+			out.writeInt(DaemonProtocol.MAGIC);
+			DaemonProtocol.writeString(out, System.getProperty("user.dir"));
+			out.writeBoolean(System.console() != null);
+			List<Map.Entry<String, String>> env = new ArrayList<Map.Entry<String, String>>();
+			for (Map.Entry<String, String> e : System.getenv().entrySet()) {
+				if (e.getKey().startsWith(DaemonProtocol.ENV_PREFIX))
+					env.add(e);
+			}
+			out.writeInt(env.size());
+			for (Map.Entry<String, String> e : env) {
+				DaemonProtocol.writeString(out, e.getKey());
+				DaemonProtocol.writeString(out, e.getValue());
+			}
+			out.writeInt(args.length);
+			for (String arg : args)
+				DaemonProtocol.writeString(out, arg);
+			out.flush();
+
+			// Pass our standard input along as it comes.
+			Thread pump = new Thread() {
+				public void run() {
+					byte[] buf = new byte[BUFSIZE];
+					try {
+						int n;
+						while ((n = System.in.read(buf)) > 0) {
+							out.writeInt(n);
+							out.write(buf, 0, n);
+							out.flush();
+						}
+						out.writeInt(0);
+						out.flush();
+					} catch (IOException e) {
+						/* daemon hung up, which is fine */
+					}
+				}
+			};
+			pump.setDaemon(true);
+			pump.start();
+
+			// Copy what comes back to wherever it belongs, until told
+			// to exit.
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+				DaemonProtocol.inputStream(channel), BUFSIZE));
+			OutputStream stdout = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFSIZE);
+			OutputStream stderr = new FileOutputStream(FileDescriptor.err);
+			byte[] buf = new byte[BUFSIZE];
+			while (true) {
+				int type = in.readUnsignedByte();
+				int len = in.readInt();
+				if (type == DaemonProtocol.EXIT) {
+					int status = in.readInt();
+					stdout.flush();
+					System.exit(status);
+				}
+				OutputStream dest = type == DaemonProtocol.STDERR ? stderr : stdout;
+				if (dest == stderr)
+					stdout.flush();
+				while (len > 0) {
+					int n = Math.min(len, buf.length);
+					in.readFully(buf, 0, n);
+					dest.write(buf, 0, n);
+					len -= n;
+				}
+			}
+		} catch (EOFException e) {
+			System.err.println(MY_NAME + ": daemon hung up");
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.println(MY_NAME + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Run a command in this JVM.
+	 */
+	private static void runHere(String[] args) {
+		Main.main(args);
+	}
+}
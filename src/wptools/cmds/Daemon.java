@@ -0,0 +1,336 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.cmds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.ParseException;
+
+import wptools.Main;
+import wptools.lib.*;
+
+/**
+ * A long-lived server that runs the other commands on behalf of Client,
+ * so that JVM startup, class loading, reading wptools.properties and
+ * setting up HTTP(S) connections are paid for once instead of on every
+ * command. Listens on a Unix-domain socket, in a directory only its owner
+ * may use, and serves only clients running as the same user.
+ *
+ * Commands keep their state in static fields, so they are run one at a
+ * time; clients that arrive while one is running wait their turn.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class Daemon {
+	private static CommandLine cmdLine;
+	private static PrintStream log;
+	private static UserPrincipal me;
+
+	// Serializes command execution.
+	private static final Object LOCK = new Object();
+
+	// Commands that can't be run here: ourselves, our client, and
+	// DumpCerts (which changes JVM-wide SSL settings).
+	private static final List<String> EXCLUDED = Arrays.asList("Daemon",
+		"Client", "DumpCerts");
+
+	private static final int BUFSIZE = 8192;
+	private static final int PIPE_SIZE = 65536;
+
+	public static void main(String[] args) {
+		// Define our name
+		Misc.setMyName("Daemon");
+
+		// Parse command-line options
+		org.apache.commons.cli.Options options = new org.apache.commons.cli.Options();
+		options.addOption("?", "help", false, "Print this help message.");
+		options.addOption("s", "socket", true, "Socket to listen on.");
+		try {
+			cmdLine = ((new DefaultParser()).parse(options, args));
+		} catch (ParseException e) {
+			Misc.die(e.getMessage(), 2);
+		}
+		if (cmdLine.hasOption("help")) {
+			(new HelpFormatter()).printHelp(Misc.getMyName(), options);
+			Misc.exit(0);
+		}
+		final Path path = cmdLine.hasOption("socket") ?
+			Paths.get(cmdLine.getOptionValue("socket")) : DaemonProtocol.getSocketPath();
+
+		// Set up the socket, in a directory only we may use, and refusing
+		// to step on a running daemon.
+		ServerSocketChannel server = null;
+		try {
+			me = FileSystems.getDefault().getUserPrincipalLookupService()
+				.lookupPrincipalByName(System.getProperty("user.name"));
+			secureDirectory(path.toAbsolutePath().getParent());
+			if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+				try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+					probe.connect(UnixDomainSocketAddress.of(path));
+					Misc.die("already running on " + path);
+				} catch (IOException e) {
+					Files.delete(path);  /* stale */
+				}
+			}
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(path));
+			Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+		} catch (IOException|UnsupportedOperationException e) {
+			Misc.die(e.getMessage());
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					Files.deleteIfExists(path);
+				} catch (IOException e) {
+					/* ignore */
+				}
+			}
+		});
+
+		// Serve clients until killed.
+		log = System.err;
+		while (true) {
+			try {
+				final SocketChannel channel = server.accept();
+				if (!isOurs(channel)) {
+					channel.close();
+					continue;
+				}
+				Thread handler = new Thread() {
+					public void run() {
+						serve(channel);
+					}
+				};
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				Misc.die(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Make sure the directory the socket goes in is ours and no one
+	 * else's, creating it if need be.
+	 * @param dir     Directory.
+	 */
+	private static void secureDirectory(Path dir) throws IOException {
+		Set<PosixFilePermission> owner = PosixFilePermissions.fromString("rwx------");
+		if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS))
+			Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(owner));
+		if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS))
+			Misc.die(dir + " - not a directory");
+		if (!me.equals(Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS)))
+			Misc.die(dir + " - not owned by " + me.getName());
+		if (!Files.getPosixFilePermissions(dir, LinkOption.NOFOLLOW_LINKS).equals(owner))
+			Files.setPosixFilePermissions(dir, owner);
+	}
+
+	/**
+	 * Determine if a client is running as the same user we are.
+	 * @param channel Connection to client.
+	 */
+	private static boolean isOurs(SocketChannel channel) {
+		try {
+			UnixDomainPrincipal peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+			if (me.equals(peer.user()))
+				return true;
+			log.println(Misc.getMyName() + ": rejected client running as " + peer.user().getName());
+		} catch (IOException|UnsupportedOperationException e) {
+			log.println(Misc.getMyName() + ": unable to identify client: " + e.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * Carry on a conversation with a client.
+	 * @param channel Connection to client.
+	 */
+	private static void serve(SocketChannel channel) {
+		try (SocketChannel c = channel) {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				DaemonProtocol.inputStream(c), BUFSIZE));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				DaemonProtocol.outputStream(c), BUFSIZE));
+			if (in.readInt() != DaemonProtocol.MAGIC)
+				return;
+			File cwd = new File(DaemonProtocol.readString(in));
+			boolean console = in.readBoolean();
+			Map<String, String> env = new HashMap<String, String>();
+			int nenv = in.readInt();
+			for (int i = 0; i < nenv; i++) {
+				String key = DaemonProtocol.readString(in);
+				String value = DaemonProtocol.readString(in);
+				if (key.startsWith(DaemonProtocol.ENV_PREFIX))
+					env.put(key, value);
+			}
+			int nargs = in.readInt();
+			if (nargs < 1)
+				return;
+			String[] argv = new String[nargs];
+			for (int i = 0; i < nargs; i++)
+				argv[i] = DaemonProtocol.readString(in);
+
+			// Standard input arrives while the command runs.
+			PipedInputStream stdin = new PipedInputStream(PIPE_SIZE);
+			final PipedOutputStream feed = new PipedOutputStream(stdin);
+			Thread feeder = new Thread() {
+				public void run() {
+					try {
+						byte[] buf = new byte[BUFSIZE];
+						while (true) {
+							int len = in.readInt();
+							if (len <= 0)
+								break;
+							while (len > 0) {
+								int n = Math.min(len, buf.length);
+								in.readFully(buf, 0, n);
+								feed.write(buf, 0, n);
+								len -= n;
+							}
+						}
+					} catch (IOException e) {
+						/* client or command went away */
+					} finally {
+						try {
+							feed.close();
+						} catch (IOException e) {
+							/* ignore */
+						}
+					}
+				}
+			};
+			feeder.setDaemon(true);
+			feeder.start();
+
+			int status = run(argv, cwd, env, console, stdin, out);
+			stdin.close();
+			synchronized (out) {
+				out.writeByte(DaemonProtocol.EXIT);
+				out.writeInt(4);
+				out.writeInt(status);
+				out.flush();
+			}
+		} catch (IOException e) {
+			log.println(Misc.getMyName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Run a command.
+	 * @return        Exit status.
+	 */
+	private static int run(String[] argv, File cwd, Map<String, String> env,
+			boolean console, InputStream stdin, DataOutputStream out) {
+		// Standard output is buffered, so flush it before anything goes
+		// to standard error, to keep the two in order.
+		final PrintStream cout = new PrintStream(new BufferedOutputStream(
+			new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.STDOUT), BUFSIZE), false);
+		PrintStream cerr = new PrintStream(
+			new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.STDERR) {
+				public void write(byte[] b, int off, int len) throws IOException {
+					cout.flush();
+					super.write(b, off, len);
+				}
+			}, true);
+		synchronized (LOCK) {
+			InputStream oldIn = System.in;
+			PrintStream oldOut = System.out;
+			PrintStream oldErr = System.err;
+			System.setIn(stdin);
+			System.setOut(cout);
+			System.setErr(cerr);
+			Misc.beginInvocation(cwd, env, console);
+			Traffic.reset();
+			Stats.reset();
+			Trace.close();
+			int status = 0;
+			try {
+				Method main = getMain(argv[0]);
+				if (main == null) {
+					Misc.error("unknown command: " + argv[0]);
+					status = 2;
+				} else {
+					main.invoke(null, (Object) Arrays.copyOfRange(argv, 1, argv.length));
+				}
+			} catch (InvocationTargetException e) {
+				status = exitStatus(e.getCause(), cerr);
+			} catch (IllegalAccessException e) {
+				Misc.error(e.getMessage());
+				status = 1;
+			} finally {
+				Misc.endInvocation();
+				cout.flush();
+				cerr.flush();
+				System.setIn(oldIn);
+				System.setOut(oldOut);
+				System.setErr(oldErr);
+				Misc.setMyName("Daemon");
+			}
+			return status;
+		}
+	}
+
+	/**
+	 * Find the main method of a command.
+	 * @return        Method, or null if no such command.
+	 */
+	private static Method getMain(String name) {
+		return EXCLUDED.contains(name) ? null : Main.getCommand(name);
+	}
+
+	/**
+	 * Determine the exit status resulting from what a command threw,
+	 * reporting anything other than a call to Misc.exit the way the JVM
+	 * would.
+	 */
+	private static int exitStatus(Throwable t, PrintStream err) {
+		for (Throwable c = t; c != null; c = c.getCause()) {
+			if (c instanceof Misc.Exit)
+				return ((Misc.Exit) c).getStatus();
+		}
+		err.print("Exception in thread \"main\" ");
+		t.printStackTrace(err);
+		return 1;
+	}
+}
@@ -7,11 +7,15 @@
 package wptools.cmds;
 
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.xmlrpc.XmlRpcException;
 import org.apache.xmlrpc.client.XmlRpcClient;
 
 import wptools.lib.Misc;
+import wptools.lib.MultiCall;
 import wptools.lib.Options;
 import wptools.lib.Properties;
 
@@ -24,6 +28,7 @@ import wptools.lib.Properties;
 public class DeletePost {
 	private static CommandLine cmdLine;
 	private static Properties props;
+	private static int estat;
 	
 	public static void main(String[] args) {
 		// Define our name
@@ -36,6 +41,7 @@ public class DeletePost {
 		options.addOption("blogid");
 		options.addOption("properties");
 		options.addOption("group");
+		options.addOption("batch");
 		cmdLine = options.parse(args);
 
 		// Load properties from wherever (file or command line)
@@ -54,7 +60,9 @@ public class DeletePost {
 		
 		// Delete
 		String password = Misc.getPassword();
-		int estat = 0;
+		estat = 0;
+		final List<String> rpostids = new ArrayList<String>();
+		List<Object[]> calls = new ArrayList<Object[]>();
 		for (String rpostid : cmdLine.getArgs()) {
 			Integer postid = null;
 			try {
@@ -64,16 +72,21 @@ public class DeletePost {
 				estat = 1;
 				continue;
 			}
-			Object[] params = new Object[] { blogid, username, password, postid };
-			try {
-				client.execute("wp.deletePost", params);
-			} catch (XmlRpcException e) {
-				Misc.error(rpostid + " - " + e.getMessage());
-				estat = 1;
-				continue;
-			}
-			System.out.println("Post " + rpostid + " deleted.");
+			rpostids.add(rpostid);
+			calls.add(new Object[] { blogid, username, password, postid });
 		}
-		System.exit(estat);
+		MultiCall multi = new MultiCall(client, props);
+		multi.executeAll("wp.deletePost", calls, new MultiCall.Callback() {
+			public void done(int index, Object result, XmlRpcException fault) {
+				String rpostid = rpostids.get(index);
+				if (fault != null) {
+					Misc.error(rpostid + " - " + fault.getMessage());
+					estat = 1;
+					return;
+				}
+				System.out.println("Post " + rpostid + " deleted.");
+			}
+		});
+		Misc.exit(estat);
 	}
 }
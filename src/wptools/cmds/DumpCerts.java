@@ -45,7 +45,7 @@ public class DumpCerts {
         if ("-?".equals(args[0]) || "--help".equals(args[0])) {
             System.out.format("usage: %s -?|--help|url%n", Misc.getMyName());
             System.out.println(" -?,--help               Print this help message.");
-            System.exit(0);
+            Misc.exit(0);
         }
         URL url = null;
         try {
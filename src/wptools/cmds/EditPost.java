@@ -6,8 +6,17 @@
 
 package wptools.cmds;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.xmlrpc.XmlRpcException;
@@ -16,7 +25,9 @@ import org.apache.xmlrpc.client.XmlRpcClient;
 import wptools.lib.*;
 
 /**
- * Edit (i.e. update, this is NOT an interactive editor) a post.
+ * Edit (i.e. update, this is NOT an interactive editor) a post. Fields
+ * the server already has as asked for are left out of the edit, and a
+ * post that would not change at all is left alone.
  * 
  * @author David Barts <david.w.barts@gmail.com>
  *
@@ -24,6 +35,16 @@ import wptools.lib.*;
 public class EditPost {
 	private static CommandLine cmdLine;
 	private static Properties props;
+	private static int estat;
+
+	// What leaving out unchanged fields saved
+	private static int savedFields;
+	private static long savedBytes;
+	private static int savedCalls;
+
+	private static final String CONTENT = "post_content";
+	private static final String TERMS = "terms_names";
+	private static final String MODIFIED = "post_modified_gmt";
 	
 	public static void main(String[] args) {
 		// Define our name
@@ -31,7 +52,9 @@ public class EditPost {
 
 		// Parse command-line options
 		NewEditOptions options = new NewEditOptions();
+		options.addOption("batch");
 		options.addOption("n", "no-content", false, "Leave post content alone.");
+		options.addOption(null, "force", false, "Send all fields, even ones the server already has.");
 		cmdLine = options.parse(args);
 
 		// Reject attempts to edit nothing
@@ -74,28 +97,263 @@ public class EditPost {
 		else if (!found)
 			Misc.die("warning - no edits specified", 0);
 		
-		// Edit the posts
+		// Sort out which posts to edit
 		String password = Misc.getPassword();
-		int estat = 0;
+		estat = 0;
+		savedFields = savedCalls = 0;
+		savedBytes = 0L;
+		final List<String> rpostids = new ArrayList<String>();
+		final List<Integer> postids = new ArrayList<Integer>();
 		for (String rpostid : cmdLine.getArgs()) {
-			Integer postid = null;
 			try {
-				postid = new Integer(rpostid);
+				postids.add(Integer.valueOf(rpostid));
 			} catch (NumberFormatException e) {
 				Misc.error(rpostid + " - illegal post ID");
 				estat = 1;
 				continue;
 			}
-			Object[] params = new Object[] { blogid, username, password, postid, contentParams };
-			try {
-				client.execute("wp.editPost", params);
-			} catch (XmlRpcException e) {
-				Misc.error(rpostid + " - " + e.getMessage());
-				estat = 1;
+			rpostids.add(rpostid);
+		}
+
+		// Unless told not to, leave out what the server already has.
+		MultiCall multi = new MultiCall(client, props);
+		List<Map<String, Object>> changes = new ArrayList<Map<String, Object>>();
+		String[] known = new String[postids.size()];
+		PostHashes hashes = null;
+		if (cmdLine.hasOption("force")) {
+			for (int i = 0; i < postids.size(); i++)
+				changes.add(contentParams);
+		} else {
+			hashes = new PostHashes(PostHashes.getRoot(props), url, Integer.toString(blogid));
+			compare(multi, hashes, blogid, username, password, postids, contentParams,
+				changes, known);
+		}
+
+		// Edit the posts
+		final List<Integer> edited = new ArrayList<Integer>();
+		final List<Integer> indices = new ArrayList<Integer>();
+		List<Object[]> calls = new ArrayList<Object[]>();
+		for (int i = 0; i < postids.size(); i++) {
+			if (changes.get(i) == null) {
+				System.out.println("Post " + rpostids.get(i) + " unchanged.");
 				continue;
 			}
-			System.out.println("Post " + rpostid + " edited.");
+			indices.add(i);
+			calls.add(new Object[] { blogid, username, password, postids.get(i), changes.get(i) });
+		}
+		multi.executeAll("wp.editPost", calls, new MultiCall.Callback() {
+			public void done(int index, Object result, XmlRpcException fault) {
+				String rpostid = rpostids.get(indices.get(index));
+				if (fault != null) {
+					Misc.error(rpostid + " - " + fault.getMessage());
+					estat = 1;
+					return;
+				}
+				edited.add(indices.get(index));
+				System.out.println("Post " + rpostid + " edited.");
+			}
+		});
+
+		// Remember the content of edited posts, so that next time it need
+		// not be downloaded to be compared.
+		if (hashes != null)
+			remember(multi, hashes, blogid, username, password, postids, edited, known);
+		if (savedFields > 0 || savedCalls > 0)
+			System.out.format("Skipped %d unchanged field%s (%d bytes) and %d call%s.%n",
+				savedFields, savedFields == 1 ? "" : "s", savedBytes,
+				savedCalls, savedCalls == 1 ? "" : "s");
+		Misc.exit(estat);
+	}
+
+	/**
+	 * Find out which fields of each post would be changed by an edit.
+	 * Fields are fetched from the server, except that content is only
+	 * fetched if we have no hash of the post's current content.
+	 * @param multi     Makes calls.
+	 * @param hashes    Hashes of content sent earlier.
+	 * @param blogid    Blog ID.
+	 * @param username  Username.
+	 * @param password  Password.
+	 * @param postids   Posts.
+	 * @param params    The fields to set.
+	 * @param changes   For each post, gets the fields that differ, or null
+	 *                  if none do.
+	 * @param known     For each post, gets the hash of its content, if
+	 *                  known, once edited.
+	 */
+	private static void compare(MultiCall multi, PostHashes hashes, int blogid,
+			String username, String password, final List<Integer> postids,
+			final Map<String, Object> params, final List<Map<String, Object>> changes,
+			final String[] known) {
+		final String content = (String) params.get(CONTENT);
+		final String ourHash = content == null ? null : PostHashes.hash(content);
+		final PostHashes.Entry[] entries = new PostHashes.Entry[postids.size()];
+		List<Object[]> calls = new ArrayList<Object[]>();
+		for (int i = 0; i < postids.size(); i++) {
+			entries[i] = hashes.get(postids.get(i));
+			List<String> fields = new ArrayList<String>();
+			fields.add(MODIFIED);
+			for (String field : params.keySet()) {
+				if (field.equals(CONTENT) && entries[i] != null)
+					continue;
+				fields.add(field.equals(TERMS) ? "terms" : field);
+			}
+			calls.add(new Object[] { blogid, username, password, postids.get(i),
+				fields.toArray(new String[fields.size()]) });
+			changes.add(params);
 		}
-		System.exit(estat);
+		multi.executeAll("wp.getPost", calls, new MultiCall.Callback() {
+			public void done(int index, Object result, XmlRpcException fault) {
+				// If we can't tell, send everything (and let wp.editPost
+				// report any error).
+				if (fault != null)
+					return;
+				Map<String, Object> post = Misc.asStruct(result);
+				PostHashes.Entry entry = entries[index];
+				boolean current = entry != null && entry.modified.equals(post.get(MODIFIED));
+				Map<String, Object> changed = new HashMap<String, Object>();
+				int fields = 0, bytes = 0;
+				for (Map.Entry<String, Object> param : params.entrySet()) {
+					String field = param.getKey();
+					boolean same;
+					if (field.equals(CONTENT) && !post.containsKey(CONTENT))
+						same = current && entry.hash.equals(ourHash);
+					else
+						same = same(field, param.getValue(), post);
+					if (same) {
+						fields++;
+						bytes += size(param.getValue());
+					} else {
+						changed.put(field, param.getValue());
+					}
+				}
+				if (ourHash != null)
+					known[index] = ourHash;
+				else if (post.containsKey(CONTENT))
+					known[index] = PostHashes.hash((String) post.get(CONTENT));
+				else if (current)
+					known[index] = entry.hash;
+				savedFields += fields;
+				savedBytes += bytes;
+				if (changed.isEmpty()) {
+					changes.set(index, null);
+					savedCalls++;
+					// The post is as we want it; note that, if we can.
+					Date modified = (Date) post.get(MODIFIED);
+					if (known[index] != null && modified != null && !current) {
+						try {
+							hashes.put(postids.get(index), modified, known[index]);
+						} catch (IOException e) {
+							Misc.error("warning - " + e.getMessage());
+						}
+					}
+				} else {
+					changes.set(index, changed);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Determine if the server has a field as we would set it.
+	 * @param field     Field name, as passed to wp.editPost.
+	 * @param value     Value we would set.
+	 * @param post      Post, as returned by wp.getPost.
+	 */
+	private static boolean same(String field, Object value, Map<String, Object> post) {
+		if (field.equals(TERMS))
+			return sameTerms((Map<?, ?>) value, post.get("terms"));
+		Object current = post.get(field);
+		if (current == null)
+			return false;
+		if (field.equals("sticky") && current instanceof Boolean)
+			return ((Integer) value != 0) == (Boolean) current;
+		if (field.equals("post_thumbnail")) {
+			if (!(current instanceof Map))
+				return false;
+			current = Misc.asStruct(current).get("attachment_id");
+			if (current == null)
+				return false;
+		}
+		if (value instanceof Date || current instanceof Date)
+			return value.equals(current);
+		// WordPress returns numbers (IDs) as strings.
+		return value.toString().equals(current.toString());
+	}
+
+	/**
+	 * Determine if each of the taxonomies we would set terms in has
+	 * exactly those terms.
+	 * @param value     Terms we would set, by taxonomy.
+	 * @param current   Terms as returned by wp.getPost.
+	 */
+	private static boolean sameTerms(Map<?, ?> value, Object current) {
+		if (!(current instanceof Object[]))
+			return false;
+		Map<String, Set<String>> have = new HashMap<String, Set<String>>();
+		for (Object term : (Object[]) current) {
+			if (!(term instanceof Map))
+				return false;
+			Map<String, Object> t = Misc.asStruct(term);
+			String taxonomy = (String) t.get("taxonomy");
+			if (!have.containsKey(taxonomy))
+				have.put(taxonomy, new HashSet<String>());
+			have.get(taxonomy).add((String) t.get("name"));
+		}
+		for (Map.Entry<?, ?> entry : value.entrySet()) {
+			Set<String> want = new HashSet<String>(Arrays.asList((String[]) entry.getValue()));
+			if (!want.equals(have.get(entry.getKey())))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Roughly how many bytes a value takes in a call.
+	 */
+	private static int size(Object value) {
+		if (value instanceof String)
+			return ((String) value).getBytes(StandardCharsets.UTF_8).length;
+		if (value instanceof Map) {
+			int ret = 0;
+			for (Object names : ((Map<?, ?>) value).values())
+				for (String name : (String[]) names)
+					ret += name.getBytes(StandardCharsets.UTF_8).length;
+			return ret;
+		}
+		return value.toString().length();
+	}
+
+	/**
+	 * Record the content of the posts we edited, with the modification
+	 * times the edits gave them.
+	 */
+	private static void remember(MultiCall multi, final PostHashes hashes, int blogid,
+			String username, String password, final List<Integer> postids,
+			List<Integer> edited, final String[] known) {
+		final List<Integer> indices = new ArrayList<Integer>();
+		List<Object[]> calls = new ArrayList<Object[]>();
+		for (int i : edited) {
+			if (known[i] == null)
+				continue;
+			indices.add(i);
+			calls.add(new Object[] { blogid, username, password, postids.get(i),
+				new String[] { MODIFIED } });
+		}
+		multi.executeAll("wp.getPost", calls, new MultiCall.Callback() {
+			public void done(int index, Object result, XmlRpcException fault) {
+				if (fault != null)
+					return;
+				int i = indices.get(index);
+				Date modified = (Date) Misc.asStruct(result).get(MODIFIED);
+				if (modified == null)
+					return;
+				try {
+					hashes.put(postids.get(i), modified, known[i]);
+				} catch (IOException e) {
+					Misc.error("warning - " + e.getMessage());
+				}
+			}
+		});
 	}
 }
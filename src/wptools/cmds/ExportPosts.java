@@ -0,0 +1,189 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.cmds;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+
+import wptools.lib.*;
+
+/**
+ * Export all posts as newline-delimited JSON (one object per line, per
+ * post, containing every field GetPost --full shows), for consumption by
+ * other programs.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class ExportPosts {
+	private static CommandLine cmdLine;
+	private static Properties props;
+
+	private static final int BUFSIZ = 65536;
+
+	// Marks the end of the posts in the queue.
+	private static final Object END = new Object();
+
+	public static void main(String[] args) {
+		// Define our name
+		Misc.setMyName("ExportPosts");
+
+		// Parse command-line options
+		Options options = new Options();
+		options.addOption("url");
+		options.addOption("username");
+		options.addOption("blogid");
+		options.addOption("properties");
+		options.addOption("group");
+		options.addOption("page-size");
+		options.addOption("o", "output", true, "Write to file (default: standard output).");
+		options.addOption("z", "gzip", false, "Compress output with gzip.");
+		options.addOption(null, "status", true, "Post status to export (default: publish).");
+		options.addOption(null, "type", true, "Post type to export (default: post).");
+		cmdLine = options.parse(args);
+		if (cmdLine.getArgs().length != 0)
+			Misc.die("unexpected arguments", 2);
+
+		// Load properties from wherever (file or command line)
+		props = new Properties(cmdLine);
+
+		// Try to get a "connection" (actually just a client object; HTTP is connectionless).
+		XmlRpcClient conn = null;
+		String url = props.get("url");
+		try {
+			conn = Misc.xmlRpcService(url, props, cmdLine);
+		} catch (MalformedURLException e) {
+			Misc.die(e.getMessage());
+		}
+
+		// Open output
+		Writer out = null;
+		try {
+			OutputStream os = null;
+			if (cmdLine.hasOption("output"))
+				os = new FileOutputStream(Misc.getFile(cmdLine.getOptionValue("output")));
+			else
+				os = System.out;
+			if (cmdLine.hasOption("gzip"))
+				os = new GZIPOutputStream(os, BUFSIZ);
+			out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), BUFSIZ);
+		} catch (IOException e) {
+			Misc.die(e.getMessage());
+		}
+
+		// Fetch posts in a separate thread, which runs ahead of us by up
+		// to a page, so that the next page is being fetched while we are
+		// writing this one.
+		int pageSize = PostPager.getPageSize(props);
+		final PostPager pager = new PostPager(conn, props.getInt("blogid"),
+			props.get("username"), Misc.getPassword(), false, GetPost.ALL_FIELDS,
+			pageSize, 0);
+		pager.addFilter("post_status", cmdLine.getOptionValue("status", "publish"));
+		if (cmdLine.hasOption("type"))
+			pager.addFilter("post_type", cmdLine.getOptionValue("type"));
+		final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(pageSize);
+		Thread fetcher = new Thread() {
+			public void run() {
+				Object last = END;
+				try {
+					pager.each(new PostPager.Sink() {
+						public void accept(Map<String, Object> post) {
+							if (!put(queue, post))
+								throw new CancellationException();
+						}
+					});
+				} catch (CancellationException e) {
+					return;
+				} catch (Throwable e) {
+					// Anything else must reach the writer, or it would
+					// wait forever.
+					last = e;
+				}
+				put(queue, last);
+			}
+		};
+		fetcher.setDaemon(true);
+		fetcher.start();
+
+		// Write posts as they arrive. If we die, make sure the fetcher
+		// does too.
+		JsonWriter json = new JsonWriter(out);
+		try {
+			while (true) {
+				Object item = queue.take();
+				if (item == END)
+					break;
+				if (item instanceof Misc.Exit)
+					throw (Misc.Exit) item;
+				if (item instanceof XmlRpcException)
+					Misc.die(((XmlRpcException) item).getMessage());
+				if (item instanceof Throwable)
+					Misc.die(item.toString());
+				writePost(json, Misc.asStruct(item));
+				out.write('\n');
+			}
+			out.close();
+		} catch (IOException e) {
+			Misc.die(e.getMessage());
+		} catch (InterruptedException e) {
+			Misc.die("interrupted");
+		} finally {
+			fetcher.interrupt();
+		}
+	}
+
+	/**
+	 * Write a post as a JSON object, with the fields in the same order
+	 * GetPost --full uses.
+	 * @param json    Where to write.
+	 * @param post    Post as returned from WordPress.
+	 */
+	private static void writePost(JsonWriter json, Map<String, Object> post)
+			throws IOException {
+		json.beginObject();
+		for (String key : GetPost.ALL_FIELDS) {
+			if (!post.containsKey(key))
+				continue;
+			json.name(key);
+			Object value = post.get(key);
+			if (value instanceof Date)
+				json.value((Date) value, key.endsWith("_gmt"));
+			else
+				json.value(value);
+		}
+		json.endObject();
+	}
+
+	/**
+	 * Put an item in the queue.
+	 * @return        False if we were interrupted (i.e. told to stop).
+	 */
+	private static boolean put(BlockingQueue<Object> queue, Object item) {
+		try {
+			queue.put(item);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+}
@@ -6,8 +6,15 @@
 
 package wptools.cmds;
 
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
-import java.io.PrintStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.nio.charset.Charset;
 
 import org.apache.commons.cli.Option;
@@ -29,7 +36,14 @@ import wptools.lib.*;
  */
 public class FragToHtml {
     private static CommandLine cmdLine;
-    private static PrintStream out;
+    private static PrintWriter out;
+
+    private static final int BUFSIZE = 65536;
+
+    // Where emitBody is at the start of the fragment.
+    private static final int AT_START = 0;      /* seen nothing yet */
+    private static final int AFTER_NEWLINE = 1; /* seen a single newline */
+    private static final int IN_BODY = 2;       /* past the start */
 
     public static void main(String[] args) {
         // Define our name
@@ -48,20 +62,23 @@ public class FragToHtml {
         }
         if (cmdLine.hasOption("help")) {
             (new HelpFormatter()).printHelp(Misc.getMyName(), options);
-            System.exit(0);
+            Misc.exit(0);
         }
 
         // Determine output stream.
         String fileName = cmdLine.getOptionValue("output");
+        OutputStream os = null;
         if (fileName == null) {
-            out = System.out;
+            os = System.out;
         } else {
             try {
-                out = new PrintStream(fileName);
+                os = new FileOutputStream(Misc.getFile(fileName));
             } catch (FileNotFoundException|SecurityException e) {
                 Misc.die(e.getMessage());
             }
         }
+        out = new PrintWriter(new BufferedWriter(
+            new OutputStreamWriter(os, Charset.defaultCharset()), BUFSIZE));
 
         // Get post title
         String title = cmdLine.getOptionValue("title");
@@ -77,9 +94,17 @@ public class FragToHtml {
         out.println("    <title>Preview of " + title + "</title>");
         out.println("  </head><body>");
         out.println("    <h1>" + title + "</h1>");
-        emitBody(Misc.readBody(cmdLine));
+        try (Reader body = Misc.openBody(cmdLine)) {
+            emitBody(out, body);
+        } catch (IOException e) {
+            Misc.die(e.getMessage());
+        }
         out.println("  </body>");
         out.println("</html>");
+        if (fileName == null)
+            out.flush();
+        else
+            out.close();
     }
 
     private static String htmlEncode(String raw) {
@@ -104,44 +129,74 @@ public class FragToHtml {
         return buf.toString();
     }
 
-    private static void emitBody(String body) {
-        // Get a buffer to play with.
-        StringBuilder buf = new StringBuilder(body);
-
-        // Normalize newlines.
-        gsub(buf, "\r\n", "\n");
-        gsub(buf, "\r", "\n");
-        int len = buf.length();
-        if (len > 0 && buf.charAt(len-1) != '\n')
-            buf.append('\n');
-
-        // If we don't start with a tag or a double newline, we need
-        // to force a leading paragraph tag.
-        if (buf.length() > 0 && buf.charAt(0) != '<' && buf.indexOf("\n\n") != 0)
-            buf.insert(0, "<p>");
-
-        // Add paragraph tags at double line breaks.
-        gsub(buf, "\n\n", "\n<p>");
-
-        // Localize newlines, if needed.
-        String localNl = System.lineSeparator();
-        if (!"\n".equals(localNl))
-            gsub(buf, "\n", localNl);
-
-        // Emit the output.
-        out.print(buf.toString());
+    /**
+     * Turn a post fragment into the body of an HTML document, in a single
+     * pass: newlines of all kinds (CR LF, CR, LF) are normalized, the
+     * fragment is made to end with one, a paragraph tag is added after
+     * each pair of newlines (and at the start, unless the fragment starts
+     * with a tag or a blank line), and newlines are written in the local
+     * style.
+     * @param dest    Where to write it.
+     * @param src     The fragment.
+     */
+    static void emitBody(Writer dest, Reader src) throws IOException {
+        String nl = System.lineSeparator();
+        char[] buf = new char[BUFSIZE];
+        int state = AT_START;
+        int newlines = 0;       /* newlines read but not yet written */
+        boolean cr = false;     /* last character read was a CR */
+        int nread;
+        while ((nread = src.read(buf)) != -1) {
+            // Runs of ordinary characters are written all at once; this
+            // is where the current one starts.
+            int run = 0;
+            for (int i = 0; i < nread; i++) {
+                char ch = buf[i];
+                if (ch == '\n' && cr) {
+                    // End of a CR LF, whose CR we already counted.
+                    cr = false;
+                    run = i + 1;
+                    continue;
+                }
+                cr = ch == '\r';
+                if (cr || ch == '\n') {
+                    if (run < i)
+                        dest.write(buf, run, i - run);
+                    run = i + 1;
+                    if (state == AT_START) {
+                        state = AFTER_NEWLINE;
+                    } else if (state == AFTER_NEWLINE) {
+                        state = IN_BODY;  /* blank line; no tag needed */
+                    }
+                    newlines++;
+                } else if (state != IN_BODY || newlines > 0) {
+                    if (state != IN_BODY && (state == AFTER_NEWLINE || ch != '<'))
+                        dest.write("<p>");
+                    state = IN_BODY;
+                    writeNewlines(dest, newlines, nl);
+                    newlines = 0;
+                }
+            }
+            if (run < nread)
+                dest.write(buf, run, nread - run);
+        }
+        if (state == AFTER_NEWLINE)
+            dest.write("<p>");
+        else if (state == IN_BODY && newlines == 0)
+            newlines = 1;
+        writeNewlines(dest, newlines, nl);
     }
 
-    private static void gsub(StringBuilder buf, String old, String repl) {
-        int len = old.length();
-        int delta = repl.length();
-        int pos = 0;
-        while (true) {
-            pos = buf.indexOf(old, pos);
-            if (pos < 0)
-                break;
-            buf.replace(pos, pos + len, repl);
-            pos += delta;
+    /**
+     * Write a run of newlines, with a paragraph tag after each pair.
+     */
+    private static void writeNewlines(Writer dest, int count, String nl)
+            throws IOException {
+        for (; count >= 2; count -= 2) {
+            dest.write(nl);
+            dest.write("<p>");
         }
+        if (count > 0)
+            dest.write(nl);
     }
 }
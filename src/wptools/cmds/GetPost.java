@@ -6,13 +6,19 @@
 
 package wptools.cmds;
 
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.cli.CommandLine;
@@ -36,12 +42,12 @@ public class GetPost {
 	
 	private static final HeaderFormatter FORMAT_LOCAL = new HeaderFormatter() {
 		public String format(Object value) {
-			return Misc.formatDate((Date) value, "J");
+			return DateCodec.formatLocal((Date) value);
 		}
 	};
 	private static final HeaderFormatter FORMAT_UTC = new HeaderFormatter() {
 		public String format(Object value) {
-			return Misc.formatDate((Date) value, "Z");
+			return DateCodec.formatUtc((Date) value);
 		}
 	};
 	private static final HeaderFormatter FORMAT_TERMS = new HeaderFormatter() {
@@ -87,7 +93,7 @@ public class GetPost {
 		"post_title", "terms", "post_content", "post_author" };
 	
 	// All blog entry fields
-	private static final String[] ALL_FIELDS = { "post_id", "post_title",
+	static final String[] ALL_FIELDS = { "post_id", "post_title",
 		"post_date", "post_date_gmt", "post_modified", "post_modified_gmt",
 		"post_status", "post_type", "post_format", "post_name",
 		"post_author", "post_password", "post_excerpt", "post_content",
@@ -99,12 +105,17 @@ public class GetPost {
 	
 	private static final String CONTENT_FIELD = "post_content";
 	private static final String[] CONTENT_FIELD_ONLY = { CONTENT_FIELD };
+	private static final String MODIFIED_FIELD = "post_modified_gmt";
+	private static final String[] MODIFIED_FIELD_ONLY = { MODIFIED_FIELD };
 	
 	private static CommandLine cmdLine;
 	private static Properties props;
 	private static int estat;
 	private static String password;
 	private static PrintStream out;
+	private static Writer outWriter;
+	private static Spool spool;
+	private static boolean streamed;
 	
 	public static void main(String[] args) {
 		// Define our name
@@ -118,8 +129,12 @@ public class GetPost {
 		options.addOption("properties");
 		options.addOption("group");
 		options.addOption("bare");
+		options.addOption("batch");
+		options.addOption("parallel");
 		options.addOption("f", "full", false, "Display all headers.");
 		options.addOption("o", "output", true, "Write output to specified file.");
+		options.addOption(null, "cache", false, "Cache posts locally, only fetching changed ones.");
+		options.addOption(null, "offline", false, "Get posts from local cache only.");
 		cmdLine = options.parse(args);
 
 		// Reject attempts to get nothing
@@ -130,12 +145,15 @@ public class GetPost {
 		props = new Properties(cmdLine);
 		
 		// Try to get a "connection" (actually just a client object; HTTP is connectionless).
+		// Offline, there is nothing to connect to (the URL only names the cache).
+		boolean offline = cmdLine.hasOption("offline");
 		XmlRpcClient conn = null;
-		String url = props.get("url");
-		try {
-			conn = Misc.xmlRpcService(url, props, cmdLine);
-		} catch (MalformedURLException e) {
-			Misc.die(e.getMessage());
+		if (!offline) {
+			try {
+				conn = Misc.xmlRpcService(props.get("url"), props, cmdLine);
+			} catch (MalformedURLException e) {
+				Misc.die(e.getMessage());
+			}
 		}
 		
 		// Determine output stream.
@@ -144,16 +162,21 @@ public class GetPost {
 			out = System.out;
 		} else {
 			try {
-				out = new PrintStream(fileName);
+				out = new PrintStream(Misc.getFile(fileName));
 			} catch (FileNotFoundException|SecurityException e) {
 				Misc.die(e.getMessage());
 			}
 		}
 
-		// List the posts
+		outWriter = new BufferedWriter(new OutputStreamWriter(out));
+		spool = new Spool();
+
+		// Sort out which post IDs are valid
 		estat = 0;
-		password = Misc.getPassword();
-		boolean needblank = false;
+		password = offline ? null : Misc.getPassword();
+		final List<String> rpostids = new ArrayList<String>();
+		List<Integer> postids = new ArrayList<Integer>();
+		List<Object[]> calls = new ArrayList<Object[]>();
 		for (String rpostid : cmdLine.getArgs()) {
 			int postid = 0;
 			try {
@@ -163,48 +186,236 @@ public class GetPost {
 				estat = 1;
 				continue;
 			}
-			if (needblank)
-				System.out.println();
-			else
-				needblank = true;
-			try {
-			    listPost(conn, postid);
-			} catch (XmlRpcException e) {
-				Misc.error(rpostid + " - " + e.getMessage());
-				estat = 1;
-			}
+			rpostids.add(rpostid);
+			postids.add(postid);
+			if (!offline)
+				calls.add(postParams(postid));
+		}
+
+		// Go through the cache if asked to.
+		if (offline || cmdLine.hasOption("cache") ||
+				(props.hasKey("cache") && Boolean.parseBoolean(props.get("cache")))) {
+			listCached(conn, rpostids, postids, offline);
+			Misc.exit(estat);
+		}
+
+		// List the posts. Unless running in parallel (which needs results
+		// buffered to put them in order), stream each post as it arrives.
+		MultiCall multi = new MultiCall(conn, props);
+		int parallel = OrderedPipeline.getParallelism(props);
+		if (parallel == 1) {
+			multi.streamAll("wp.getPost", calls, new MultiCall.StreamCallback() {
+				public void begin(int index) {
+					if (index > 0)
+						System.out.println();
+					streamed = false;
+				}
+				public Writer member(int index, String name) {
+					if (!CONTENT_FIELD.equals(name))
+						return null;
+					streamed = true;
+					return cmdLine.hasOption("bare") ? outWriter : spool;
+				}
+				public void done(int index, Object result, XmlRpcException fault) {
+					if (fault == null) {
+						listStreamedPost(Misc.asStruct(result));
+					} else {
+						Misc.error(rpostids.get(index) + " - " + fault.getMessage());
+						estat = 1;
+					}
+				}
+			});
+		} else {
+			multi.executeAll("wp.getPost", calls, parallel,
+					new MultiCall.Callback() {
+						public void done(int index, Object result, XmlRpcException fault) {
+							if (index > 0)
+								System.out.println();
+							if (fault == null) {
+								listPost(Misc.asStruct(result));
+							} else {
+								Misc.error(rpostids.get(index) + " - " + fault.getMessage());
+								estat = 1;
+							}
+						}
+					});
 		}
 		
 		// AMF...
-		System.exit(estat);
+		Misc.exit(estat);
 	}
 	
 	/**
-	 * Given a post ID, list a post.
+	 * List posts, using the local cache. Cached posts are revalidated
+	 * (unless offline) by fetching just their modification times; only
+	 * posts that have changed (or were never cached) are fetched in
+	 * full. Work is done a batch at a time.
+	 * @param conn     Client.
+	 * @param rpostids Post IDs, as specified.
+	 * @param postids  Post IDs.
+	 * @param offline  True to use only what is cached.
+	 */
+	private static void listCached(XmlRpcClient conn, List<String> rpostids,
+			List<Integer> postids, boolean offline) {
+		PostCache cache = new PostCache(PostCache.getRoot(props), props.get("url"),
+			props.get("blogid"));
+		MultiCall multi = new MultiCall(conn, props);
+		String[] fields = modeFields();
+		int size = multi.getBatchSize();
+		int nposts = postids.size();
+		for (int start = 0; start < nposts; start += size) {
+			// Each slot ends up with a post or an exception.
+			Object[] posts = new Object[Math.min(size, nposts - start)];
+
+			// See what's cached, and if it's still current.
+			List<Object[]> calls = new ArrayList<Object[]>();
+			List<Integer> slots = new ArrayList<Integer>();
+			for (int i = 0; i < posts.length; i++) {
+				posts[i] = cache.get(postids.get(start + i));
+				if (posts[i] == null && offline) {
+					posts[i] = new XmlRpcException("not in cache");
+				} else if (posts[i] != null && !offline) {
+					calls.add(postParams(postids.get(start + i), MODIFIED_FIELD_ONLY));
+					slots.add(i);
+				}
+			}
+			Object[] results = multi.execute("wp.getPost", calls);
+			for (int j = 0; j < results.length; j++) {
+				int i = slots.get(j);
+				if (results[j] instanceof XmlRpcException) {
+					posts[i] = results[j];
+				} else {
+					Object cached = Misc.asStruct(posts[i]).get(MODIFIED_FIELD);
+					Object current = Misc.asStruct(results[j]).get(MODIFIED_FIELD);
+					if (cached == null || !cached.equals(current))
+						posts[i] = null;
+				}
+			}
+
+			// Fetch (and cache) anything missing or stale.
+			calls.clear();
+			slots.clear();
+			for (int i = 0; i < posts.length; i++) {
+				if (posts[i] == null) {
+					calls.add(postParams(postids.get(start + i), ALL_FIELDS));
+					slots.add(i);
+				}
+			}
+			results = multi.execute("wp.getPost", calls);
+			for (int j = 0; j < results.length; j++) {
+				int i = slots.get(j);
+				posts[i] = results[j];
+				if (results[j] instanceof XmlRpcException)
+					continue;
+				try {
+					cache.put(postids.get(start + i), Misc.asStruct(results[j]));
+				} catch (IOException e) {
+					Misc.error("warning - unable to cache: " + e.getMessage());
+				}
+			}
+
+			// List them.
+			for (int i = 0; i < posts.length; i++) {
+				if (start + i > 0)
+					System.out.println();
+				if (posts[i] instanceof XmlRpcException) {
+					Misc.error(rpostids.get(start + i) + " - " +
+						((XmlRpcException) posts[i]).getMessage());
+					estat = 1;
+				} else {
+					listPost(project(Misc.asStruct(posts[i]), fields));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Given a post ID, return the parameters to wp.getPost for it.
 	 * @param postid  Post ID.
 	 */
-	private static void listPost(XmlRpcClient conn, int postid) throws XmlRpcException {
-		String[] fields = null;
+	private static Object[] postParams(int postid) {
+		return postParams(postid, modeFields());
+	}
+	
+	private static Object[] postParams(int postid, String[] fields) {
+		return new Object[]{ props.get("blogid"),
+			props.get("username"), password, postid, fields };
+	}
+	
+	/**
+	 * Get the fields we are to display.
+	 */
+	private static String[] modeFields() {
 		if (cmdLine.hasOption("bare"))
-			fields = CONTENT_FIELD_ONLY;
+			return CONTENT_FIELD_ONLY;
 		else if (cmdLine.hasOption("full"))
-			fields = ALL_FIELDS;
+			return ALL_FIELDS;
 		else
-			fields = STD_FIELDS;
-		Object[] params = new Object[]{ props.get("blogid"),
-			props.get("username"), password, postid, fields };
-		Map<String, Object> result = (Map<String, Object>) conn.execute("wp.getPost", params);
-		
-		if (!cmdLine.hasOption("bare"))
-			printHeaders(result);
-		out.println(result.get(CONTENT_FIELD));
+			return STD_FIELDS;
+	}
+	
+	/**
+	 * Return only the specified fields of a post.
+	 */
+	private static Map<String, Object> project(Map<String, Object> post, String[] fields) {
+		Map<String, Object> ret = new HashMap<String, Object>();
+		for (String field : fields) {
+			if (post.containsKey(field))
+				ret.put(field, post.get(field));
+		}
+		return ret;
+	}
+	
+	/**
+	 * List a post.
+	 * @param result  Result as returned from WordPress.
+	 */
+	private static void listPost(Map<String, Object> result) {
+		if (cmdLine.hasOption("bare"))
+			out.println(result.get(CONTENT_FIELD));
+		else
+			printPost(out, result);
+	}
+	
+	/**
+	 * List a post whose content (if any) has been streamed to either the
+	 * output or the spool.
+	 * @param result  Result as returned from WordPress, minus content.
+	 */
+	private static void listStreamedPost(Map<String, Object> result) {
+		if (!streamed) {
+			listPost(result);
+			return;
+		}
+		try {
+			if (!cmdLine.hasOption("bare")) {
+				printHeaders(out, result);
+				spool.copyTo(outWriter);
+				spool.close();
+			}
+			outWriter.flush();
+		} catch (IOException e) {
+			Misc.die(e.getMessage());
+		}
+		out.println();
+	}
+	
+	/**
+	 * Print a post, headers and all.
+	 * @param dest    Where to print it.
+	 * @param result  Result as returned from WordPress.
+	 */
+	static void printPost(PrintStream dest, Map<String, Object> result) {
+		printHeaders(dest, result);
+		dest.println(result.get(CONTENT_FIELD));
 	}
 	
 	/**
 	 * Print the post headers.
+	 * @param dest    Where to print them.
 	 * @param result  Result as returned from WordPress.
 	 */
-	private static void printHeaders(Map<String, Object> result) {
+	static void printHeaders(PrintStream dest, Map<String, Object> result) {
 		for (String key : ALL_FIELDS) {
 			if (!result.containsKey(key) || key.equals(CONTENT_FIELD))
 				continue;
@@ -216,9 +427,9 @@ public class GetPost {
 				if (hval instanceof String && ((String) hval).length() == 0)
 					hval = "(none)";
 			}
-			out.println(headerName(key) + ": " + hval.toString());
+			dest.println(headerName(key) + ": " + hval.toString());
 		}
-		out.println();
+		dest.println();
 	}
 	
 	/**
@@ -226,7 +437,7 @@ public class GetPost {
 	 * @param internal The internal name that WordPress uses.
 	 * @return         The name we print.
 	 */
-	private static String headerName(String internal) {
+	static String headerName(String internal) {
 		// Check in the exceptions map first.
 		String exc = NAME_EXCEPTIONS.get(internal);
 		if (exc != null)
@@ -0,0 +1,540 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.cmds;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+
+import wptools.lib.*;
+
+/**
+ * Create or update many posts at once, from either a directory of files
+ * (each some headers, a blank line, and the post content) or a file of
+ * newline-delimited JSON such as ExportPosts writes. Several calls are
+ * kept in flight at once, and each item is recorded in a journal as it
+ * completes, so an interrupted import can simply be run again.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class ImportPosts {
+	private static CommandLine cmdLine;
+	private static Properties props;
+	private static NewEditOptions fieldParser;
+	private static Journal journal;
+	private static XmlRpcClient client;
+	private static String url;
+	private static int blogid;
+	private static String username;
+	private static String password;
+	private static String source;
+	private static int estat;
+	private static int imported;
+	private static int skipped;
+
+	// Calls kept in flight if not otherwise specified
+	private static final int DEFAULT_PARALLEL = 4;
+
+	// Default journal names
+	private static final String DIR_JOURNAL = ".import-journal";
+	private static final String FILE_JOURNAL_SUFFIX = ".journal";
+
+	// Custom field that tags each post we create with the item it came
+	// from, and the fields we need to find it again.
+	private static final String IMPORT_FIELD = "wptools_import";
+	private static final String[] RECOVERY_FIELDS = { "post_id", "custom_fields" };
+
+	// Journal value marking an item as started but not finished, followed
+	// by the time it was started.
+	private static final String PENDING = "pending ";
+
+	// Journal value marking an item as finished, followed by the post ID
+	// (older journals have just the ID). Anything else (e.g. a record cut
+	// short by a crash) is treated as pending, so the item is looked for
+	// before being sent again.
+	private static final String DONE = "done ";
+	private static final Pattern DONE_VALUE = Pattern.compile("(done )?[0-9]+");
+
+	// How far before the earliest started item to look for posts it may
+	// have created, to allow for our clock and the server's disagreeing.
+	private static final long RECOVERY_MARGIN = 24L * 60L * 60L * 1000L;
+
+	// Posts we created, by item tag, for each blog and post type (see
+	// recover). Only good for one run, since the blog may differ next time.
+	private static Map<String, Map<String, String>> created;
+
+	// Fields ExportPosts writes that cannot be set.
+	private static final List<String> READ_ONLY = Arrays.asList("post_modified",
+		"post_modified_gmt", "post_mime_type", "link", "guid");
+
+	// Fields that are integers but which WordPress hands us as strings.
+	private static final List<String> INT_FIELDS = Arrays.asList("post_author",
+		"post_parent", "post_thumbnail");
+
+	/**
+	 * One post to create or update.
+	 */
+	private static class Item {
+		public String key;
+		public Integer postid;
+		public Map<String, Object> content;
+
+		public Item(String key) {
+			this.key = key;
+			this.postid = null;
+			this.content = new HashMap<String, Object>();
+		}
+	}
+
+	public static void main(String[] args) {
+		// Define our name
+		Misc.setMyName("ImportPosts");
+
+		// Parse command-line options
+		Options options = new Options();
+		options.addOption("url");
+		options.addOption("username");
+		options.addOption("blogid");
+		options.addOption("properties");
+		options.addOption("group");
+		options.addOption("parallel");
+		options.addOption("j", "journal", true, "Journal file to use.");
+		options.addOption(null, "new", false, "Always create new posts, ignoring any post IDs.");
+		cmdLine = options.parse(args);
+		fieldParser = new NewEditOptions();
+
+		// Expect a directory or file
+		if (cmdLine.getArgs().length != 1)
+			Misc.die("expecting a directory or file to import", 2);
+		File sfile = Misc.getFile(cmdLine.getArgs()[0]);
+		if (!sfile.exists())
+			Misc.die(sfile + " - not found");
+		source = sfile.getName();
+
+		// Load properties from wherever (file or command line)
+		props = new Properties(cmdLine);
+		int parallel = OrderedPipeline.getParallelism(props, DEFAULT_PARALLEL);
+
+		// Get client object
+		url = props.get("url");
+		username = props.get("username");
+		blogid = props.getInt("blogid");
+		try {
+			client = Misc.xmlRpcService(url, props, cmdLine);
+		} catch (MalformedURLException e) {
+			Misc.die(e.getMessage());
+		}
+		password = Misc.getPassword();
+
+		// Open the journal
+		File jfile = null;
+		if (cmdLine.hasOption("journal"))
+			jfile = Misc.getFile(cmdLine.getOptionValue("journal"));
+		else if (sfile.isDirectory())
+			jfile = new File(sfile, DIR_JOURNAL);
+		else
+			jfile = new File(sfile.getPath() + FILE_JOURNAL_SUFFIX);
+		try {
+			journal = new Journal(jfile);
+		} catch (IOException e) {
+			Misc.die(e.getMessage());
+		}
+
+		// Results come back in input order, each either a message to
+		// print or the exception that made the item fail.
+		estat = imported = skipped = 0;
+		created = new HashMap<String, Map<String, String>>();
+		final OrderedPipeline<Object> pipe = new OrderedPipeline<Object>(parallel,
+			new OrderedPipeline.Sink<Object>() {
+				public void accept(Object result) {
+					if (result instanceof Exception) {
+						Misc.error(((Exception) result).getMessage());
+						estat = 1;
+					} else {
+						System.out.println(result);
+						imported++;
+					}
+				}
+			});
+		ItemSink sink = new ItemSink() {
+			public void accept(final Item item) {
+				pipe.submit(new Callable<Object>() {
+					public Object call() {
+						return send(item);
+					}
+				});
+			}
+		};
+		if (sfile.isDirectory())
+			readDirectory(sfile, jfile, sink);
+		else
+			readJson(sfile, sink);
+		pipe.finish();
+		try {
+			journal.close();
+		} catch (IOException e) {
+			Misc.die(e.getMessage());
+		}
+
+		// Print a summary.
+		System.out.format("%d post%s imported", imported, imported == 1 ? "" : "s");
+		if (skipped > 0)
+			System.out.format(", %d already done", skipped);
+		System.out.println(".");
+		Misc.exit(estat);
+	}
+
+	/**
+	 * Create or update a post, and record in the journal that we did.
+	 * New posts are recorded as pending first, and tagged so that if we
+	 * are killed before learning the new post's ID, we can find it again.
+	 * @return        Message to print, or the exception that occurred.
+	 */
+	private static Object send(Item item) {
+		try {
+			String postid = null;
+			String verb = null;
+			if (item.postid == null) {
+				tag(item);
+				journal.record(item.key, PENDING + System.currentTimeMillis());
+				postid = (String) client.execute("wp.newPost",
+					new Object[] { blogid, username, password, item.content });
+				verb = "created";
+			} else {
+				client.execute("wp.editPost", new Object[] { blogid, username,
+					password, item.postid, item.content });
+				postid = item.postid.toString();
+				verb = "edited";
+			}
+			journal.record(item.key, DONE + postid);
+			return item.key + ": post " + postid + " " + verb + ".";
+		} catch (XmlRpcException|IOException e) {
+			return new Exception(item.key + " - " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Add our custom field to a new post.
+	 */
+	private static void tag(Item item) {
+		Map<String, Object> field = new HashMap<String, Object>();
+		field.put("key", IMPORT_FIELD);
+		field.put("value", tagValue(item.key));
+		Object[] fields = new Object[] { field };
+		Object old = item.content.get("custom_fields");
+		if (old instanceof Object[]) {
+			Object[] ofields = (Object[]) old;
+			fields = Arrays.copyOf(ofields, ofields.length + 1);
+			fields[ofields.length] = field;
+		}
+		item.content.put("custom_fields", fields);
+	}
+
+	private static String tagValue(String key) {
+		return source + "/" + key;
+	}
+
+	/**
+	 * Decide what to do with an item, given what the journal says.
+	 * @return        True if the item still needs to be sent.
+	 */
+	private static boolean needed(Item item) {
+		String state = journal.get(item.key);
+		if (state == null)
+			return true;
+		if (!isDone(state)) {
+			String postid = recover(item);
+			if (postid == null)
+				return true;
+			try {
+				journal.record(item.key, DONE + postid);
+			} catch (IOException e) {
+				Misc.die(e.getMessage());
+			}
+			System.out.println(item.key + ": post " + postid + " already created.");
+		}
+		skipped++;
+		return false;
+	}
+
+	/**
+	 * Find the post (if any) created for an item that was started but
+	 * not finished last time. The first time this is needed for a post
+	 * type, we scan posts of that type modified since the earliest such
+	 * item was started, looking for our custom field.
+	 * @return        Post ID, or null if none was created.
+	 */
+	private static String recover(Item item) {
+		Object rtype = item.content.get("post_type");
+		String type = rtype == null ? "post" : rtype.toString();
+		String ckey = url + "\n" + blogid + "\n" + type;
+		Map<String, String> found = created.get(ckey);
+		if (found == null) {
+			found = new HashMap<String, String>();
+			created.put(ckey, found);
+			// If some item's start time was lost, it could have been
+			// started any time, so look at everything.
+			long earliest = Long.MAX_VALUE;
+			boolean unknown = false;
+			for (String value : journal.values()) {
+				if (isDone(value))
+					continue;
+				Long since = pendingSince(value);
+				if (since == null)
+					unknown = true;
+				else
+					earliest = Math.min(earliest, since);
+			}
+			if (earliest == Long.MAX_VALUE)
+				earliest = System.currentTimeMillis();
+			PostPager pager = new PostPager(client, blogid, username, password,
+				true, RECOVERY_FIELDS, PostPager.getPageSize(props), 0);
+			pager.addFilter("post_type", type);
+			pager.addFilter("post_status", "any");
+			if (!unknown)
+				pager.stopBefore(new Date(earliest - RECOVERY_MARGIN));
+			final Map<String, String> ffound = found;
+			try {
+				pager.each(new PostPager.Sink() {
+					public void accept(Map<String, Object> post) {
+						Object fields = post.get("custom_fields");
+						if (!(fields instanceof Object[]))
+							return;
+						for (Object ofield : (Object[]) fields) {
+							Map<String, Object> field = Misc.asStruct(ofield);
+							if (IMPORT_FIELD.equals(field.get("key")))
+								ffound.put(String.valueOf(field.get("value")),
+									post.get("post_id").toString());
+						}
+					}
+				});
+			} catch (XmlRpcException e) {
+				Misc.die(e.getMessage());
+			}
+		}
+		return found.get(tagValue(item.key));
+	}
+
+	/**
+	 * Determine if a journal value says an item is finished.
+	 */
+	private static boolean isDone(String state) {
+		return state != null && DONE_VALUE.matcher(state).matches();
+	}
+
+	/**
+	 * Get when a pending item was started.
+	 * @return        Time, or null if not known.
+	 */
+	private static Long pendingSince(String state) {
+		if (!state.startsWith(PENDING))
+			return null;
+		try {
+			return Long.valueOf(state.substring(PENDING.length()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Where items read from the input go.
+	 */
+	private interface ItemSink {
+		public void accept(Item item);
+	}
+
+	/**
+	 * Read items from a directory of files, in name order.
+	 */
+	private static void readDirectory(File dir, File jfile, ItemSink sink) {
+		String[] names = dir.list();
+		if (names == null)
+			Misc.die("unable to read " + dir);
+		Arrays.sort(names);
+		for (String name : names) {
+			File file = new File(dir, name);
+			if (name.startsWith(".") || !file.isFile() || file.equals(jfile))
+				continue;
+			String state = journal.get(name);
+			if (isDone(state)) {
+				skipped++;
+				continue;
+			}
+			try {
+				Item item = readFragment(file);
+				if (needed(item))
+					sink.accept(item);
+			} catch (IOException e) {
+				Misc.error(e.getMessage());
+				estat = 1;
+			} catch (ParseException e) {
+				Misc.error(name + " - " + e.getMessage());
+				estat = 1;
+			}
+		}
+	}
+
+	/**
+	 * Read a file of headers, a blank line, and post content. Headers
+	 * are named like the options to NewPost and EditPost, plus "ID" to
+	 * specify an existing post to update.
+	 */
+	private static Item readFragment(File file) throws IOException, ParseException {
+		String text = new String(Files.readAllBytes(file.toPath()));
+		Item ret = new Item(file.getName());
+		int pos = 0;
+		while (true) {
+			int nl = text.indexOf('\n', pos);
+			if (nl < 0)
+				throw new ParseException("no blank line after headers", pos);
+			String line = text.substring(pos, nl);
+			if (line.endsWith("\r"))
+				line = line.substring(0, line.length() - 1);
+			pos = nl + 1;
+			if (line.isEmpty())
+				break;
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				throw new ParseException("invalid header: " + line, pos);
+			String name = line.substring(0, colon).trim().toLowerCase();
+			String value = line.substring(colon + 1).trim();
+			if (name.equals("id"))
+				setPostId(ret, value);
+			else if (Arrays.asList(NewEditOptions.FIELDS).contains(name))
+				fieldParser.addToMap(ret.content, name, value);
+			else
+				throw new ParseException("unknown header: " + name, pos);
+		}
+		ret.content.put("post_content", text.substring(pos));
+		return ret;
+	}
+
+	/**
+	 * Read items from a file of newline-delimited JSON.
+	 */
+	private static void readJson(File file, ItemSink sink) {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			int lineno = 0;
+			while ((line = in.readLine()) != null) {
+				lineno++;
+				if (line.trim().isEmpty())
+					continue;
+				String key = "line " + lineno;
+				String state = journal.get(key);
+				if (isDone(state)) {
+					skipped++;
+					continue;
+				}
+				try {
+					Item item = jsonItem(key, line);
+					if (needed(item))
+						sink.accept(item);
+				} catch (ParseException e) {
+					Misc.error(key + " - " + e.getMessage());
+					estat = 1;
+				}
+			}
+		} catch (IOException e) {
+			Misc.die(e.getMessage());
+		}
+	}
+
+	/**
+	 * Turn a line of JSON into an item. Field names are those WordPress
+	 * uses; fields that cannot be set are ignored, and "terms" as
+	 * ExportPosts writes them are turned into term names.
+	 */
+	private static Item jsonItem(String key, String line) throws ParseException {
+		Object parsed = JsonReader.parse(line);
+		if (!(parsed instanceof Map))
+			throw new ParseException("expecting an object", 0);
+		Map<String, Object> post = Misc.asStruct(parsed);
+		Item ret = new Item(key);
+		for (Map.Entry<String, Object> e : post.entrySet()) {
+			String name = e.getKey();
+			Object value = e.getValue();
+			if (value == null || READ_ONLY.contains(name)) {
+				continue;
+			} else if (name.equals("post_id")) {
+				setPostId(ret, value.toString());
+			} else if (name.equals("post_date")) {
+				// Only used if there's no GMT date; see NewEditOptions.
+				if (!post.containsKey("post_date_gmt"))
+					fieldParser.addToMap(ret.content, "date", value.toString());
+			} else if (name.equals("post_date_gmt")) {
+				fieldParser.addToMap(ret.content, "date-gmt", value.toString());
+			} else if (name.equals("terms") && value instanceof Object[]) {
+				ret.content.put("terms_names", termNames((Object[]) value));
+			} else if (INT_FIELDS.contains(name) && value instanceof String) {
+				try {
+					ret.content.put(name, Integer.valueOf((String) value));
+				} catch (NumberFormatException ex) {
+					throw new ParseException("invalid " + name + ": " + value, 0);
+				}
+			} else {
+				ret.content.put(name, value);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Turn an array of term structs into a map of taxonomies to arrays
+	 * of term names.
+	 */
+	private static Map<String, Object[]> termNames(Object[] terms) throws ParseException {
+		Map<String, List<Object>> rret = new HashMap<String, List<Object>>();
+		for (Object oterm : terms) {
+			if (!(oterm instanceof Map))
+				throw new ParseException("invalid terms", 0);
+			Map<String, Object> term = Misc.asStruct(oterm);
+			Object taxonomy = term.get("taxonomy");
+			Object name = term.get("name");
+			if (taxonomy == null || name == null)
+				throw new ParseException("invalid terms", 0);
+			String tax = taxonomy.toString();
+			if (!rret.containsKey(tax))
+				rret.put(tax, new ArrayList<Object>());
+			rret.get(tax).add(name.toString());
+		}
+		Map<String, Object[]> ret = new HashMap<String, Object[]>();
+		for (Map.Entry<String, List<Object>> e : rret.entrySet())
+			ret.put(e.getKey(), e.getValue().toArray());
+		return ret;
+	}
+
+	private static void setPostId(Item item, String value) throws ParseException {
+		if (cmdLine.hasOption("new"))
+			return;
+		try {
+			item.postid = Integer.valueOf(value);
+		} catch (NumberFormatException e) {
+			throw new ParseException("invalid post ID: " + value, 0);
+		}
+	}
+}
@@ -9,15 +9,16 @@ package wptools.cmds;
 import wptools.lib.*;
 import java.net.MalformedURLException;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.regex.Pattern;
 import org.apache.commons.cli.CommandLine;
 import org.apache.xmlrpc.XmlRpcException;
 import org.apache.xmlrpc.client.XmlRpcClient;
 
 /**
  * List some posts in reverse chronological order. The scope of the
- * listing is by default limited.
+ * listing is by default limited. Given several groups (or all of them),
+ * the posts of all their blogs are listed together, newest first.
  * 
  * @author David Barts <david.w.barts@gmail.com>
  *
@@ -26,17 +27,16 @@ public class ListPosts {
 	private static CommandLine cmdLine;
 	private static Properties props;
 	
-	// Standard filter we apply to listings when retrieving them
-	private static Map<String, Object> stdFilter =
-		new HashMap<String, Object>() {{
-			put("orderby", "date");
-			put("order", "DESC");
-		}};
-	
 	// Standard fields we retrieve
 	private static final String[] STD_FIELDS = { "post_id", "post_title",
 		"post_modified", "post_author" };
 
+	// Number of posts listed by default (the same as wp.getPosts's default)
+	private static final int DEFAULT_COUNT = 10;
+
+	// Separates the names of several groups
+	private static final Pattern GROUP_SEP = Pattern.compile("\\s*,\\s*");
+
 	public static void main(String[] args) {
 		// Define our name
 		Misc.setMyName("ListPosts");
@@ -49,70 +49,145 @@ public class ListPosts {
 		options.addOption("properties");
 		options.addOption("group");
 		options.addOption("bare");
-		options.addOption("c", "count", true, "Maximum return result count.");
+		options.addOption("page-size");
+		options.addOption("c", "count", true, "Maximum return result count, or \"all\".");
+		options.addOption(null, "all-groups", false, "List the posts of all groups' blogs together.");
 		cmdLine = options.parse(args);
 		
 		// Load properties from wherever (file or command line)
 		props = new Properties(cmdLine);
+
+		// Several groups (a comma-separated list) or all of them?
+		String[] groups = null;
+		if (cmdLine.hasOption("all-groups")) {
+			if (cmdLine.hasOption("group"))
+				Misc.die("--all-groups and --group are mutually exclusive", 2);
+			groups = props.getGroups();
+			if (groups.length == 0)
+				Misc.die("no groups defined");
+		} else if (cmdLine.hasOption("group") && cmdLine.getOptionValue("group").indexOf(',') >= 0) {
+			groups = GROUP_SEP.split(cmdLine.getOptionValue("group").trim());
+		}
 		
+		// If a count was specified, use it.
+		int count = DEFAULT_COUNT;
+		if (cmdLine.hasOption("count")) {
+			String rcount = cmdLine.getOptionValue("count");
+			if ("all".equalsIgnoreCase(rcount)) {
+				count = 0;
+			} else {
+				try {
+					count = Integer.parseInt(rcount);
+				} catch (NumberFormatException e) {
+					Misc.die("illegal count: " + rcount);
+				}
+				if (count <= 0)
+					Misc.die("illegal count: " + rcount);
+			}
+		}
+
+		if (groups != null) {
+			listMerged(groups, count);
+			return;
+		}
+
 		// Try to get a "connection" (actually just a client object; HTTP is connectionless).
 		XmlRpcClient conn = null;
-		String url = props.get("url");
+		final String url = props.get("url");
 		try {
 			conn = Misc.xmlRpcService(url, props, cmdLine);
 		} catch (MalformedURLException e) {
 			Misc.die(e.getMessage());
 		}
-		
-		// If a count was specified, add it.
-		if (cmdLine.hasOption("count")) {
-			String rcount = cmdLine.getOptionValue("count");
-			int count = 0;
-			try {
-				count = Integer.parseInt(rcount);
-			} catch (NumberFormatException e) {
-				Misc.die("illegal count: " + rcount);
-			}
-			stdFilter.put("number", count);
-		}
 
 		// Issue query
-		int blogid = props.getInt("blogid");
-		Object[] params = new Object[] { blogid,
-			props.get("username"), Misc.getPassword(), stdFilter,
-			STD_FIELDS };
-		Object[] results = null;
+		final int blogid = props.getInt("blogid");
+		final PostPager pager = new PostPager(conn, blogid, props.get("username"),
+			Misc.getPassword(), false, STD_FIELDS,
+			PostPager.getPageSize(props), count);
 		try {
-			results = (Object[]) conn.execute("wp.getPosts", params);
+			pager.each(new PostPager.Sink() {
+				public void accept(Map<String, Object> result) {
+					// Print a header (unless we're in bare mode) before the
+					// first result.
+					if (!cmdLine.hasOption("bare") && pager.getReturned() == 1) {
+						System.out.format("Entries in blog %d at %s :%n", blogid, url);
+						System.out.format("%8s %8s %-40s %s%n", "ID", "AUTHOR",
+							"TITLE", "TIME");
+					}
+					System.out.format("%8s %8s %-40s %s%n", result.get("post_id"),
+						result.get("post_author"),
+						Misc.truncateString((String) result.get("post_title"), 40),
+						DateCodec.formatLocal((Date) result.get("post_modified")));
+				}
+			});
 		} catch (XmlRpcException e) {
 			Misc.die(e.getMessage());
 		}
 		
 		// Issue warning and exit now if nothing returned
-		if (results.length == 0) {
+		if (pager.getReturned() == 0) {
 			Misc.die("warning - no results returned", 0);
 		}
 		
-		// Print a header unless we're in bare mode.
-		if (!cmdLine.hasOption("bare")) {
-			System.out.format("Entries in blog %d at %s :%n", blogid, url);
-			System.out.format("%8s %8s %-40s %s%n", "ID", "AUTHOR", "TITLE",
-				"TIME");
-		}
-		
-		// List the results
-		for (Object rresult : results) {
-			Map<String, Object> result = (Map<String, Object>) rresult;
-			System.out.format("%8s %8s %-40s %s%n", result.get("post_id"),
-				result.get("post_author"),
-				Misc.truncateString((String) result.get("post_title"), 40),
-				Misc.formatDate((Date) result.get("post_modified"), "J"));
-		}
-		
 		// Print a footer unless we're in bare mode.
 		if(!cmdLine.hasOption("bare")) {
-			int n = results.length;
+			int n = pager.getReturned();
 			System.out.format("%d entr%s listed.%n", n, n == 1 ? "y" : "ies");
 		}
 	}
+
+	/**
+	 * List the posts of several groups' blogs, merged into one listing.
+	 * All are read at once, and only a few posts from each are held in
+	 * memory at a time.
+	 * @param groups  Groups.
+	 * @param count   Maximum number of posts, or 0 for all.
+	 */
+	private static void listMerged(String[] groups, int count) {
+		String password = Misc.getPassword();
+		int pageSize = PostPager.getPageSize(props.forGroup(null));
+		PostMerger merger = new PostMerger();
+		int width = "BLOG".length();
+		for (String group : groups) {
+			Properties gprops = props.forGroup(group);
+			XmlRpcClient conn = null;
+			try {
+				conn = Misc.xmlRpcService(gprops.get("url"), gprops, cmdLine);
+			} catch (MalformedURLException e) {
+				Misc.die(group + " - " + e.getMessage());
+			}
+			// Blogs may be in different time zones, so order by UTC.
+			merger.add(group, new PostPager(conn, gprops.getInt("blogid"),
+				gprops.get("username"), password, true, STD_FIELDS,
+				pageSize, count));
+			width = Math.max(width, group.length());
+		}
+
+		final String format = "%-" + width + "s %8s %8s %-40s %s%n";
+		if (!cmdLine.hasOption("bare")) {
+			System.out.format("Entries in %d blogs:%n", groups.length);
+			System.out.format(format, "BLOG", "ID", "AUTHOR", "TITLE", "TIME");
+		}
+		final int[] estat = { 0 };
+		int n = merger.each(new PostMerger.Sink() {
+			public void accept(String name, Map<String, Object> result) {
+				System.out.format(format, name, result.get("post_id"),
+					result.get("post_author"),
+					Misc.truncateString((String) result.get("post_title"), 40),
+					DateCodec.formatUtc((Date) result.get("post_modified_gmt")));
+			}
+			public void failed(String name, Exception e) {
+				System.out.flush();
+				Misc.error(name + " - " + e.getMessage());
+				estat[0] = 1;
+			}
+		}, count);
+
+		if (n == 0)
+			Misc.die("warning - no results returned", estat[0]);
+		if (!cmdLine.hasOption("bare"))
+			System.out.format("%d entr%s listed.%n", n, n == 1 ? "y" : "ies");
+		Misc.exit(estat[0]);
+	}
 }
@@ -0,0 +1,170 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.cmds;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+
+import wptools.lib.*;
+
+/**
+ * Search a blog's posts for words, using a local index (see SearchIndex),
+ * so searching needs no server. The index is brought up to date (by
+ * fetching only the posts changed since it last was) when asked.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class SearchPosts {
+	private static CommandLine cmdLine;
+	private static Properties props;
+
+	public static void main(String[] args) {
+		// Define our name
+		Misc.setMyName("SearchPosts");
+
+		// Parse command-line options
+		Options options = new Options();
+		options.addOption("url");
+		options.addOption("username");
+		options.addOption("blogid");
+		options.addOption("properties");
+		options.addOption("group");
+		options.addOption("bare");
+		options.addOption("page-size");
+		options.addOption("c", "count", true, "Maximum number of posts to list.");
+		options.addOption(null, "update", false, "Index posts changed since the last update first.");
+		options.addOption(null, "rebuild", false, "Rebuild the index from scratch first.");
+		options.addOption(null, "status", true, "Post status to index (default: publish).");
+		options.addOption(null, "type", true, "Post type to index (default: post).");
+		cmdLine = options.parse(args);
+
+		// Expect words to search for, unless just updating
+		boolean update = cmdLine.hasOption("update") || cmdLine.hasOption("rebuild");
+		List<String> words = Arrays.asList(cmdLine.getArgs());
+		if (words.isEmpty() && !update)
+			Misc.die("expecting words to search for", 2);
+
+		// If a count was specified, use it.
+		int count = 0;
+		if (cmdLine.hasOption("count")) {
+			String rcount = cmdLine.getOptionValue("count");
+			try {
+				count = Integer.parseInt(rcount);
+			} catch (NumberFormatException e) {
+				Misc.die("illegal count: " + rcount);
+			}
+			if (count <= 0)
+				Misc.die("illegal count: " + rcount);
+		}
+
+		// Load properties from wherever (file or command line)
+		props = new Properties(cmdLine);
+
+		// Open the index
+		String url = props.get("url");
+		int blogid = props.getInt("blogid");
+		File dir = SearchIndex.getDir(props);
+		SearchIndex index = null;
+		try {
+			index = new SearchIndex(dir);
+		} catch (IOException e) {
+			Misc.die(e.getMessage());
+		}
+		if (update)
+			update(index);
+		else if (!index.exists())
+			Misc.die("no index for blog " + blogid + " at " + url + " (use --update)");
+		if (words.isEmpty())
+			return;
+
+		// Search it
+		List<SearchIndex.Hit> hits = null;
+		try {
+			hits = index.search(words);
+		} catch (IOException e) {
+			Misc.die(e.getMessage());
+		}
+		if (hits.isEmpty())
+			Misc.die("warning - no matches", 0);
+		if (count > 0 && hits.size() > count)
+			hits = hits.subList(0, count);
+		if (!cmdLine.hasOption("bare")) {
+			System.out.format("Posts in blog %d at %s matching %s :%n", blogid, url,
+				String.join(" ", words));
+			System.out.format("%8s %-40s %s%n", "ID", "TITLE", "MODIFIED");
+		}
+		for (SearchIndex.Hit hit : hits)
+			System.out.format("%8d %-40s %s%n", hit.postId,
+				Misc.truncateString(hit.title, 40),
+				hit.modified == null ? "" : DateCodec.formatUtc(hit.modified));
+		if (!cmdLine.hasOption("bare")) {
+			int n = hits.size();
+			System.out.format("%d post%s found.%n", n, n == 1 ? "" : "s");
+		}
+	}
+
+	/**
+	 * Bring the index up to date, fetching the posts modified since the
+	 * newest one in it (or all posts, if rebuilding).
+	 * @param index     Index.
+	 */
+	private static void update(final SearchIndex index) {
+		XmlRpcClient conn = null;
+		try {
+			conn = Misc.xmlRpcService(props.get("url"), props, cmdLine);
+		} catch (MalformedURLException e) {
+			Misc.die(e.getMessage());
+		}
+		PostPager pager = new PostPager(conn, props.getInt("blogid"),
+			props.get("username"), Misc.getPassword(), true, SearchIndex.FIELDS,
+			PostPager.getPageSize(props), 0);
+		pager.addFilter("post_status", cmdLine.getOptionValue("status", "publish"));
+		if (cmdLine.hasOption("type"))
+			pager.addFilter("post_type", cmdLine.getOptionValue("type"));
+
+		// As with SyncPosts, posts modified at exactly the mark time are
+		// fetched (and indexed) again, in case another edit landed in the
+		// same second as our last update.
+		final Date[] newMark = new Date[] { null };
+		try {
+			if (cmdLine.hasOption("rebuild"))
+				index.clear();
+			else if (index.getMark() != null)
+				pager.stopBefore(index.getMark());
+			pager.each(new PostPager.Sink() {
+				public void accept(Map<String, Object> post) {
+					try {
+						index.add(post);
+					} catch (IOException e) {
+						Misc.die(e.getMessage());
+					}
+					Date modified = (Date) post.get("post_modified_gmt");
+					if (modified != null && (newMark[0] == null || modified.after(newMark[0])))
+						newMark[0] = modified;
+				}
+			});
+			index.commit(newMark[0]);
+		} catch (XmlRpcException|IOException e) {
+			Misc.die(e.getMessage());
+		}
+
+		if (!cmdLine.hasOption("bare")) {
+			int n = pager.getReturned();
+			System.out.format("%d post%s indexed.%n", n, n == 1 ? "" : "s");
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.cmds;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+
+import wptools.lib.*;
+
+/**
+ * Keep a local mirror directory of posts up to date, fetching only posts
+ * that have changed since the last run. Each post is stored in the same
+ * format GetPost --full prints, in a file named after its post ID.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class SyncPosts {
+	private static CommandLine cmdLine;
+	private static Properties props;
+
+	// Where we remember how far we got, in the mirror directory
+	private static final String STATE_FILE = ".syncstate";
+	private static final String MARK_KEY = "post_modified_gmt";
+
+	// Suffix of post files
+	static final String SUFFIX = ".txt";
+
+	public static void main(String[] args) {
+		// Define our name
+		Misc.setMyName("SyncPosts");
+
+		// Parse command-line options
+		Options options = new Options();
+		options.addOption("url");
+		options.addOption("username");
+		options.addOption("blogid");
+		options.addOption("properties");
+		options.addOption("group");
+		options.addOption("bare");
+		options.addOption("page-size");
+		options.addOption(null, "status", true, "Post status to mirror (default: publish).");
+		options.addOption(null, "type", true, "Post type to mirror (default: post).");
+		options.addOption(null, "full-sync", false, "Ignore saved state and fetch everything.");
+		cmdLine = options.parse(args);
+
+		// Expect a mirror directory
+		if (cmdLine.getArgs().length != 1)
+			Misc.die("expecting a mirror directory", 2);
+		File dir = Misc.getFile(cmdLine.getArgs()[0]);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			Misc.die("unable to create " + dir);
+
+		// Load properties from wherever (file or command line)
+		props = new Properties(cmdLine);
+
+		// Try to get a "connection" (actually just a client object; HTTP is connectionless).
+		XmlRpcClient conn = null;
+		String url = props.get("url");
+		try {
+			conn = Misc.xmlRpcService(url, props, cmdLine);
+		} catch (MalformedURLException e) {
+			Misc.die(e.getMessage());
+		}
+
+		// Find out where we left off last time.
+		File stateFile = new File(dir, STATE_FILE);
+		java.util.Properties state = new java.util.Properties();
+		if (stateFile.exists() && !cmdLine.hasOption("full-sync")) {
+			try (FileInputStream in = new FileInputStream(stateFile)) {
+				state.load(in);
+			} catch (IOException e) {
+				Misc.die(e.getMessage());
+			}
+		}
+		Date mark = null;
+		String rmark = state.getProperty(MARK_KEY);
+		if (rmark != null) {
+			try {
+				mark = new Date(Long.parseLong(rmark));
+			} catch (NumberFormatException e) {
+				Misc.die("invalid state file: " + stateFile);
+			}
+		}
+
+		// Walk posts newest-modified first, stopping at the mark. Posts
+		// modified at exactly the mark time are fetched again, in case
+		// another edit landed in the same second as our last sync.
+		PostPager pager = new PostPager(conn, props.getInt("blogid"),
+			props.get("username"), Misc.getPassword(), true, GetPost.ALL_FIELDS,
+			PostPager.getPageSize(props), 0);
+		pager.addFilter("post_status", cmdLine.getOptionValue("status", "publish"));
+		if (cmdLine.hasOption("type"))
+			pager.addFilter("post_type", cmdLine.getOptionValue("type"));
+		if (mark != null)
+			pager.stopBefore(mark);
+		final File fdir = dir;
+		final Date[] newMark = new Date[] { mark };
+		try {
+			pager.each(new PostPager.Sink() {
+				public void accept(Map<String, Object> post) {
+					writePost(fdir, post);
+					Date modified = (Date) post.get(MARK_KEY);
+					if (modified != null && (newMark[0] == null || modified.after(newMark[0])))
+						newMark[0] = modified;
+				}
+			});
+		} catch (XmlRpcException e) {
+			Misc.die(e.getMessage());
+		}
+
+		// Only now that everything newer is safely written may we move
+		// the mark forward.
+		if (newMark[0] != null) {
+			state.setProperty(MARK_KEY, Long.toString(newMark[0].getTime()));
+			try {
+				File temp = File.createTempFile("sync", ".tmp", dir);
+				try (FileOutputStream out = new FileOutputStream(temp)) {
+					state.store(out, "SyncPosts state; do not edit");
+				}
+				Files.move(temp.toPath(), stateFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				Misc.die(e.getMessage());
+			}
+		}
+
+		// Print a summary unless we're in bare mode.
+		if (!cmdLine.hasOption("bare")) {
+			int n = pager.getReturned();
+			System.out.format("%d post%s synced.%n", n, n == 1 ? "" : "s");
+		}
+	}
+
+	/**
+	 * Write a post to its file in the mirror, atomically.
+	 * @param dir     Mirror directory.
+	 * @param post    Post as returned from WordPress.
+	 */
+	private static void writePost(File dir, Map<String, Object> post) {
+		File target = new File(dir, post.get("post_id") + SUFFIX);
+		try {
+			File temp = File.createTempFile("post", ".tmp", dir);
+			try {
+				try (PrintStream out = new PrintStream(temp)) {
+					GetPost.printPost(out, post);
+					if (out.checkError())
+						throw new IOException("error writing " + temp);
+				}
+				Files.move(temp.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			Misc.die(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.cmds;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+
+import wptools.lib.Misc;
+import wptools.lib.Options;
+import wptools.lib.OrderedPipeline;
+import wptools.lib.Properties;
+import wptools.lib.UploadFile;
+
+/**
+ * Upload one or more media files. Files are streamed to the server as
+ * they are read (see UploadFile), so even very large ones take little
+ * memory, and several may be sent at once.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class UploadMedia {
+	private static CommandLine cmdLine;
+	private static Properties props;
+	private static XmlRpcClient client;
+	private static int blogid;
+	private static String username;
+	private static String password;
+	private static int estat;
+
+	// Files sent at once if not otherwise specified
+	private static final int DEFAULT_PARALLEL = 2;
+
+	// How often progress is shown, in milliseconds
+	private static final long PROGRESS_INTERVAL = 1000L;
+
+	// Type used if none is specified and none can be guessed
+	private static final String DEFAULT_TYPE = "application/octet-stream";
+
+	private static final double MEGABYTE = 1024.0 * 1024.0;
+
+	public static void main(String[] args) {
+		// Define our name
+		Misc.setMyName("UploadMedia");
+
+		// Parse command-line options
+		Options options = new Options();
+		options.addOption("url");
+		options.addOption("username");
+		options.addOption("blogid");
+		options.addOption("properties");
+		options.addOption("group");
+		options.addOption("parallel");
+		options.addOption("t", "type", true, "MIME type (default: guessed from each file's name).");
+		options.addOption(null, "post", true, "ID of post to attach the files to.");
+		options.addOption(null, "overwrite", false, "Replace existing files of the same name.");
+		options.addOption("q", "quiet", false, "Don't show progress.");
+		cmdLine = options.parse(args);
+
+		// Expect one or more files
+		if (cmdLine.getArgs().length == 0)
+			Misc.die("expecting one or more files to upload", 2);
+		List<UploadFile> uploads = new ArrayList<UploadFile>();
+		for (String name : cmdLine.getArgs()) {
+			File file = Misc.getFile(name);
+			if (!file.isFile())
+				Misc.die(name + " - not found");
+			uploads.add(new UploadFile(file));
+		}
+		Integer postid = null;
+		if (cmdLine.hasOption("post")) {
+			String rpostid = cmdLine.getOptionValue("post");
+			try {
+				postid = Integer.valueOf(rpostid);
+			} catch (NumberFormatException e) {
+				Misc.die("illegal post ID: " + rpostid, 2);
+			}
+		}
+
+		// Load properties from wherever (file or command line)
+		props = new Properties(cmdLine);
+		int parallel = OrderedPipeline.getParallelism(props, DEFAULT_PARALLEL);
+
+		// Get client object
+		String url = props.get("url");
+		username = props.get("username");
+		blogid = props.getInt("blogid");
+		try {
+			client = Misc.xmlRpcService(url, props, cmdLine);
+		} catch (MalformedURLException e) {
+			Misc.die(e.getMessage());
+		}
+		password = Misc.getPassword();
+
+		// Show progress while uploading, if someone's watching.
+		final Progress progress = new Progress(uploads);
+		if (Misc.hasConsole() && !cmdLine.hasOption("quiet"))
+			progress.start();
+
+		// Upload. Results come back in the order the files were given,
+		// each either a message to print or the exception that made the
+		// upload fail.
+		estat = 0;
+		OrderedPipeline<Object> pipe = new OrderedPipeline<Object>(parallel,
+			new OrderedPipeline.Sink<Object>() {
+				public void accept(Object result) {
+					progress.clear();
+					if (result instanceof Exception) {
+						Misc.error(((Exception) result).getMessage());
+						estat = 1;
+					} else {
+						System.out.println(result);
+					}
+				}
+			});
+		for (final UploadFile upload : uploads) {
+			final Map<String, Object> data = new HashMap<String, Object>();
+			data.put("name", upload.getFile().getName());
+			data.put("type", getType(upload.getFile()));
+			data.put("bits", upload);
+			data.put("overwrite", cmdLine.hasOption("overwrite"));
+			if (postid != null)
+				data.put("post_id", postid);
+			pipe.submit(new Callable<Object>() {
+				public Object call() {
+					return send(upload, data);
+				}
+			});
+		}
+		pipe.finish();
+		progress.finish();
+		Misc.exit(estat);
+	}
+
+	/**
+	 * Upload a file.
+	 * @return        Message to print, or the exception that occurred.
+	 */
+	private static Object send(UploadFile upload, Map<String, Object> data) {
+		String name = upload.getFile().getName();
+		long start = System.nanoTime();
+		try {
+			Map<String, Object> result = Misc.asStruct(client.execute(
+				"wp.uploadFile", new Object[] { blogid, username, password, data }));
+			double seconds = (System.nanoTime() - start) / 1e9;
+			Object id = result.get("attachment_id");
+			if (id == null)
+				id = result.get("id");
+			return String.format("%s: uploaded as attachment %s, %s (%s in %.1f s, %s)",
+				name, id, result.get("url"), megabytes(upload.length()), seconds,
+				rate(upload.length(), seconds));
+		} catch (XmlRpcException e) {
+			return new Exception(name + " - " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Determine the MIME type of a file.
+	 */
+	private static String getType(File file) {
+		if (cmdLine.hasOption("type"))
+			return cmdLine.getOptionValue("type");
+		String ret = null;
+		try {
+			ret = Files.probeContentType(file.toPath());
+		} catch (IOException e) {
+			/* fall through */
+		}
+		if (ret == null)
+			ret = URLConnection.guessContentTypeFromName(file.getName());
+		return ret == null ? DEFAULT_TYPE : ret;
+	}
+
+	private static String megabytes(long bytes) {
+		return String.format("%.1f MB", bytes / MEGABYTE);
+	}
+
+	private static String rate(long bytes, double seconds) {
+		return seconds > 0.0 ? String.format("%.1f MB/s", bytes / MEGABYTE / seconds) : "-";
+	}
+
+	/**
+	 * Shows, on a single line of standard error that is rewritten as it
+	 * changes, how much has been sent so far and how quickly.
+	 */
+	private static class Progress implements Runnable {
+		private List<UploadFile> uploads;
+		private long total;
+		private long start;
+		private int width;
+		private Thread thread;
+		private volatile boolean done;
+
+		public Progress(List<UploadFile> uploads) {
+			this.uploads = uploads;
+			total = 0;
+			for (UploadFile upload : uploads)
+				total += upload.length();
+			width = 0;
+			done = false;
+		}
+
+		public void start() {
+			start = System.nanoTime();
+			thread = new Thread(this);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run() {
+			while (!done) {
+				try {
+					Thread.sleep(PROGRESS_INTERVAL);
+				} catch (InterruptedException e) {
+					break;
+				}
+				show();
+			}
+		}
+
+		private synchronized void show() {
+			if (done)
+				return;
+			long sent = 0;
+			int finished = 0;
+			for (UploadFile upload : uploads) {
+				long s = upload.getSent();
+				sent += s;
+				if (s == upload.length())
+					finished++;
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			String line = String.format("%d of %d files, %s of %s (%d%%), %s",
+				finished, uploads.size(), megabytes(sent), megabytes(total),
+				total > 0 ? sent * 100 / total : 100, rate(sent, seconds));
+			System.err.print("\r" + pad(line));
+			System.err.flush();
+			width = line.length();
+		}
+
+		/**
+		 * Erase the progress line, so something else can be printed.
+		 */
+		public synchronized void clear() {
+			if (width == 0)
+				return;
+			System.err.print("\r" + pad("") + "\r");
+			System.err.flush();
+			width = 0;
+		}
+
+		public void finish() {
+			done = true;
+			if (thread != null)
+				thread.interrupt();
+			clear();
+		}
+
+		private String pad(String s) {
+			StringBuilder ret = new StringBuilder(s);
+			while (ret.length() < width)
+				ret.append(' ');
+			return ret.toString();
+		}
+	}
+}
@@ -0,0 +1,467 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcClientRequestImpl;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+
+/**
+ * Decides how long calls may take and what to do when they fail or are
+ * slow, and applies that to all calls made through a transport factory
+ * (see wrap):
+ *
+ * Each attempt at a call may be given a time limit (call-timeout), and
+ * all the calls a command makes a time by which they must be done
+ * (deadline); both are in seconds, and the default is no limit.
+ *
+ * Calls that only read (see IDEMPOTENT) and that fail in a way that may
+ * well not happen again (a network error, a timeout, an HTTP 429 or 5xx
+ * status, or a response cut short, but never a fault the server
+ * returned) are retried, by default up to twice, after a random
+ * delay of up to retry-delay seconds (by default 0.5) that doubles with
+ * each retry.
+ *
+ * With hedge=true, if such a call takes longer than 95% of its kind
+ * have lately, a second copy of it is sent, and whichever answers first
+ * is used. That way a handful of requests stuck behind something slow
+ * in the server don't hold everything else up.
+ *
+ * Calls whose responses are streamed (see ResponseStreamer) are handled
+ * the same way, except that once one attempt has started handing over
+ * records, no other may: they are neither retried nor hedged past that
+ * point.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class CallPolicy {
+	/** Calls that may be safely repeated. */
+	public static final Set<String> IDEMPOTENT = new HashSet<String>(Arrays.asList(
+		"wp.getPost", "wp.getPosts", "wp.getAuthors", "wp.getUsersBlogs"));
+
+	private static final String MULTICALL = "system.multicall";
+
+	// Defaults
+	private static final int DEFAULT_RETRIES = 2;
+	private static final long DEFAULT_RETRY_DELAY = 500L;
+
+	// Longest we ever wait between retries, in milliseconds.
+	private static final long MAX_RETRY_DELAY = 30000L;
+
+	// Which percentile of recent times a call must take to be hedged,
+	// how many recent times are kept per method, and how many must be
+	// seen before we hedge at all.
+	private static final double HEDGE_PERCENTILE = 0.95;
+	private static final int SAMPLES = 128;
+	private static final int MIN_SAMPLES = 20;
+
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	// Runs attempts whose time is limited, or that may be hedged. Idle
+	// threads don't linger, so it costs nothing when not in use.
+	private static final ExecutorService POOL = Executors.newCachedThreadPool(
+		new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "CallPolicy");
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+
+	// Recent times, by method.
+	private static final Map<String, Timings> TIMINGS = new HashMap<String, Timings>();
+
+	private long callTimeout;
+	private long deadline;
+	private int retries;
+	private long retryDelay;
+	private boolean hedge;
+
+	/**
+	 * Constructor. The command deadline, if any, is counted from now.
+	 * @param props     Properties to get settings from.
+	 */
+	public CallPolicy(Properties props) {
+		callTimeout = getMillis(props, "call-timeout", 0L) * NANOS_PER_MILLI;
+		long dl = getMillis(props, "deadline", 0L) * NANOS_PER_MILLI;
+		deadline = dl > 0L ? System.nanoTime() + dl : 0L;
+		retries = DEFAULT_RETRIES;
+		if (props.hasKey("retries")) {
+			retries = props.getInt("retries");
+			if (retries < 0)
+				Misc.die("invalid value for property retries: " + retries);
+		}
+		retryDelay = getMillis(props, "retry-delay", DEFAULT_RETRY_DELAY);
+		hedge = props.hasKey("hedge") && Boolean.parseBoolean(props.get("hedge"));
+	}
+
+	private static long getMillis(Properties props, String key, long dflt) {
+		if (!props.hasKey(key))
+			return dflt;
+		String raw = props.get(key);
+		try {
+			double ret = Double.parseDouble(raw) * 1000.0;
+			if (ret >= 0.0 && ret <= Long.MAX_VALUE / NANOS_PER_MILLI)
+				return (long) ret;
+		} catch (NumberFormatException e) {
+			/* fall through */
+		}
+		Misc.die(String.format("invalid value for property %s: %s", key, raw));
+		return 0L;  /* not reached */
+	}
+
+	/**
+	 * Determine if a request may be safely repeated.
+	 * @param request   Request.
+	 */
+	public static boolean isIdempotent(XmlRpcRequest request) {
+		String method = request.getMethodName();
+		if (IDEMPOTENT.contains(method))
+			return true;
+		if (!MULTICALL.equals(method) || request.getParameterCount() != 1)
+			return false;
+		Object calls = request.getParameter(0);
+		if (calls instanceof Collection)
+			calls = ((Collection<?>) calls).toArray();
+		if (!(calls instanceof Object[]))
+			return false;
+		for (Object call : (Object[]) calls)
+			if (!(call instanceof Map) || !IDEMPOTENT.contains(((Map<?, ?>) call).get("methodName")))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Determine if a failure is likely to be transient: a network error,
+	 * an attempt that took too long, an HTTP 429 or 5xx status, or a
+	 * response cut short. A fault the server returned is never
+	 * transient; asking again would only get the same answer.
+	 * @param e         What the request threw.
+	 */
+	public static boolean isTransient(Throwable e) {
+		if (ConcurrencyLimiter.isFault(e))
+			return false;
+		if (ConcurrencyLimiter.isOverload(e))
+			return true;
+		for (Throwable t = e; t != null && t.getCause() != t; t = t.getCause())
+			if (t instanceof IOException || t instanceof TimeoutException)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Wrap a transport factory, so that all requests made through it
+	 * are subject to this policy.
+	 * @param factory   Factory to wrap.
+	 * @return          Wrapped factory.
+	 */
+	public XmlRpcTransportFactory wrap(final XmlRpcTransportFactory factory) {
+		return new XmlRpcTransportFactory() {
+			public XmlRpcTransport getTransport() {
+				return new XmlRpcTransport() {
+					public Object sendRequest(XmlRpcRequest request) throws XmlRpcException {
+						return new Call(factory, request).send();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * One call, and all the attempts made at it.
+	 */
+	private class Call {
+		private XmlRpcTransportFactory factory;
+		private XmlRpcRequest request;
+		private ResponseStreamer.Config streamed;
+		private Timings timings;
+
+		// Attempts whose number is below this may no longer stream
+		// records, nor does anyone care what becomes of them.
+		private int firstLive;
+		private int nextAttempt;
+
+		// Attempt that has started streaming records, or -1.
+		private int owner;
+
+		public Call(XmlRpcTransportFactory factory, XmlRpcRequest request) {
+			this.factory = factory;
+			this.request = request;
+			if (request.getConfig() instanceof ResponseStreamer.Config)
+				streamed = (ResponseStreamer.Config) request.getConfig();
+			timings = getTimings(request.getMethodName());
+			firstLive = nextAttempt = 0;
+			owner = -1;
+		}
+
+		public Object send() throws XmlRpcException {
+			boolean idempotent = isIdempotent(request);
+			int retry = 0;
+			try {
+				while (true) {
+					try {
+						return round(idempotent && hedge);
+					} catch (XmlRpcException e) {
+						if (!idempotent || retry >= retries || !isTransient(e) || claimed())
+							throw e;
+						long delay = ThreadLocalRandom.current().nextLong(backoff(retry) + 1);
+						if (deadline != 0L && System.nanoTime() + delay * NANOS_PER_MILLI >= deadline)
+							throw e;
+						retry++;
+						Stats.retried(request.getMethodName());
+						Thread.sleep(delay);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new XmlRpcClientException("Interrupted", e);
+			} finally {
+				retire();
+			}
+		}
+
+		/**
+		 * Get the longest to wait before a retry.
+		 * @param retry   Retries so far.
+		 */
+		private long backoff(int retry) {
+			long ret = Math.min(retryDelay, MAX_RETRY_DELAY);
+			for (int i = 0; i < retry && ret < MAX_RETRY_DELAY; i++)
+				ret = Math.min(ret * 2, MAX_RETRY_DELAY);
+			return ret;
+		}
+
+		/**
+		 * Make one attempt at the call, plus perhaps a hedge.
+		 */
+		private Object round(boolean hedging) throws XmlRpcException, InterruptedException {
+			long start = System.nanoTime();
+			long limit = callTimeout == 0L ? 0L : start + callTimeout;
+			if (deadline != 0L && (limit == 0L || deadline < limit))
+				limit = deadline;
+			long hedgeAt = hedging ? timings.percentile(HEDGE_PERCENTILE) : 0L;
+
+			// Nothing to time? Then just make the call.
+			if (limit == 0L && hedgeAt == 0L)
+				return attempt(newAttempt(), start);
+
+			if (limit != 0L && limit <= start)
+				throw timedOut(start, limit == deadline);
+			CompletionService<Object> done = new ExecutorCompletionService<Object>(POOL);
+			Map<Future<Object>, Integer> running = new HashMap<Future<Object>, Integer>();
+			submit(done, running, start);
+			boolean hedged = hedgeAt == 0L;
+			XmlRpcException error = null;
+			try {
+				while (!running.isEmpty()) {
+					long now = System.nanoTime();
+					long wait = limit == 0L ? Long.MAX_VALUE : limit - now;
+					if (!hedged)
+						wait = Math.min(wait, start + hedgeAt - now);
+					Future<Object> f = done.poll(Math.max(0L, wait), TimeUnit.NANOSECONDS);
+					if (f == null) {
+						if (limit != 0L && System.nanoTime() >= limit)
+							throw timedOut(start, limit == deadline);
+						// Slow; send a copy, unless records are already
+						// being streamed.
+						hedged = true;
+						if (!claimed()) {
+							Stats.hedged(request.getMethodName());
+							submit(done, running, System.nanoTime());
+						}
+						continue;
+					}
+					int n = running.remove(f);
+					try {
+						return f.get();
+					} catch (ExecutionException e) {
+						// Report the first failure, unless the attempt
+						// that was streaming records failed; then nothing
+						// else can succeed.
+						XmlRpcException cause = toXmlRpcException(e.getCause());
+						if (isOwner(n))
+							throw cause;
+						if (error == null)
+							error = cause;
+					}
+				}
+				throw error;
+			} finally {
+				for (Future<Object> f : running.keySet())
+					f.cancel(true);
+			}
+		}
+
+		private void submit(CompletionService<Object> done,
+				Map<Future<Object>, Integer> running, final long start) {
+			final int n = newAttempt();
+			running.put(done.submit(new Callable<Object>() {
+				public Object call() throws XmlRpcException {
+					return attempt(n, start);
+				}
+			}), n);
+		}
+
+		private synchronized int newAttempt() {
+			return nextAttempt++;
+		}
+
+		/**
+		 * Make an attempt, noting how long it takes if it succeeds.
+		 */
+		private Object attempt(int n, long start) throws XmlRpcException {
+			XmlRpcRequest req = request;
+			if (streamed != null) {
+				Object[] params = new Object[request.getParameterCount()];
+				for (int i = 0; i < params.length; i++)
+					params[i] = request.getParameter(i);
+				req = new XmlRpcClientRequestImpl(streamed.withHandler(new Gate(n, streamed.getHandler())),
+					request.getMethodName(), params);
+			}
+			Object ret = factory.getTransport().sendRequest(req);
+			timings.add(System.nanoTime() - start);
+			return ret;
+		}
+
+		private synchronized boolean claimed() {
+			return owner >= 0;
+		}
+
+		/**
+		 * Let no attempt made so far stream any more records, waiting for
+		 * any doing so now to finish.
+		 */
+		private synchronized void retire() {
+			firstLive = nextAttempt;
+		}
+
+		private synchronized boolean isOwner(int n) {
+			return owner == n;
+		}
+
+		private XmlRpcException timedOut(long start, boolean deadlinePassed) {
+			retire();
+			String message = deadlinePassed ? "Deadline passed" :
+				String.format("Timed out after %.1f s", (System.nanoTime() - start) / 1e9);
+			return new XmlRpcClientException(message, new TimeoutException(message));
+		}
+
+		/**
+		 * Passes records on to the real handler, if this attempt is the
+		 * one streaming them.
+		 */
+		private class Gate implements ResponseStreamer.Handler {
+			private int n;
+			private ResponseStreamer.Handler handler;
+
+			public Gate(int n, ResponseStreamer.Handler handler) {
+				this.n = n;
+				this.handler = handler;
+			}
+
+			private void check() throws IOException {
+				if (n < firstLive || (owner >= 0 && owner != n))
+					throw new IOException("Superseded by another attempt");
+				owner = n;
+			}
+
+			public void begin(int index) throws IOException {
+				synchronized (Call.this) {
+					check();
+					handler.begin(index);
+				}
+			}
+
+			public Writer member(int index, String name) throws IOException {
+				synchronized (Call.this) {
+					check();
+					return handler.member(index, name);
+				}
+			}
+
+			public void end(int index, Object value) throws IOException {
+				synchronized (Call.this) {
+					check();
+					handler.end(index, value);
+				}
+			}
+		}
+	}
+
+	private static XmlRpcException toXmlRpcException(Throwable e) {
+		if (e instanceof XmlRpcException)
+			return (XmlRpcException) e;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		if (e instanceof Error)
+			throw (Error) e;
+		return new XmlRpcClientException(String.valueOf(e.getMessage()), e);
+	}
+
+	private static Timings getTimings(String method) {
+		synchronized (TIMINGS) {
+			Timings ret = TIMINGS.get(method);
+			if (ret == null) {
+				ret = new Timings();
+				TIMINGS.put(method, ret);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Recent times taken by successful calls to a method.
+	 */
+	private static class Timings {
+		private long[] samples = new long[SAMPLES];
+		private int count = 0;
+		private int next = 0;
+
+		public synchronized void add(long nanos) {
+			samples[next] = nanos;
+			next = (next + 1) % samples.length;
+			if (count < samples.length)
+				count++;
+		}
+
+		/**
+		 * Get a percentile of recent times, or 0 if there are too few
+		 * to say.
+		 */
+		public synchronized long percentile(double p) {
+			if (count < MIN_SAMPLES)
+				return 0L;
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			return sorted[Math.min(count - 1, (int) Math.ceil(p * count) - 1)];
+		}
+	}
+}
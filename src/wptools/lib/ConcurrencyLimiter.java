@@ -0,0 +1,304 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.http.HttpTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Limits how many requests may be in flight to a server at once, and
+ * adjusts that limit to what the server can take, by additive increase
+ * and multiplicative decrease (AIMD), as TCP does its window:
+ *
+ * While requests are actually using the whole limit, each one that
+ * succeeds promptly raises it by 1/limit (so by about one per round
+ * of requests), up to a ceiling. A request that fails in a way that
+ * says the server is overloaded (see isOverload) halves it, though at
+ * most once per typical request time, since one overload tends to fail
+ * a whole round of requests at once. Responses taking much longer than
+ * the fastest seen lately also stop the limit rising, since queueing
+ * in the server usually shows up as latency before it shows up as
+ * errors.
+ *
+ * There is one limiter per server (host and port), shared by all the
+ * clients in the process talking to it; see forUrl. Commands need do
+ * nothing to use one, beyond running enough requests at once for it to
+ * matter: Misc.xmlRpcService puts a client's requests through it (see
+ * wrap) when the host-limit property gives the ceiling.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class ConcurrencyLimiter {
+	// Responses this many times slower than the baseline hold the limit
+	// steady instead of raising it.
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	// How quickly the baseline latency drifts up towards what we see
+	// (a fraction of the difference, per response); it drops at once to
+	// anything faster.
+	private static final double BASELINE_DRIFT = 1.0 / 64.0;
+
+	// Weight given each new response in the average latency.
+	private static final double AVERAGE_WEIGHT = 1.0 / 8.0;
+
+	// How much an overload cuts the limit.
+	private static final double DECREASE = 0.5;
+
+	// Limit we start out with (if the ceiling allows it).
+	private static final double INITIAL_LIMIT = 2.0;
+
+	// XML-RPC fault codes for errors on the server's side (as opposed
+	// to -32700, -32600, -32601 and -32602, which say the request was
+	// bad): an internal error, or an application, system or transport
+	// error.
+	private static final int INTERNAL_ERROR = -32603;
+	private static final int MIN_SERVER_FAULT = -32500;
+	private static final int MAX_SERVER_FAULT = -32300;
+
+	// How HttpURLConnection reports bad HTTP statuses.
+	private static final Pattern RESPONSE_CODE = Pattern.compile("HTTP response code: (\\d+)");
+
+	private static final Map<String, ConcurrencyLimiter> LIMITERS =
+		new HashMap<String, ConcurrencyLimiter>();
+
+	private String name;
+	private int ceiling;
+	private double limit;
+	private int inFlight;
+	private long baseline;
+	private long average;
+	private long lastDecrease;
+	private long decreases;
+
+	/**
+	 * Constructor.
+	 * @param name      Name, for messages.
+	 * @param ceiling   Most requests ever to allow in flight.
+	 */
+	public ConcurrencyLimiter(String name, int ceiling) {
+		if (ceiling < 1)
+			throw new IllegalArgumentException("Invalid ceiling.");
+		this.name = name;
+		this.ceiling = ceiling;
+		limit = Math.min(INITIAL_LIMIT, ceiling);
+		inFlight = 0;
+		baseline = 0;
+		average = 0;
+		lastDecrease = System.nanoTime();
+		decreases = 0;
+	}
+
+	/**
+	 * Get the limiter shared by everything talking to the server at a
+	 * URL, making it if need be. If it already exists, its ceiling is
+	 * changed (the daemon may be running commands with different
+	 * settings).
+	 * @param url       URL.
+	 * @param ceiling   Most requests ever to allow in flight.
+	 */
+	public static ConcurrencyLimiter forUrl(URL url, int ceiling) {
+		String key = url.getHost().toLowerCase() + ":" +
+			(url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+		synchronized (LIMITERS) {
+			ConcurrencyLimiter ret = LIMITERS.get(key);
+			if (ret == null) {
+				ret = new ConcurrencyLimiter(key, ceiling);
+				LIMITERS.put(key, ret);
+			} else {
+				ret.setCeiling(ceiling);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Get the ceiling to use from the host-limit option or property, or
+	 * 0 if none is specified.
+	 * @param props     Properties.
+	 */
+	public static int getCeiling(Properties props) {
+		if (!props.hasKey("host-limit"))
+			return 0;
+		int ret = props.getInt("host-limit");
+		if (ret < 1)
+			Misc.die("invalid host limit: " + ret);
+		return ret;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the current limit: how many requests may be in flight now.
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized int getCeiling() {
+		return ceiling;
+	}
+
+	public synchronized void setCeiling(int ceiling) {
+		if (ceiling < 1)
+			throw new IllegalArgumentException("Invalid ceiling.");
+		this.ceiling = ceiling;
+		limit = Math.min(limit, ceiling);
+		notifyAll();
+	}
+
+	/**
+	 * Get how many requests are in flight.
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Get how many times the limit has been cut.
+	 */
+	public synchronized long getDecreases() {
+		return decreases;
+	}
+
+	/**
+	 * Wait until a request may be sent. Every successful call must be
+	 * followed by one to release.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (inFlight >= (int) limit)
+			wait();
+		inFlight++;
+	}
+
+	/**
+	 * Note that a request is done.
+	 * @param nanos     How long it took, in nanoseconds.
+	 * @param overload  True if it failed because the server is
+	 *                  overloaded.
+	 */
+	public synchronized void release(long nanos, boolean overload) {
+		boolean saturated = inFlight >= (int) limit;
+		inFlight--;
+		long now = System.nanoTime();
+		if (overload) {
+			// Cut once per episode of overload, not for every request
+			// that was already in flight when it began.
+			if (now - lastDecrease > average) {
+				limit = Math.max(1.0, limit * DECREASE);
+				lastDecrease = now;
+				decreases++;
+			}
+		} else {
+			if (baseline == 0 || nanos < baseline)
+				baseline = nanos;
+			else
+				baseline += (long) ((nanos - baseline) * BASELINE_DRIFT);
+			if (saturated && nanos <= baseline * LATENCY_TOLERANCE)
+				limit = Math.min(ceiling, limit + 1.0 / limit);
+		}
+		average = average == 0 ? nanos : average + (long) ((nanos - average) * AVERAGE_WEIGHT);
+		notifyAll();
+	}
+
+	/**
+	 * Determine if a request failed because the server is overloaded
+	 * (as opposed to, say, the post asked for not existing): an HTTP
+	 * 429 or 5xx status, a timeout, a fault saying the server itself
+	 * failed, or a response cut short.
+	 * @param e         What the request threw.
+	 */
+	public static boolean isOverload(Throwable e) {
+		if (isFault(e)) {
+			int code = ((XmlRpcException) e).code;
+			return code == INTERNAL_ERROR || (code >= MIN_SERVER_FAULT && code <= MAX_SERVER_FAULT);
+		}
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof XmlRpcHttpTransportException)
+				return isOverloadStatus(((XmlRpcHttpTransportException) t).getStatusCode());
+			if (t instanceof HttpTimeoutException || t instanceof SocketTimeoutException)
+				return true;
+			if (t instanceof SAXParseException || t instanceof XMLStreamException)
+				return true;
+			if (t instanceof IOException && t.getMessage() != null) {
+				Matcher m = RESPONSE_CODE.matcher(t.getMessage());
+				if (m.find())
+					return isOverloadStatus(Integer.parseInt(m.group(1)));
+			}
+			if (t.getCause() == t)
+				break;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if a request failed because the server returned a fault
+	 * (in a well-formed response), rather than because of the network,
+	 * the HTTP status, or a response that could not be read.
+	 * @param e         What the request threw.
+	 */
+	public static boolean isFault(Throwable e) {
+		return e instanceof XmlRpcException && !(e instanceof XmlRpcClientException)
+			&& !(e instanceof XmlRpcHttpTransportException);
+	}
+
+	private static boolean isOverloadStatus(int status) {
+		return status == 429 || (status >= 500 && status <= 599);
+	}
+
+	/**
+	 * Wrap a transport factory, so that all requests made through it
+	 * are subject to this limiter.
+	 * @param factory   Factory to wrap.
+	 * @return          Wrapped factory.
+	 */
+	public XmlRpcTransportFactory wrap(final XmlRpcTransportFactory factory) {
+		return new XmlRpcTransportFactory() {
+			public XmlRpcTransport getTransport() {
+				final XmlRpcTransport transport = factory.getTransport();
+				return new XmlRpcTransport() {
+					public Object sendRequest(XmlRpcRequest request) throws XmlRpcException {
+						try {
+							acquire();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new XmlRpcClientException("Interrupted", e);
+						}
+						long start = System.nanoTime();
+						boolean overload = false;
+						try {
+							return transport.sendRequest(request);
+						} catch (XmlRpcException|RuntimeException e) {
+							overload = isOverload(e);
+							throw e;
+						} finally {
+							release(System.nanoTime() - start, overload);
+						}
+					}
+				};
+			}
+		};
+	}
+}
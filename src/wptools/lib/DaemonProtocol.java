@@ -0,0 +1,151 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * What the daemon and its clients say to each other over the daemon's
+ * Unix-domain socket. This deliberately uses nothing but the standard
+ * library, so that a client starts quickly.
+ *
+ * The client sends MAGIC, its working directory, whether it has a
+ * console, the WPTOOLS_* part of its environment, and its arguments
+ * (the first naming the command); then its standard input as a series
+ * of length-prefixed chunks, ended by a zero-length one. The daemon
+ * sends back STDOUT and STDERR frames (a type byte, a length, and that
+ * many bytes), then an EXIT frame holding the exit status.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class DaemonProtocol {
+	public static final int MAGIC = 0x57505431;  /* "WPT1" */
+
+	/* frame types */
+	public static final int STDOUT = 1;
+	public static final int STDERR = 2;
+	public static final int EXIT = 3;
+
+	/** Environment variables starting with this are passed along. */
+	public static final String ENV_PREFIX = "WPTOOLS_";
+
+	private static final String SOCKET_VAR = "WPTOOLS_SOCKET";
+	private static final String DEFAULT_SOCKET = ".wptools/daemon/daemon.sock";
+
+	/**
+	 * Get the path of the daemon's socket: $WPTOOLS_SOCKET if set, else
+	 * ~/.wptools/daemon/daemon.sock.
+	 */
+	public static Path getSocketPath() {
+		String env = System.getenv(SOCKET_VAR);
+		if (env != null)
+			return Paths.get(env);
+		return Paths.get(System.getProperty("user.home"), DEFAULT_SOCKET);
+	}
+
+	public static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0)
+			throw new IOException("protocol error");
+		byte[] bytes = new byte[len];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Get an InputStream reading from a socket channel. Unlike the
+	 * streams from java.nio.channels.Channels, this one doesn't lock out
+	 * writing while a read is blocked.
+	 */
+	public static InputStream inputStream(final SocketChannel channel) {
+		return new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+
+	/**
+	 * Get an OutputStream writing to a socket channel (see inputStream).
+	 */
+	public static OutputStream outputStream(final SocketChannel channel) {
+		return new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+				while (buf.hasRemaining())
+					channel.write(buf);
+			}
+		};
+	}
+
+	/**
+	 * Writes everything written to it to a stream as frames of the
+	 * specified type. Closing it just flushes it, so a command closing
+	 * its standard output doesn't wreck the conversation.
+	 */
+	public static class FrameOutputStream extends OutputStream {
+		private DataOutputStream out;
+		private int type;
+
+		/**
+		 * Constructor.
+		 * @param out     Where to write; frames are written holding its
+		 *                lock, so several FrameOutputStreams may share it.
+		 * @param type    Frame type.
+		 */
+		public FrameOutputStream(DataOutputStream out, int type) {
+			this.out = out;
+			this.type = type;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return;
+			synchronized (out) {
+				out.writeByte(type);
+				out.writeInt(len);
+				out.write(b, off, len);
+				out.flush();
+			}
+		}
+
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.text.ParseException;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Converts between the Dates XML-RPC gives us and the ISO8601 strings
+ * we print and accept. Everything here is static and immutable, so it
+ * may be used from any number of threads at once.
+ *
+ * XML-RPC times carry no time zone; the library reads them as local
+ * times, so a Date's fields in the local time zone are what WordPress
+ * sent. We print them suffixed with Z (for the *_gmt fields) or J (the
+ * military letter for local time, for the rest).
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class DateCodec {
+	/** Suffix marking UTC times. */
+	public static final String UTC = "Z";
+
+	/** Suffix marking local times. */
+	public static final String LOCAL = "J";
+
+	/** Most characters format(Date, char[], int) writes. */
+	public static final int MAX_LENGTH = 28;
+
+	// Offsets come from TimeZone, as they always did; java.time's idea
+	// of them differs for a few zones (before 1900, and where summer time
+	// is negative).
+	private static final TimeZone TZ = TimeZone.getDefault();
+
+	// Before this (the first whole year of the Gregorian calendar), Date
+	// and Calendar use the Julian calendar and our arithmetic does not, so
+	// we let Calendar handle such times, as it always did.
+	private static final int FIRST_GREGORIAN_YEAR = 1583;
+	private static final long GREGORIAN_MILLIS =
+		new GregorianCalendar(FIRST_GREGORIAN_YEAR, Calendar.JANUARY, 2).getTimeInMillis();
+
+	private static final int SECONDS_PER_DAY = 86400;
+	private static final long MILLIS_PER_DAY = SECONDS_PER_DAY * 1000L;
+	private static final int DAYS_PER_400_YEARS = 146097;
+	private static final int DAYS_0000_TO_1970 = 719468;  /* counting from March 1 */
+
+	// How many fields (year, month, day, hour, minute, second) each
+	// format we accept has, longest first.
+	private static final int[] FIELD_COUNTS = { 6, 5, 3 };
+
+	/**
+	 * Format a local time.
+	 * @param d       Date to format.
+	 */
+	public static String formatLocal(Date d) {
+		return format(d, LOCAL);
+	}
+
+	/**
+	 * Format a UTC time.
+	 * @param d       Date to format.
+	 */
+	public static String formatUtc(Date d) {
+		return format(d, UTC);
+	}
+
+	/**
+	 * Format a date.
+	 * @param d       Date to format.
+	 * @param zone    Suffix, or null for none.
+	 */
+	public static String format(Date d, String zone) {
+		int zlen = zone == null ? 0 : zone.length();
+		char[] buf = new char[MAX_LENGTH + zlen];
+		int len = format(d, buf, 0);
+		if (zone != null)
+			zone.getChars(0, zlen, buf, len);
+		return new String(buf, 0, len + zlen);
+	}
+
+	/**
+	 * Format a date, without any suffix, into a buffer. Nothing is
+	 * allocated in doing this (for dates after 1582).
+	 * @param d       Date to format.
+	 * @param buf     Buffer, with room for MAX_LENGTH characters.
+	 * @param off     Where in it to start.
+	 * @return        Number of characters written.
+	 */
+	public static int format(Date d, char[] buf, int off) {
+		long millis = d.getTime();
+		if (millis < GREGORIAN_MILLIS)
+			return formatOld(d, buf, off);
+		long seconds = Math.floorDiv(millis + TZ.getOffset(millis), 1000L);
+		long days = Math.floorDiv(seconds, SECONDS_PER_DAY);
+		int secs = Math.floorMod(seconds, SECONDS_PER_DAY);
+
+		// Days to year, month and day, in a calendar whose years start
+		// in March (so leap days come last).
+		long z = days + DAYS_0000_TO_1970;
+		long era = Math.floorDiv(z, DAYS_PER_400_YEARS);
+		int doe = (int) (z - era * DAYS_PER_400_YEARS);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = era * 400 + yoe + (month <= 2 ? 1 : 0);
+
+		return fields(buf, off, year, month, day, secs / 3600, secs / 60 % 60, secs % 60);
+	}
+
+	private static int formatOld(Date d, char[] buf, int off) {
+		Calendar cal = new GregorianCalendar();
+		cal.setTime(d);
+		return fields(buf, off, cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1,
+			cal.get(Calendar.DAY_OF_MONTH), cal.get(Calendar.HOUR_OF_DAY),
+			cal.get(Calendar.MINUTE), cal.get(Calendar.SECOND));
+	}
+
+	private static int fields(char[] buf, int off, long year, int month, int day,
+			int hour, int minute, int second) {
+		int pos = off;
+		pos = digits(buf, pos, year, 4);
+		buf[pos++] = '-';
+		pos = digits(buf, pos, month, 2);
+		buf[pos++] = '-';
+		pos = digits(buf, pos, day, 2);
+		buf[pos++] = 'T';
+		pos = digits(buf, pos, hour, 2);
+		buf[pos++] = ':';
+		pos = digits(buf, pos, minute, 2);
+		buf[pos++] = ':';
+		pos = digits(buf, pos, second, 2);
+		return pos - off;
+	}
+
+	/**
+	 * Write a non-negative number, zero-padded to at least width digits.
+	 * @return        Position after it.
+	 */
+	private static int digits(char[] buf, int pos, long value, int width) {
+		int len = 1;
+		for (long v = value; v >= 10; v /= 10)
+			len++;
+		len = Math.max(len, width);
+		for (int i = pos + len - 1; i >= pos; i--) {
+			buf[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return pos + len;
+	}
+
+	/**
+	 * Parse a UTC time.
+	 * @param unparsed  String to parse.
+	 */
+	public static Date parseUtc(String unparsed) throws ParseException {
+		return parse(unparsed, UTC);
+	}
+
+	/**
+	 * Parse a local time, giving a Date suitable for setting post_date
+	 * (which, thanks to date/time confusion on both our side and the
+	 * WordPress side, is shifted by the time zone offset).
+	 * @param unparsed  String to parse.
+	 */
+	public static Date parseLocal(String unparsed) throws ParseException {
+		long time = parse(unparsed, LOCAL).getTime();
+		return new Date(time - TZ.getOffset(time));
+	}
+
+	/**
+	 * Parse an ISO8601 date/time string: yyyy-MM-dd, optionally followed
+	 * by THH:mm and optionally that by :ss. Surrounding white space, and
+	 * anything after that, is ignored, as is a time that doesn't exist.
+	 * @param unparsed  String to parse.
+	 * @param zone      Suffix to strip, if present.
+	 * @return          Date, whose fields in the local time zone are
+	 *                  those parsed.
+	 */
+	public static Date parse(String unparsed, String zone) throws ParseException {
+		String s = unparsed.trim().toUpperCase();
+		if (zone != null && s.endsWith(zone))
+			s = s.substring(0, s.length() - zone.length());
+		int[] fields = new int[6];
+		int found = scan(s, fields);
+		for (int count : FIELD_COUNTS) {
+			if (found < count)
+				continue;
+			Date ret = toDate(fields, count);
+			if (ret != null)
+				return ret;
+		}
+		throw new ParseException("Unparseable date: " + unparsed, 0);
+	}
+
+	/**
+	 * Find the fields in a date/time string.
+	 * @return        How many were found in the right places: 0 (not
+	 *                even a date), 3, 5 or 6.
+	 */
+	private static int scan(String s, int[] fields) {
+		int pos = 0;
+		int found = 0;
+		char[] seps = { '-', '-', 'T', ':', ':' };
+		while (found < fields.length) {
+			int start = pos;
+			long value = 0;
+			while (pos < s.length() && pos - start < 9 && Character.isDigit(s.charAt(pos)))
+				value = value * 10 + Character.digit(s.charAt(pos++), 10);
+			if (pos == start || (pos < s.length() && Character.isDigit(s.charAt(pos))))
+				break;
+			fields[found++] = (int) value;
+			if (found == fields.length || pos == s.length() || s.charAt(pos) != seps[found - 1])
+				break;
+			pos++;
+		}
+		if (found < 3)
+			return 0;
+		return found == 4 ? 3 : found;
+	}
+
+	/**
+	 * Make a Date from fields.
+	 * @param count   How many fields to use; those missing are 0.
+	 * @return        Date, or null if the fields don't make one.
+	 */
+	private static Date toDate(int[] fields, int count) {
+		int[] f = new int[6];
+		System.arraycopy(fields, 0, f, 0, count);
+		if (f[0] < FIRST_GREGORIAN_YEAR) {
+			Calendar cal = new GregorianCalendar();
+			cal.setLenient(false);
+			cal.clear();
+			if (count == 3)
+				cal.set(f[0], f[1] - 1, f[2]);
+			else
+				cal.set(f[0], f[1] - 1, f[2], f[3], f[4], f[5]);
+			try {
+				return cal.getTime();
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+		long local;
+		try {
+			local = LocalDateTime.of(f[0], f[1], f[2], f[3], f[4], f[5]).toEpochSecond(ZoneOffset.UTC) * 1000L;
+		} catch (DateTimeException e) {
+			return null;
+		}
+		// Like a non-lenient Calendar, take the later of two times that
+		// repeat when summer time ends, and reject times (but not dates,
+		// which are taken as the start of the day) skipped when it begins.
+		long raw = local - TZ.getRawOffset();
+		long later = local - TZ.getOffset(raw + MILLIS_PER_DAY);
+		if (later + TZ.getOffset(later) == local)
+			return new Date(later);
+		long earlier = local - TZ.getOffset(raw - MILLIS_PER_DAY);
+		if (earlier + TZ.getOffset(earlier) == local)
+			return new Date(earlier);
+		if (count > 3)
+			return null;
+		// Midnight skipped; the day starts when the clocks go forward.
+		return new Date(Math.max(earlier, later));
+	}
+}
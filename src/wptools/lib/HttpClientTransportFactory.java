@@ -0,0 +1,435 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ConnectException;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
+import org.apache.xmlrpc.client.XmlRpcHttpTransport;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactoryImpl;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+
+/**
+ * A transport factory built on java.net.http.HttpClient. Connections are
+ * pooled and kept alive across calls (and across XmlRpcClient objects,
+ * since clients with the same settings share one HttpClient), and
+ * HTTP/2 is used for HTTPS servers that offer it, so that parallel calls
+ * can be multiplexed over a single connection.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class HttpClientTransportFactory extends XmlRpcTransportFactoryImpl {
+	// Headers HttpClient insists on setting itself.
+	private static final Set<String> RESTRICTED = Collections.unmodifiableSet(
+		new HashSet<String>(Arrays.asList("connection", "content-length",
+			"expect", "host", "upgrade")));
+
+	// Shared HttpClients, by settings.
+	private static final Map<List<Object>, HttpClient> CLIENTS =
+		new HashMap<List<Object>, HttpClient>();
+
+	// Most we'll read after the response to make the connection reusable.
+	private static final int DRAIN_SIZE = 8192;
+
+	// Buffer between us and HttpClient when streaming a request.
+	private static final int PIPE_SIZE = 65536;
+
+	// See getPlainSslContext.
+	private static SSLContext plainSslContext;
+
+	private HttpClient httpClient;
+
+	/**
+	 * Constructor.
+	 * @param client         XML-RPC client we are the factory for.
+	 * @param sslContext     SSL context to use, or null for the default.
+	 * @param connectTimeout Connect timeout in milliseconds, or 0 for
+	 *                       none.
+	 */
+	public HttpClientTransportFactory(XmlRpcClient client,
+			SSLContext sslContext, int connectTimeout) {
+		super(client);
+		if (sslContext == null && "http".equals(((XmlRpcHttpClientConfig)
+				client.getClientConfig()).getServerURL().getProtocol()))
+			sslContext = getPlainSslContext();
+		httpClient = getHttpClient(sslContext, connectTimeout);
+	}
+
+	/**
+	 * Get an SSL context for clients that will only ever speak plain
+	 * HTTP (we don't follow redirects). HttpClient insists on having one,
+	 * and setting up the default one (loading the trusted certificates
+	 * and so on) takes longer than anything else a short command does.
+	 * This one trusts nothing, and so costs next to nothing.
+	 */
+	private static synchronized SSLContext getPlainSslContext() {
+		if (plainSslContext == null) {
+			try {
+				plainSslContext = SSLContext.getInstance("TLS");
+				plainSslContext.init(new KeyManager[0], new TrustManager[0], null);
+			} catch (NoSuchAlgorithmException|KeyManagementException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return plainSslContext;
+	}
+
+	/**
+	 * Set the maximum number of idle connections kept per host. Must be
+	 * called before the first factory is created to have any effect.
+	 * @param size      Pool size.
+	 */
+	public static void setPoolSize(int size) {
+		System.setProperty("jdk.httpclient.connectionPoolSize", Integer.toString(size));
+	}
+
+	private static synchronized HttpClient getHttpClient(SSLContext sslContext,
+			int connectTimeout) {
+		List<Object> key = Arrays.asList((Object) sslContext, connectTimeout);
+		HttpClient ret = CLIENTS.get(key);
+		if (ret != null)
+			return ret;
+		HttpClient.Builder builder = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_2)
+			.followRedirects(HttpClient.Redirect.NEVER);
+		if (sslContext != null)
+			builder.sslContext(sslContext);
+		if (connectTimeout > 0)
+			builder.connectTimeout(Duration.ofMillis(connectTimeout));
+		ret = builder.build();
+		CLIENTS.put(key, ret);
+		return ret;
+	}
+
+	public XmlRpcTransport getTransport() {
+		return new Transport(getClient(), httpClient);
+	}
+
+	/**
+	 * The transport itself; one is made per request.
+	 */
+	private static class Transport extends XmlRpcHttpTransport {
+		private static final String USER_AGENT =
+			XmlRpcHttpTransport.USER_AGENT + " (java.net.http)";
+
+		private HttpClient httpClient;
+		private List<String> headers;
+		private XmlRpcRequest request;
+		private boolean streaming;
+		private HttpResponse<InputStream> response;
+		private Trace trace;
+		private Trace.Phase serializing;
+
+		public Transport(XmlRpcClient client, HttpClient httpClient) {
+			super(client, USER_AGENT);
+			this.httpClient = httpClient;
+			this.headers = new ArrayList<String>();
+		}
+
+		public Object sendRequest(XmlRpcRequest request) throws XmlRpcException {
+			this.request = request;
+			streaming = UploadFile.isStreaming(request);
+			response = null;
+			trace = Trace.begin(request);
+			trace.resolve();
+			return super.sendRequest(request);
+		}
+
+		// Requests with files in them are sent as they are written, not
+		// written to memory first to learn their length.
+		protected boolean isUsingByteArrayOutput(XmlRpcHttpClientConfig config) {
+			return !streaming && super.isUsingByteArrayOutput(config);
+		}
+
+		// Requests are serialized here when written to memory first,
+		// and in writeRequest otherwise.
+		protected ReqWriter newReqWriter(XmlRpcRequest request) throws XmlRpcException,
+				IOException, org.xml.sax.SAXException {
+			serializing = trace.phase(Trace.SERIALIZE);
+			try {
+				return super.newReqWriter(request);
+			} catch (XmlRpcException|IOException|org.xml.sax.SAXException|RuntimeException e) {
+				serializing.end();
+				throw e;
+			}
+		}
+
+		protected void setRequestHeader(String header, String value) {
+			if (RESTRICTED.contains(header.toLowerCase()))
+				return;
+			headers.add(header);
+			headers.add(value);
+		}
+
+		protected void writeRequest(ReqWriter writer) throws XmlRpcException,
+				IOException, org.xml.sax.SAXException {
+			XmlRpcHttpClientConfig config = (XmlRpcHttpClientConfig) request.getConfig();
+			HttpRequest.Builder builder = null;
+			try {
+				builder = HttpRequest.newBuilder(config.getServerURL().toURI());
+			} catch (URISyntaxException e) {
+				throw new XmlRpcClientException(e.getMessage(), e);
+			}
+			if (!"https".equalsIgnoreCase(config.getServerURL().getProtocol())) {
+				// Don't attempt an h2c upgrade; too many servers botch it.
+				builder.version(HttpClient.Version.HTTP_1_1);
+			}
+			if (config.getReplyTimeout() > 0)
+				builder.timeout(Duration.ofMillis(config.getReplyTimeout()));
+			if (!headers.isEmpty())
+				builder.headers(headers.toArray(new String[headers.size()]));
+			if (streaming) {
+				stream(builder, writer, config.isGzipCompressing());
+			} else {
+				ByteArrayOutputStream raw = new ByteArrayOutputStream();
+				byte[] body = null;
+				try {
+					writer.write(raw);
+					body = raw.toByteArray();
+					if (config.isGzipCompressing()) {
+						ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+						try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+							gzip.write(body);
+						}
+						body = compressed.toByteArray();
+					}
+				} finally {
+					serializing.end();
+				}
+				Traffic.sent(request.getMethodName(), body.length, raw.size());
+				builder.POST(HttpRequest.BodyPublishers.ofByteArray(body));
+				// HttpClient connects, sends, and waits all in one; so
+				// far as we can tell, it's all waiting.
+				Trace.Phase phase = trace.phase(Trace.WAIT);
+				try {
+					response = httpClient.send(builder.build(),
+						HttpResponse.BodyHandlers.ofInputStream());
+				} catch (ConnectException e) {
+					throw connectException(e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new XmlRpcClientException("Interrupted", e);
+				} finally {
+					phase.end();
+				}
+			}
+			int status = response.statusCode();
+			if (status < 200 || status > 299) {
+				close();
+				throw new XmlRpcHttpTransportException(status,
+					Integer.toString(status));
+			}
+		}
+
+		/**
+		 * Send a request as it is written, through a pipe that HttpClient
+		 * reads the body from (chunked, since we can't know its length).
+		 */
+		private void stream(HttpRequest.Builder builder, ReqWriter writer,
+				boolean gzip) throws XmlRpcException, IOException,
+				org.xml.sax.SAXException {
+			serializing.end();
+			final PipedInputStream pipe = new PipedInputStream(PIPE_SIZE);
+			PipedOutputStream sink = new PipedOutputStream(pipe);
+			builder.POST(HttpRequest.BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+				public InputStream get() {
+					return pipe;
+				}
+			}));
+			CompletableFuture<HttpResponse<InputStream>> future = httpClient.sendAsync(
+				builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+			// If the exchange ends early, stop us writing to a pipe no one
+			// is reading.
+			future.whenComplete(new BiConsumer<HttpResponse<InputStream>, Throwable>() {
+				public void accept(HttpResponse<InputStream> r, Throwable t) {
+					try {
+						pipe.close();
+					} catch (IOException e) {
+						/* ignore */
+					}
+				}
+			});
+			CountingOutputStream wire = new CountingOutputStream(sink);
+			OutputStream body = gzip ? new GZIPOutputStream(wire, PIPE_SIZE) : wire;
+			CountingOutputStream raw = new CountingOutputStream(body) {
+				// The writer closes what it writes to even if it fails,
+				// which would end the request as if it were whole. We do
+				// the closing instead.
+				public void close() throws IOException {
+					flush();
+				}
+			};
+			boolean written = false;
+			Trace.Phase phase = trace.phase(Trace.SEND);
+			try {
+				writer.write(raw);
+				body.close();
+				written = true;
+			} catch (IOException|org.xml.sax.SAXException e) {
+				// If the exchange ended before we finished (failing, or
+				// with an early response such as an error status), what
+				// it says is more to the point than our failure to write.
+				if (!future.isDone())
+					throw e;
+				written = true;
+			} finally {
+				phase.end();
+				Traffic.sent(request.getMethodName(), wire.count, raw.count);
+				// Abandon a partial request (closing the pipe, which fails
+				// HttpClient's next read from it).
+				if (!written)
+					future.cancel(true);
+			}
+			phase = trace.phase(Trace.WAIT);
+			try {
+				response = await(future);
+			} finally {
+				phase.end();
+			}
+		}
+
+		private HttpResponse<InputStream> await(
+				CompletableFuture<HttpResponse<InputStream>> future)
+				throws IOException, XmlRpcException {
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof ConnectException)
+					throw connectException((ConnectException) cause);
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				throw new XmlRpcClientException(String.valueOf(cause.getMessage()), cause);
+			} catch (InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new XmlRpcClientException("Interrupted", e);
+			}
+		}
+
+		// HttpClient leaves the message out, unlike HttpURLConnection.
+		private ConnectException connectException(ConnectException e) {
+			if (e.getMessage() != null)
+				return e;
+			ConnectException ret = new ConnectException("Connection refused");
+			ret.initCause(e);
+			return ret;
+		}
+
+		// We do compression and decompression ourselves, so as to be able
+		// to count bytes both ways.
+		protected boolean isCompressingRequest(XmlRpcStreamRequestConfig config) {
+			return false;
+		}
+
+		protected boolean isResponseGzipCompressed(XmlRpcStreamRequestConfig config) {
+			return false;
+		}
+
+		protected InputStream getInputStream() throws XmlRpcException {
+			boolean gzipped = "gzip".equalsIgnoreCase(
+				response.headers().firstValue("Content-Encoding").orElse(""));
+			try {
+				return Traffic.received(request.getMethodName(), response.body(), gzipped);
+			} catch (IOException e) {
+				throw new XmlRpcClientException("Failed to read server's response: "
+					+ e.getMessage(), e);
+			}
+		}
+
+		protected Object readResponse(XmlRpcStreamRequestConfig config,
+				InputStream in) throws XmlRpcException {
+			Trace.Phase phase = trace.phase(Trace.PARSE);
+			try {
+				if (config instanceof ResponseStreamer.Config)
+					return ResponseStreamer.readResponse(config, in);
+				return super.readResponse(config, in);
+			} finally {
+				phase.end();
+			}
+		}
+
+		protected void close() throws XmlRpcClientException {
+			if (response == null)
+				return;
+			// Read any small amount of trailing junk, so the connection
+			// can be reused. The parser may already have closed the
+			// stream, so failure to read is normal.
+			InputStream in = response.body();
+			response = null;
+			try {
+				in.read(new byte[DRAIN_SIZE]);
+			} catch (IOException e) {
+				/* ignore */
+			}
+			try {
+				in.close();
+			} catch (IOException e) {
+				throw new XmlRpcClientException("Failed to close connection", e);
+			}
+		}
+	}
+
+	/**
+	 * Counts what gets written through it.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		public long count;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+			count = 0;
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
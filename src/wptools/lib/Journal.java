@@ -0,0 +1,128 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only record of completed work items, so that an interrupted
+ * bulk operation can pick up where it left off. Each line holds an item
+ * key and a value (e.g. the post ID the item produced), separated by a
+ * tab. Every record is written out and synced to disk as soon as it is
+ * made, so it survives the process being killed or the system crashing.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class Journal {
+	private Map<String, String> done;
+	private FileOutputStream out;
+
+	/**
+	 * Constructor. Reads any existing records and opens the journal for
+	 * appending.
+	 * @param file      Journal file.
+	 */
+	public Journal(File file) throws IOException {
+		done = new HashMap<String, String>();
+		boolean needNewline = false;
+		if (file.exists()) {
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					int tab = line.indexOf('\t');
+					if (tab < 0)
+						continue;  /* damaged; must redo */
+					done.put(unescape(line.substring(0, tab)),
+						unescape(line.substring(tab + 1)));
+				}
+			}
+			// If we were killed mid-write, don't glue the next record
+			// onto the partial one.
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				long len = raf.length();
+				if (len > 0) {
+					raf.seek(len - 1);
+					needNewline = raf.read() != '\n';
+				}
+			}
+		}
+		out = new FileOutputStream(file, true);
+		if (needNewline)
+			out.write('\n');
+	}
+
+	/**
+	 * Get the value recorded for an item.
+	 * @param key       Item key.
+	 * @return          Value, or null if nothing has been recorded.
+	 */
+	public synchronized String get(String key) {
+		return done.get(key);
+	}
+
+	/**
+	 * Get all values recorded so far.
+	 */
+	public synchronized Collection<String> values() {
+		return new ArrayList<String>(done.values());
+	}
+
+	/**
+	 * Record an item as done. An item may be recorded more than once
+	 * (e.g. as started, then as finished); the last record wins.
+	 * @param key       Item key.
+	 * @param value     Value to record with it.
+	 */
+	public synchronized void record(String key, String value) throws IOException {
+		String line = escape(key) + "\t" + escape(value) + "\n";
+		out.write(line.getBytes(StandardCharsets.UTF_8));
+		out.getFD().sync();
+		done.put(key, value);
+	}
+
+	/**
+	 * Close the journal.
+	 */
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	private static String unescape(String s) {
+		if (s.indexOf('\\') < 0)
+			return s;
+		StringBuilder ret = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				c = s.charAt(++i);
+				if (c == 't')
+					c = '\t';
+				else if (c == 'n')
+					c = '\n';
+			}
+			ret.append(c);
+		}
+		return ret.toString();
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JSON parser, the counterpart of JsonWriter. Objects become
+ * Maps (in document order), arrays become Object[] (as XML-RPC arrays
+ * do), integers that fit become Integer or Long, other numbers Double.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class JsonReader {
+	private String s;
+	private int pos;
+
+	private JsonReader(String s) {
+		this.s = s;
+		this.pos = 0;
+	}
+
+	/**
+	 * Parse a JSON document (e.g. one line of newline-delimited JSON).
+	 * @param s         String to parse.
+	 * @return          Parsed value.
+	 */
+	public static Object parse(String s) throws ParseException {
+		JsonReader r = new JsonReader(s);
+		Object ret = r.value();
+		r.skipSpace();
+		if (r.pos < s.length())
+			throw r.error("trailing junk");
+		return ret;
+	}
+
+	private Object value() throws ParseException {
+		skipSpace();
+		if (pos >= s.length())
+			throw error("unexpected end of input");
+		char c = s.charAt(pos);
+		switch (c) {
+		case '{':
+			return object();
+		case '[':
+			return array();
+		case '"':
+			return string();
+		case 't':
+			return literal("true", Boolean.TRUE);
+		case 'f':
+			return literal("false", Boolean.FALSE);
+		case 'n':
+			return literal("null", null);
+		default:
+			if (c == '-' || (c >= '0' && c <= '9'))
+				return number();
+			throw error("unexpected character");
+		}
+	}
+
+	private Map<String, Object> object() throws ParseException {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		pos++;
+		skipSpace();
+		if (peek() == '}') {
+			pos++;
+			return ret;
+		}
+		while (true) {
+			skipSpace();
+			if (peek() != '"')
+				throw error("expecting member name");
+			String name = string();
+			skipSpace();
+			expect(':');
+			ret.put(name, value());
+			skipSpace();
+			if (peek() == '}') {
+				pos++;
+				return ret;
+			}
+			expect(',');
+		}
+	}
+
+	private Object[] array() throws ParseException {
+		List<Object> ret = new ArrayList<Object>();
+		pos++;
+		skipSpace();
+		if (peek() == ']') {
+			pos++;
+			return ret.toArray();
+		}
+		while (true) {
+			ret.add(value());
+			skipSpace();
+			if (peek() == ']') {
+				pos++;
+				return ret.toArray();
+			}
+			expect(',');
+		}
+	}
+
+	private String string() throws ParseException {
+		pos++;
+		StringBuilder ret = null;
+		int start = pos;
+		while (true) {
+			if (pos >= s.length())
+				throw error("unterminated string");
+			char c = s.charAt(pos);
+			if (c == '"') {
+				String tail = s.substring(start, pos++);
+				return ret == null ? tail : ret.append(tail).toString();
+			}
+			if (c != '\\') {
+				pos++;
+				continue;
+			}
+			if (ret == null)
+				ret = new StringBuilder();
+			ret.append(s, start, pos++);
+			if (pos >= s.length())
+				throw error("unterminated string");
+			c = s.charAt(pos++);
+			switch (c) {
+			case '"': case '\\': case '/':
+				ret.append(c);
+				break;
+			case 'b':
+				ret.append('\b');
+				break;
+			case 'f':
+				ret.append('\f');
+				break;
+			case 'n':
+				ret.append('\n');
+				break;
+			case 'r':
+				ret.append('\r');
+				break;
+			case 't':
+				ret.append('\t');
+				break;
+			case 'u':
+				if (pos + 4 > s.length())
+					throw error("bad escape");
+				try {
+					ret.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("bad escape");
+				}
+				pos += 4;
+				break;
+			default:
+				throw error("bad escape");
+			}
+			start = pos;
+		}
+	}
+
+	private Object number() throws ParseException {
+		int start = pos;
+		boolean integral = true;
+		if (peek() == '-')
+			pos++;
+		while (pos < s.length()) {
+			char c = s.charAt(pos);
+			if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-')
+				integral = false;
+			else if (c < '0' || c > '9')
+				break;
+			pos++;
+		}
+		String n = s.substring(start, pos);
+		try {
+			if (integral) {
+				long l = Long.parseLong(n);
+				if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE)
+					return (int) l;
+				return l;
+			}
+			return Double.parseDouble(n);
+		} catch (NumberFormatException e) {
+			throw error("bad number");
+		}
+	}
+
+	private Object literal(String word, Object value) throws ParseException {
+		if (!s.startsWith(word, pos))
+			throw error("unexpected character");
+		pos += word.length();
+		return value;
+	}
+
+	private void skipSpace() {
+		while (pos < s.length()) {
+			char c = s.charAt(pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+				break;
+			pos++;
+		}
+	}
+
+	private char peek() {
+		return pos < s.length() ? s.charAt(pos) : '\0';
+	}
+
+	private void expect(char c) throws ParseException {
+		if (peek() != c)
+			throw error("expecting '" + c + "'");
+		pos++;
+	}
+
+	private ParseException error(String message) {
+		return new ParseException(message + " at offset " + pos, pos);
+	}
+}
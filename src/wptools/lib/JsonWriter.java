@@ -0,0 +1,217 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * A minimal streaming JSON writer, sufficient for the values XML-RPC
+ * hands us. Output goes straight to the underlying Writer; nothing is
+ * built up in memory, and no formatting is done with String.format.
+ * Commas between members and elements are handled automatically.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class JsonWriter {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Writer out;
+	private char[] dateBuf;
+
+	// One entry per open object or array: true if something has been
+	// written in it yet, so the next thing needs a comma.
+	private boolean[] started;
+	private int depth;
+	private boolean afterName;
+
+	/**
+	 * Constructor.
+	 * @param out       Where to write.
+	 */
+	public JsonWriter(Writer out) {
+		this.out = out;
+		dateBuf = new char[DateCodec.MAX_LENGTH + 3];
+		started = new boolean[8];
+		depth = 0;
+		afterName = false;
+	}
+
+	public JsonWriter beginObject() throws IOException {
+		separate();
+		out.write('{');
+		push();
+		return this;
+	}
+
+	public JsonWriter endObject() throws IOException {
+		depth--;
+		out.write('}');
+		return this;
+	}
+
+	public JsonWriter beginArray() throws IOException {
+		separate();
+		out.write('[');
+		push();
+		return this;
+	}
+
+	public JsonWriter endArray() throws IOException {
+		depth--;
+		out.write(']');
+		return this;
+	}
+
+	/**
+	 * Write the name of an object member; its value must come next.
+	 * @param name      Member name.
+	 */
+	public JsonWriter name(String name) throws IOException {
+		separate();
+		string(name);
+		out.write(':');
+		afterName = true;
+		return this;
+	}
+
+	/**
+	 * Write a value. Strings, numbers, booleans, dates, byte arrays
+	 * (as base64), arrays and maps are supported; anything else is
+	 * written as its string representation.
+	 * @param value     Value to write.
+	 */
+	public JsonWriter value(Object value) throws IOException {
+		if (value instanceof Date)
+			return value((Date) value, false);
+		if (value instanceof Object[]) {
+			beginArray();
+			for (Object o : (Object[]) value)
+				value(o);
+			return endArray();
+		}
+		if (value instanceof Map) {
+			beginObject();
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+				name(e.getKey().toString());
+				value(e.getValue());
+			}
+			return endObject();
+		}
+		separate();
+		if (value == null)
+			out.write("null");
+		else if (value instanceof String)
+			string((String) value);
+		else if (value instanceof Number || value instanceof Boolean)
+			out.write(value.toString());
+		else if (value instanceof byte[])
+			string(Base64.getEncoder().encodeToString((byte[]) value));
+		else
+			string(value.toString());
+		return this;
+	}
+
+	/**
+	 * Write a date as an ISO8601 string. XML-RPC dates carry no time
+	 * zone, so the fields are written as the parser read them.
+	 * @param value     Date to write.
+	 * @param utc       True to suffix the time with Z.
+	 */
+	public JsonWriter value(Date value, boolean utc) throws IOException {
+		separate();
+		if (value == null) {
+			out.write("null");
+			return this;
+		}
+		int len = 0;
+		dateBuf[len++] = '"';
+		len += DateCodec.format(value, dateBuf, len);
+		if (utc)
+			dateBuf[len++] = 'Z';
+		dateBuf[len++] = '"';
+		out.write(dateBuf, 0, len);
+		return this;
+	}
+
+	/**
+	 * Flush the underlying Writer.
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	private void push() {
+		if (depth == started.length) {
+			boolean[] nstarted = new boolean[depth * 2];
+			System.arraycopy(started, 0, nstarted, 0, depth);
+			started = nstarted;
+		}
+		started[depth++] = false;
+	}
+
+	/**
+	 * Write a comma if one is needed before the next item.
+	 */
+	private void separate() throws IOException {
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+		if (depth > 0) {
+			if (started[depth - 1])
+				out.write(',');
+			else
+				started[depth - 1] = true;
+		}
+	}
+
+	private void string(String s) throws IOException {
+		out.write('"');
+		int len = s.length();
+		int start = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			// Line and paragraph separators are escaped for the sake of
+			// consumers that treat JSON as JavaScript.
+			if (c >= ' ' && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029')
+				continue;
+			out.write(s, start, i - start);
+			start = i + 1;
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				out.write("\\u");
+				out.write(HEX[(c >> 12) & 0xf]);
+				out.write(HEX[(c >> 8) & 0xf]);
+				out.write(HEX[(c >> 4) & 0xf]);
+				out.write(HEX[c & 0xf]);
+				break;
+			}
+		}
+		out.write(s, start, len - start);
+		out.write('"');
+	}
+}
@@ -11,22 +11,30 @@ import org.apache.xmlrpc.client.XmlRpcClient;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.text.ParseException;
-import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.net.ssl.*;
 
 /**
@@ -37,12 +45,21 @@ import javax.net.ssl.*;
  */
 public class Misc {
 	private static String myName;
+	private static SSLContext sslContext;
+	private static Invocation invocation;
+
+	// SSL contexts made by bypassSslAuth, by fingerprint.
+	private static final Map<String, SSLContext> SSL_CONTEXTS =
+		new HashMap<String, SSLContext>();
 	
 	/* lengths of the various fingerprint types we support, in bytes */
 	private static final int MD5_LEN = 16;
 	private static final int SHA1_LEN = 20;
 	private static final int SHA256_LEN = 32;
 
+	/* how many certs a fingerprint-checking trust manager remembers */
+	private static final int CHECKED_CERTS = 64;
+
 	public static String getMyName() {
 		return myName;
 	}
@@ -74,17 +91,156 @@ public class Misc {
 	 */
 	public static void die(String message, int estat) {
 		error(message);
+		exit(estat);
+	}
+
+	/**
+	 * Exit with the specified status. When running inside the daemon,
+	 * this ends only the current command (by throwing Exit), not the
+	 * whole JVM.
+	 * @param estat Exit status.
+	 */
+	public static void exit(int estat) {
+		if (invocation != null)
+			throw new Exit(estat);
 		System.exit(estat);
 	}
+
+	/**
+	 * Thrown by exit when running inside the daemon. It is an Error so
+	 * that commands catching Exception don't intercept it.
+	 */
+	public static class Exit extends Error {
+		private static final long serialVersionUID = 1L;
+		private int status;
+
+		public Exit(int status) {
+			super("exit " + status);
+			this.status = status;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+	}
+
+	/**
+	 * What a command run inside the daemon sees in place of the
+	 * process-wide environment of a standalone one.
+	 */
+	private static class Invocation {
+		public File cwd;
+		public Map<String, String> env;
+		public boolean console;
+		public List<Runnable> exitActions;
+	}
+
+	/**
+	 * Begin running a command inside the daemon, on behalf of a client.
+	 * Only one command may run at a time.
+	 * @param cwd     Client's working directory.
+	 * @param env     Client's environment (or the part of it that
+	 *                matters to us).
+	 * @param console True if the client has a console.
+	 */
+	public static void beginInvocation(File cwd, Map<String, String> env, boolean console) {
+		invocation = new Invocation();
+		invocation.cwd = cwd;
+		invocation.env = env;
+		invocation.console = console;
+		invocation.exitActions = new ArrayList<Runnable>();
+	}
+
+	/**
+	 * Finish running a command inside the daemon, doing anything it
+	 * asked to be done at exit.
+	 */
+	public static void endInvocation() {
+		Invocation ending = invocation;
+		invocation = null;
+		for (Runnable action : ending.exitActions)
+			action.run();
+	}
+
+	/**
+	 * Arrange for something to be done when the command exits.
+	 * @param action  What to do.
+	 */
+	public static void atExit(final Runnable action) {
+		if (invocation != null) {
+			invocation.exitActions.add(action);
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				action.run();
+			}
+		});
+	}
+
+	/**
+	 * Get an environment variable.
+	 * @param name    Variable name.
+	 * @return        Value, or null if not set.
+	 */
+	public static String getenv(String name) {
+		if (invocation != null)
+			return invocation.env.get(name);
+		return System.getenv(name);
+	}
+
+	/**
+	 * Get a File for a name the user gave us. Relative names are
+	 * relative to the client's working directory inside the daemon.
+	 * @param name    File name.
+	 */
+	public static File getFile(String name) {
+		File ret = new File(name);
+		if (invocation != null && !ret.isAbsolute())
+			ret = new File(invocation.cwd, name);
+		return ret;
+	}
+
+	/**
+	 * See if we are being run interactively.
+	 */
+	public static boolean hasConsole() {
+		if (invocation != null)
+			return invocation.console;
+		return System.console() != null;
+	}
 	
 	/**
 	 * Bypass the normal SSL certificate authentication. If the passed
 	 * fingerprint is null, bypasses all authentication (dangerous).
 	 * Else trust anything whose chain contains a cert with the specified
-	 * fingerprint.
+	 * fingerprint. Only connections made with the resulting context
+	 * (see getSslContext) are affected; nothing JVM-wide is changed, so
+	 * later calls in the same JVM (e.g. in the daemon) are not weakened.
+	 * Contexts are kept for the life of the process, so connections made
+	 * with one resume TLS sessions from its session cache.
 	 * @param fing		Fingerprint
 	 */
 	public static void bypassSslAuth(final byte[] fing) {
+		String key = fing == null ? "" : Base64.getEncoder().encodeToString(fing);
+		synchronized (SSL_CONTEXTS) {
+			sslContext = SSL_CONTEXTS.get(key);
+			if (sslContext == null) {
+				sslContext = makeSslContext(fing);
+				SSL_CONTEXTS.put(key, sslContext);
+			}
+		}
+	}
+
+	/**
+	 * Get the SSL context set up by bypassSslAuth, if any.
+	 * @return       SSL context, or null to use the default.
+	 */
+	public static SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	private static SSLContext makeSslContext(final byte[] fing) {
 		// Determine fingerprint type from its length
 		final String type;
 		if (fing == null) {
@@ -105,62 +261,100 @@ public class Misc {
 			}
 		}
 
-	    // Create a trust manager
+		// Create a trust manager. Being an X509ExtendedTrustManager, it
+		// is also what would check the host name, which it doesn't. It
+		// remembers whether each cert it has hashed matched, keyed by the
+		// cert's encoding, so a server presenting the same chain again
+		// (on every new connection) costs no hashing.
 		TrustManager[] trustAllCerts = new TrustManager[] {
-			new X509TrustManager() {
+			new X509ExtendedTrustManager() {
+				private final Map<ByteBuffer, Boolean> checked =
+					new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+						@Override
+						protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+							return size() > CHECKED_CERTS;
+						}
+					};
+
 				public X509Certificate[] getAcceptedIssuers() {
 					return null;
 				}
 
 				public void checkClientTrusted(X509Certificate[] certs, String authType) throws CertificateException {
-					matchFing(certs);
+					matchFing(certs, null);
 				}
 
 				public void checkServerTrusted(X509Certificate[] certs, String authType) throws CertificateException {
-					matchFing(certs);
+					matchFing(certs, null);
+				}
+
+				public void checkClientTrusted(X509Certificate[] certs, String authType, Socket socket) throws CertificateException {
+					matchFing(certs, null);
+				}
+
+				public void checkServerTrusted(X509Certificate[] certs, String authType, Socket socket) throws CertificateException {
+					SSLSession session = socket instanceof SSLSocket ?
+						((SSLSocket) socket).getHandshakeSession() : null;
+					matchFing(certs, session == null ? null : session.getPeerHost());
 				}
 
-				private void matchFing(X509Certificate[] certs) throws CertificateException {
+				public void checkClientTrusted(X509Certificate[] certs, String authType, SSLEngine engine) throws CertificateException {
+					matchFing(certs, null);
+				}
+
+				public void checkServerTrusted(X509Certificate[] certs, String authType, SSLEngine engine) throws CertificateException {
+					matchFing(certs, engine.getPeerHost());
+				}
+
+				private void matchFing(X509Certificate[] certs, String host) throws CertificateException {
 					if (fing == null)
 						return;
-					MessageDigest md = null;
+					Trace.Phase phase = Trace.standalone(Trace.VERIFY, host);
 					try {
-						md = MessageDigest.getInstance(type);
-					} catch (NoSuchAlgorithmException e) {
-						throw new CertificateException(e);
+						checkFing(certs);
+					} finally {
+						phase.end();
 					}
+				}
+
+				private void checkFing(X509Certificate[] certs) throws CertificateException {
+					MessageDigest md = null;
 					for (X509Certificate cert: certs) {
-						md.reset();
-						if (Arrays.equals(md.digest(cert.getEncoded()), fing))
+						ByteBuffer encoded = ByteBuffer.wrap(cert.getEncoded());
+						Boolean matches;
+						synchronized (checked) {
+							matches = checked.get(encoded);
+						}
+						if (matches == null) {
+							if (md == null) {
+								try {
+									md = MessageDigest.getInstance(type);
+								} catch (NoSuchAlgorithmException e) {
+									throw new CertificateException(e);
+								}
+							}
+							md.reset();
+							matches = Arrays.equals(md.digest(encoded.array()), fing);
+							synchronized (checked) {
+								checked.put(encoded, matches);
+							}
+						}
+						if (matches)
 							return;
 					}
 					throw new CertificateException("No matching fingerprint found.");
 				}
 			}
 		};
-	 
-	    // Install the trust manager
-	    SSLContext sc = null;
+
+		SSLContext sc = null;
 		try {
 			sc = SSLContext.getInstance("SSL");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		}
-		
-	    // Create empty HostnameVerifier
-		HostnameVerifier hv = new HostnameVerifier() {
-            public boolean verify(String arg0, SSLSession arg1) {
-                    return true;
-            }
-        };
-
-	    try {
 			sc.init(null, trustAllCerts, new java.security.SecureRandom());
-		} catch (KeyManagementException e) {
+		} catch (NoSuchAlgorithmException|KeyManagementException e) {
 			throw new RuntimeException(e);
 		}
-	    HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-	    HttpsURLConnection.setDefaultHostnameVerifier(hv);
+		return sc;
 	}
 	
 	/**
@@ -171,15 +365,82 @@ public class Misc {
 	public static XmlRpcClient xmlRpcService(String url, Properties props, CommandLine cmdLine) throws MalformedURLException {
 		XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
 		config.setServerURL(new URL(url));
+		if (props.hasKey("connect-timeout"))
+			config.setConnectionTimeout(getSeconds(props, "connect-timeout"));
+		if (props.hasKey("read-timeout"))
+			config.setReplyTimeout(getSeconds(props, "read-timeout"));
+		if (props.hasKey("gzip")) {
+			String gzip = props.get("gzip");
+			if ("responses".equals(gzip) || "both".equals(gzip))
+				config.setGzipRequesting(true);
+			if ("both".equals(gzip))
+				config.setGzipCompressing(true);
+			else if (!"responses".equals(gzip) && !"off".equals(gzip))
+				die("invalid value for property gzip: " + gzip);
+		}
+		if (cmdLine.hasOption("traffic"))
+			Traffic.reportOnExit();
+		if (cmdLine.hasOption("stats-json"))
+			Stats.reportOnExit(getFile(cmdLine.getOptionValue("stats-json")));
+		else if (cmdLine.hasOption("stats"))
+			Stats.reportOnExit(null);
+		if (cmdLine.hasOption("trace"))
+			Trace.traceTo(getFile(cmdLine.getOptionValue("trace")));
 		XmlRpcClient client = new XmlRpcClient();
 		client.setConfig(config);
+		client.setTypeFactory(new UploadFile.Factory(client));
+		sslContext = null;
 		if (cmdLine.hasOption("insecure"))
 			bypassSslAuth(null);
 		else if (props.hasKey("accept"))
 			bypassSslAuth(parseFing(props.get("accept")));
+
+		// Pick a transport. The old HttpURLConnection one is still
+		// available in case some server doesn't get along with ours.
+		String transport = props.hasKey("transport") ? props.get("transport") : "http";
+		if ("http".equals(transport)) {
+			if (props.hasKey("pool-size"))
+				HttpClientTransportFactory.setPoolSize(props.getInt("pool-size"));
+			client.setTransportFactory(new HttpClientTransportFactory(client,
+				sslContext, config.getConnectionTimeout()));
+		} else if ("urlconnection".equals(transport)) {
+			client.setTransportFactory(new SunTransportFactory(client, sslContext));
+		} else {
+			die("unknown transport: " + transport);
+		}
+
+		// Adapt how many requests we send at once to what the server
+		// can take, if asked to.
+		int ceiling = ConcurrencyLimiter.getCeiling(props);
+		if (ceiling > 0)
+			client.setTransportFactory(ConcurrencyLimiter.forUrl(config.getServerURL(),
+				ceiling).wrap(client.getTransportFactory()));
+
+		// Time limits, retries and hedging apply to whole calls, each
+		// attempt at which is subject to the limiter above.
+		client.setTransportFactory(new CallPolicy(props).wrap(client.getTransportFactory()));
+		if (cmdLine.hasOption("stats") || cmdLine.hasOption("stats-json"))
+			client.setTransportFactory(Stats.wrap(client.getTransportFactory()));
 		return client;
 	}
 	
+	/**
+	 * Get a time interval property, specified in seconds.
+	 * @return The interval in milliseconds.
+	 */
+	private static int getSeconds(Properties props, String key) {
+		String raw = props.get(key);
+		try {
+			double ret = Double.parseDouble(raw) * 1000.0;
+			if (ret >= 0.0 && ret <= Integer.MAX_VALUE)
+				return (int) ret;
+		} catch (NumberFormatException e) {
+			/* fall through */
+		}
+		die(String.format("invalid value for property %s: %s", key, raw));
+		return 0;  /* not reached */
+	}
+	
 	private static byte[] parseFing(String s) {
 		String s2 = s.replaceAll(":", "");
 		int len = s2.length();
@@ -201,36 +462,26 @@ public class Misc {
 	 * @return A string containing the password.
 	 */
 	public static String getPassword() {
-		String ret = System.getenv("WPTOOLS_PASS");
+		String ret = getenv("WPTOOLS_PASS");
 		if (ret != null)
 			return ret;
+		if (invocation != null)
+			die("WPTOOLS_PASS must be set to use the daemon");
 		return new String(System.console().readPassword("Password: ", (Object) null));
 	}
 	
 	/**
-	 * Format a date to an ISO8601 string
+	 * Format a date to an ISO8601 string (see DateCodec).
 	 * @param d      Date to format.
 	 * @param zone   Time zone to suffix it with
 	 * @return       Formatted date
 	 */
 	public static String formatDate(Date d, String zone) {
-		return String.format("%tY-%<tm-%<tdT%<tH:%<tM:%<tS%s", d,
-			zone == null ? "" : zone);
-	}
-	
-	// Formats we try, in order. These should be non-lenient, longest first.
-	private static final SimpleDateFormat[] DATE_FORMATS = new SimpleDateFormat[] {
-		new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss"),
-		new SimpleDateFormat("yyyy-MM-dd'T'HH:mm"),
-		new SimpleDateFormat("yyyy-MM-dd")
-	};
-	static {
-		for (SimpleDateFormat f : DATE_FORMATS)
-			f.setLenient(false);
+		return DateCodec.format(d, zone);
 	}
 	
 	/**
-	 * Parse an ISO8601 date/time string
+	 * Parse an ISO8601 date/time string (see DateCodec).
 	 * @param unparsed  String containing date/time expression.
 	 * @param zone      Time zone suffix to strip, if present.
 	 * @return Date parsed into a java.util.Date object. Note
@@ -239,19 +490,21 @@ public class Misc {
 	 */
 	public static Date parseDate(String unparsed, String zone)
 			throws ParseException {
-		String munged = unparsed.toUpperCase();
-		if (munged.endsWith(zone))
-			munged = munged.substring(0, munged.length() - zone.length());
-		for (SimpleDateFormat fmt : DATE_FORMATS) {
-			ParsePosition pos = new ParsePosition(0);
-			Date ret = fmt.parse(munged, pos);
-			if (ret != null) {
-				return ret;
-			}
-		}
-		throw new ParseException("Unparseable date: " + unparsed, 0);
+		return DateCodec.parse(unparsed, zone);
 	}
 	
+	/**
+	 * Treat a value as an XML-RPC struct, which the library always gives
+	 * us as a map from member names to values.
+	 * @param value  Value
+	 * @return       Struct
+	 * @throws ClassCastException if value isn't a struct.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> asStruct(Object value) {
+		return (Map<String, Object>) value;
+	}
+
 	/**
 	 * Truncate a string for printing.
 	 * @param s      String
@@ -271,12 +524,12 @@ public class Misc {
 	public static String readBody(CommandLine cmdLine) {
 		String fileName = cmdLine.getOptionValue("content");
 		if (fileName == null) {
-			if (System.console() == null)
+			if (!hasConsole())
 				return readBodyFromFile(new InputStreamReader(System.in));
 			else
 				return readBodyFromTty();
 		} else {
-			try (FileReader fr = new FileReader(fileName)) {
+			try (FileReader fr = new FileReader(getFile(fileName))) {
 				return readBodyFromFile(fr);
 			} catch (IOException e) {
 				Misc.die(e.getMessage());
@@ -284,6 +537,29 @@ public class Misc {
 		}
 		return null;  // stupid Java
 	}
+
+	/**
+	 * Open a post body for reading from someplace appropriate, as
+	 * readBody would, but without reading it all in first (unless it
+	 * must be typed in at the console).
+	 * @param cmdLine  Parsed command line
+	 * @return         Reader for the body
+	 */
+	public static Reader openBody(CommandLine cmdLine) {
+		String fileName = cmdLine.getOptionValue("content");
+		if (fileName == null) {
+			if (!hasConsole())
+				return new InputStreamReader(System.in);
+			else
+				return new StringReader(readBodyFromTty());
+		}
+		try {
+			return new FileReader(getFile(fileName));
+		} catch (IOException e) {
+			Misc.die(e.getMessage());
+		}
+		return null;  /* not reached */
+	}
 	
 	/**
 	 * Read a post body from a Reader object.
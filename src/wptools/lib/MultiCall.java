@@ -0,0 +1,362 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+
+/**
+ * Packs many calls of the same XML-RPC method into system.multicall
+ * batches, so that operating on lots of posts doesn't cost one HTTP
+ * round trip per post. If the server turns out not to support
+ * system.multicall, we quietly fall back to making the calls one at
+ * a time. Any other failure of a batch is the failure of every call in
+ * it: the server may have made the calls before things went wrong, and
+ * making them again (e.g. deleting a post twice) could do harm.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class MultiCall {
+	/** Batch size used if none is specified. */
+	public static final int DEFAULT_BATCH = 50;
+
+	private static final String MULTICALL = "system.multicall";
+
+	// Fault code for a method the server doesn't have.
+	private static final int METHOD_NOT_FOUND = -32601;
+
+	private XmlRpcClient client;
+	private int batchSize;
+	private volatile boolean supported;
+
+	/**
+	 * What gets told about the outcome of each call.
+	 */
+	public interface Callback {
+		/**
+		 * Called once per call, in the order the calls were made.
+		 * @param index   Index of call in the list passed to execute.
+		 * @param result  Result of call, or null if it failed.
+		 * @param fault   Exception describing failure, or null if it
+		 *                succeeded.
+		 */
+		public void done(int index, Object result, XmlRpcException fault);
+	}
+
+	/**
+	 * A callback for calls whose results are streamed (see
+	 * ResponseStreamer) rather than built in memory. For each call,
+	 * begin is always called before done.
+	 */
+	public interface StreamCallback extends Callback {
+		/**
+		 * Called when the result of a call starts arriving, or just
+		 * before reporting that it failed.
+		 * @param index   Index of call.
+		 */
+		public void begin(int index);
+
+		/**
+		 * Called when a string-valued struct member starts arriving.
+		 * @param index   Index of call.
+		 * @param name    Member name.
+		 * @return        Writer to stream the value to, or null to
+		 *                collect it normally.
+		 */
+		public Writer member(int index, String name) throws IOException;
+	}
+
+	/**
+	 * Constructor.
+	 * @param client    Client to make calls with.
+	 * @param batchSize Maximum number of calls per batch; 1 means
+	 *                  don't use system.multicall at all.
+	 */
+	public MultiCall(XmlRpcClient client, int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Invalid batch size.");
+		this.client = client;
+		this.batchSize = batchSize;
+		this.supported = batchSize > 1;
+	}
+
+	/**
+	 * Constructor, taking the batch size from the "batch" option or
+	 * property, if any.
+	 * @param client    Client to make calls with.
+	 * @param props     Properties.
+	 */
+	public MultiCall(XmlRpcClient client, Properties props) {
+		this(client, getBatchSize(props));
+	}
+
+	/**
+	 * Determine the batch size to use.
+	 * @param props     Properties.
+	 * @return          Batch size.
+	 */
+	public static int getBatchSize(Properties props) {
+		if (!props.hasKey("batch"))
+			return DEFAULT_BATCH;
+		int ret = props.getInt("batch");
+		if (ret < 1)
+			Misc.die("invalid batch size: " + ret);
+		return ret;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Make a bunch of calls to the same method, in as many batches
+	 * as needed, reporting the outcome of each.
+	 * @param method    XML-RPC method name.
+	 * @param calls     Parameters for each call.
+	 * @param cb        Callback to report outcomes to.
+	 */
+	public void executeAll(String method, List<Object[]> calls, Callback cb) {
+		int ncalls = calls.size();
+		for (int start = 0; start < ncalls; start += batchSize) {
+			int end = Math.min(start + batchSize, ncalls);
+			report(start, execute(method, calls.subList(start, end)), cb);
+		}
+	}
+
+	/**
+	 * Like executeAll above, but keep up to the specified number of
+	 * batches in flight at once. Outcomes are still reported in order,
+	 * and in the calling thread.
+	 * @param method    XML-RPC method name.
+	 * @param calls     Parameters for each call.
+	 * @param parallel  Maximum number of batches in flight.
+	 * @param cb        Callback to report outcomes to.
+	 */
+	public void executeAll(final String method, final List<Object[]> calls,
+			int parallel, final Callback cb) {
+		if (parallel == 1) {
+			executeAll(method, calls, cb);
+			return;
+		}
+
+		// Don't let a big batch size leave workers idle.
+		int ncalls = calls.size();
+		int size = Math.max(1, Math.min(batchSize, (ncalls + parallel - 1) / parallel));
+
+		final int[] next = new int[] { 0 };
+		OrderedPipeline<Object[]> pipe = new OrderedPipeline<Object[]>(parallel,
+			new OrderedPipeline.Sink<Object[]>() {
+				public void accept(Object[] results) {
+					report(next[0], results, cb);
+					next[0] += results.length;
+				}
+			});
+		for (int start = 0; start < ncalls; start += size) {
+			final List<Object[]> batch = calls.subList(start, Math.min(start + size, ncalls));
+			pipe.submit(new Callable<Object[]>() {
+				public Object[] call() {
+					return execute(method, batch);
+				}
+			});
+		}
+		pipe.finish();
+	}
+
+	private void report(int start, Object[] results, Callback cb) {
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] instanceof XmlRpcException)
+				cb.done(start + i, null, (XmlRpcException) results[i]);
+			else
+				cb.done(start + i, results[i], null);
+		}
+	}
+
+	/**
+	 * Like executeAll, but stream results to the callback as they
+	 * arrive, so that no more than one result is held in memory at a
+	 * time.
+	 * @param method    XML-RPC method name.
+	 * @param calls     Parameters for each call.
+	 * @param cb        Callback to report outcomes to.
+	 */
+	public void streamAll(String method, List<Object[]> calls, StreamCallback cb) {
+		int ncalls = calls.size();
+		for (int start = 0; start < ncalls; start += batchSize) {
+			int end = Math.min(start + batchSize, ncalls);
+			stream(method, calls.subList(start, end), start, cb);
+		}
+	}
+
+	private void stream(String method, List<Object[]> calls, final int start,
+			final StreamCallback cb) {
+		// Number of results begun and finished so far.
+		final int[] progress = new int[] { 0, 0 };
+
+		if (supported && calls.size() > 1) {
+			XmlRpcException error = null;
+			try {
+				ResponseStreamer.execute(client, MULTICALL,
+					new Object[] { structs(method, calls) },
+					new ResponseStreamer.Handler() {
+						public void begin(int index) {
+							progress[0] = index + 1;
+							cb.begin(start + index);
+						}
+						public Writer member(int index, String name) throws IOException {
+							return cb.member(start + index, name);
+						}
+						public void end(int index, Object value) {
+							progress[1] = index + 1;
+							if (value instanceof Object[]) {
+								Object[] wrapped = (Object[]) value;
+								cb.done(start + index, wrapped.length > 0 ? wrapped[0] : null, null);
+							} else {
+								XmlRpcException fault = toFault(value);
+								Stats.batchFailed(method, fault);
+								cb.done(start + index, null, fault);
+							}
+						}
+					});
+				if (progress[1] != calls.size())
+					error = new XmlRpcException("Wrong number of results from " + MULTICALL);
+			} catch (XmlRpcException e) {
+				error = e;
+			}
+			if (error == null || progress[0] > 0)
+				Stats.batched(method, calls.size());
+			if (error == null)
+				return;
+			if (progress[0] > 0) {
+				// Failed partway through; the rest of the batch fails too.
+				for (int i = progress[1]; i < calls.size(); i++) {
+					if (i >= progress[0])
+						cb.begin(start + i);
+					cb.done(start + i, null, error);
+				}
+				return;
+			}
+			if (error.code != METHOD_NOT_FOUND) {
+				for (int i = 0; i < calls.size(); i++) {
+					cb.begin(start + i);
+					cb.done(start + i, null, error);
+				}
+				return;
+			}
+			// The server doesn't do system.multicall.
+			supported = false;
+		}
+
+		for (int i = 0; i < calls.size(); i++) {
+			final int index = start + i;
+			progress[0] = progress[1] = 0;
+			try {
+				ResponseStreamer.execute(client, method, calls.get(i),
+					new ResponseStreamer.Handler() {
+						public void begin(int unused) {
+							progress[0] = 1;
+							cb.begin(index);
+						}
+						public Writer member(int unused, String name) throws IOException {
+							return cb.member(index, name);
+						}
+						public void end(int unused, Object value) {
+							progress[1] = 1;
+							cb.done(index, value, null);
+						}
+					});
+			} catch (XmlRpcException e) {
+				if (progress[1] > 0)
+					continue;
+				if (progress[0] == 0)
+					cb.begin(index);
+				cb.done(index, null, e);
+			}
+		}
+	}
+
+	/**
+	 * Make a single batch of calls to the same method. The batch is
+	 * not split up, no matter how big it is.
+	 * @param method    XML-RPC method name.
+	 * @param calls     Parameters for each call.
+	 * @return          Array of results; failed calls have an
+	 *                  XmlRpcException in their slot.
+	 */
+	public Object[] execute(String method, List<Object[]> calls) {
+		if (supported && calls.size() > 1) {
+			try {
+				return multiCall(method, calls);
+			} catch (XmlRpcException e) {
+				if (e.code != METHOD_NOT_FOUND) {
+					Object[] ret = new Object[calls.size()];
+					Arrays.fill(ret, e);
+					return ret;
+				}
+				// The server doesn't do system.multicall.
+				supported = false;
+			}
+		}
+		Object[] ret = new Object[calls.size()];
+		for (int i = 0; i < ret.length; i++) {
+			try {
+				ret[i] = client.execute(method, calls.get(i));
+			} catch (XmlRpcException e) {
+				ret[i] = e;
+			}
+		}
+		return ret;
+	}
+
+	private Object[] multiCall(String method, List<Object[]> calls) throws XmlRpcException {
+		Object[] raw = (Object[]) client.execute(MULTICALL,
+			new Object[] { structs(method, calls) });
+		if (raw.length != calls.size())
+			throw new XmlRpcException("Wrong number of results from " + MULTICALL);
+
+		// Successes come back wrapped in a one-element array, failures
+		// as a fault struct.
+		Object[] ret = new Object[raw.length];
+		for (int i = 0; i < raw.length; i++) {
+			if (raw[i] instanceof Object[]) {
+				Object[] wrapped = (Object[]) raw[i];
+				ret[i] = wrapped.length > 0 ? wrapped[0] : null;
+			} else {
+				ret[i] = toFault(raw[i]);
+			}
+		}
+		Stats.batched(method, ret);
+		return ret;
+	}
+
+	private Object[] structs(String method, List<Object[]> calls) {
+		Object[] ret = new Object[calls.size()];
+		int i = 0;
+		for (Object[] params : calls) {
+			Map<String, Object> struct = new HashMap<String, Object>();
+			struct.put("methodName", method);
+			struct.put("params", params);
+			ret[i++] = struct;
+		}
+		return ret;
+	}
+
+	private XmlRpcException toFault(Object raw) {
+		Map<String, Object> fault = Misc.asStruct(raw);
+		Object code = fault.get("faultCode");
+		return new XmlRpcException(code instanceof Integer ? (Integer) code : 0,
+			(String) fault.get("faultString"));
+	}
+}
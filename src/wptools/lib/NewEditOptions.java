@@ -9,10 +9,8 @@ package wptools.lib;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.TimeZone;
 
 import org.apache.commons.cli.CommandLine;
 
@@ -42,7 +40,7 @@ public class NewEditOptions extends Options {
 		"terms"	};
 	
 	// Build the map that governs how we parse headers.
-	private interface HeaderParser {
+	interface HeaderParser {
 		public Object parse(String value) throws ParseException;
 	}
 	private static final HeaderParser PARSE_INT = new HeaderParser() {
@@ -56,23 +54,20 @@ public class NewEditOptions extends Options {
 	};
 	private static final HeaderParser PARSE_GMT_DATE = new HeaderParser() {
 		public Object parse(String value) throws ParseException {
-			return Misc.parseDate(value, "Z");
+			return DateCodec.parseUtc(value);
 		}
 	};
 	// We have to do some bizarre stuff here due to some idiot using
 	// java.lang.Date to represent an XMLRPC time (the former is tied
 	// to a time zone, the latter is not). Not only that, there's also
 	// apparently date/time braindamage on the Wordpress side, too.
-	// C'est le groan.
+	// C'est le groan. DateCodec.parseLocal deals with it.
 	private static final HeaderParser PARSE_LOCAL_DATE = new HeaderParser() {
 		public Object parse(String value) throws ParseException {
-			Date ret = Misc.parseDate(value, "J");
-			long time = ret.getTime();
-			int offset = TimeZone.getDefault().getOffset(time);
-			return new Date(time - offset);
+			return DateCodec.parseLocal(value);
 		}
 	};
-	private static final HeaderParser PARSE_TERMS = new HeaderParser() {
+	static final HeaderParser PARSE_TERMS = new HeaderParser() {
 		public Object parse(String value) throws ParseException {
 			HashMap<String, ArrayList<String>> rret = new HashMap<String, ArrayList<String>>();;;
 			for (String rpair : value.split(",\\s*")) {
@@ -156,20 +151,29 @@ public class NewEditOptions extends Options {
 			if (!cmd.hasOption(option))
 				continue;
 			String unparsed = cmd.getOptionValue(option);
-			String field = optionToField(option);
-			HeaderParser p = PARSERS.get(option);
-			if (p != null) {
-				Object parsed = null;
-				try {
-					parsed = p.parse(unparsed);
-				} catch (ParseException e) {
-					Misc.die(String.format("illegal value for %s: %s",
-						option, unparsed));
-				}
-				targ.put(field, parsed);
-			} else {
-				targ.put(field, unparsed);
+			try {
+				addToMap(targ, option, unparsed);
+			} catch (ParseException e) {
+				Misc.die(String.format("illegal value for %s: %s",
+					option, unparsed));
 			}
 		}
 	}
+	
+	/**
+	 * Add a single item to a map representing an XML-RPC struct, parsing
+	 * it the same way as the corresponding option would be.
+	 * @param targ    Map which is added to.
+	 * @param option  Option name (one of FIELDS).
+	 * @param value   Unparsed value.
+	 */
+	public void addToMap(Map<String, Object> targ, String option, String value)
+			throws ParseException {
+		String field = optionToField(option);
+		HeaderParser p = PARSERS.get(option);
+		if (p != null)
+			targ.put(field, p.parse(value));
+		else
+			targ.put(field, value);
+	}
 }
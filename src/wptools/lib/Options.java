@@ -30,6 +30,9 @@ public class Options extends org.apache.commons.cli.Options {
 			put("properties", new Option("p", "properties", true, "Name of properties file."));
 			put("group", new Option("g", "group", true, "Properties group to use."));
 			put("bare", new Option("B", "bare", false, "Suppress headers and footers."));
+			put("batch", new Option(null, "batch", true, "Calls per system.multicall batch (1 disables)."));
+			put("parallel", new Option(null, "parallel", true, "Maximum number of requests in flight."));
+			put("page-size", new Option(null, "page-size", true, "Number of posts to request per call."));
 		}});
 		
 	public Options () {
@@ -37,6 +40,10 @@ public class Options extends org.apache.commons.cli.Options {
 		addOption(null, "accept", true, "Accept only SSL certs with the specified fingerprint.");
 		addOption("?", "help", false, "Print this help message.");
 		addOption(null, "insecure", false, "Disable all SSL authentication.");
+		addOption(null, "traffic", false, "Report bytes sent and received on exit.");
+		addOption(null, "stats", false, "Report call statistics on exit.");
+		addOption(null, "stats-json", true, "Write call statistics as JSON to the specified file on exit.");
+		addOption(null, "trace", true, "Write the phases of each call as JSON lines to the specified file.");
 	}
 	
 	public Options addOption(String name) {
@@ -52,7 +59,7 @@ public class Options extends org.apache.commons.cli.Options {
 		}
 		if (ret.hasOption("help")) {
 			(new HelpFormatter()).printHelp(Misc.getMyName(), this);
-			System.exit(0);
+			Misc.exit(0);
 		}
 		if (ret.hasOption("accept") && ret.hasOption("insecure"))
 			Misc.die("--accept and --insecure are mutually exclusive", 2);
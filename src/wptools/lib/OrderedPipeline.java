@@ -0,0 +1,141 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks several at a time, but hands their results back in the
+ * order the tasks were submitted. Results that finish early wait in a
+ * bounded reorder buffer; submitting blocks (while draining results)
+ * whenever that buffer is full, so memory use stays bounded no matter
+ * how many tasks there are. Results are always consumed in the thread
+ * that submits tasks, so consumers need not be thread-safe.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class OrderedPipeline<T> {
+	/** Parallelism used if none is specified. */
+	public static final int DEFAULT_PARALLEL = 1;
+
+	private static final long IDLE_SECONDS = 30;
+
+	private ExecutorService pool;
+	private ArrayDeque<Future<T>> pending;
+	private int window;
+	private Sink<T> sink;
+
+	/**
+	 * What gets handed results, in submission order.
+	 */
+	public interface Sink<T> {
+		public void accept(T result);
+	}
+
+	/**
+	 * Constructor.
+	 * @param parallel  Maximum number of tasks to run at once.
+	 * @param sink      Where results go.
+	 */
+	public OrderedPipeline(int parallel, Sink<T> sink) {
+		if (parallel < 1)
+			throw new IllegalArgumentException("Invalid parallelism.");
+		this.sink = sink;
+		// Let completed results queue up behind a slow one for a while
+		// before we stop feeding the pool.
+		window = parallel * 2;
+		pending = new ArrayDeque<Future<T>>(window);
+		ThreadPoolExecutor tpool = (ThreadPoolExecutor) Executors.newFixedThreadPool(parallel,
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread ret = new Thread(r);
+					ret.setDaemon(true);
+					return ret;
+				}
+			});
+		// Don't let idle threads linger if we are abandoned without
+		// finish being called (as when a command dies in the daemon).
+		tpool.setKeepAliveTime(IDLE_SECONDS, TimeUnit.SECONDS);
+		tpool.allowCoreThreadTimeOut(true);
+		pool = tpool;
+	}
+
+	/**
+	 * Determine the parallelism to use from the "parallel" option or
+	 * property, if any.
+	 * @param props     Properties.
+	 * @return          Parallelism.
+	 */
+	public static int getParallelism(Properties props) {
+		return getParallelism(props, DEFAULT_PARALLEL);
+	}
+
+	/**
+	 * Determine the parallelism to use from the "parallel" option or
+	 * property. Failing that, if there is a host-limit (see
+	 * ConcurrencyLimiter), use enough threads to reach it, and let the
+	 * limiter decide how many requests are actually in flight.
+	 * @param props     Properties.
+	 * @param dflt      Parallelism to use if neither is specified.
+	 * @return          Parallelism.
+	 */
+	public static int getParallelism(Properties props, int dflt) {
+		if (!props.hasKey("parallel")) {
+			int ceiling = ConcurrencyLimiter.getCeiling(props);
+			return ceiling > 0 ? ceiling : dflt;
+		}
+		int ret = props.getInt("parallel");
+		if (ret < 1)
+			Misc.die("invalid parallelism: " + ret);
+		return ret;
+	}
+
+	/**
+	 * Submit a task, first passing on results if the buffer is full.
+	 * @param task      Task to run.
+	 */
+	public void submit(Callable<T> task) {
+		while (pending.size() >= window)
+			drainOne();
+		pending.add(pool.submit(task));
+	}
+
+	/**
+	 * Wait for all submitted tasks, pass on their results, and shut
+	 * down.
+	 */
+	public void finish() {
+		while (!pending.isEmpty())
+			drainOne();
+		pool.shutdown();
+	}
+
+	private void drainOne() {
+		T result = null;
+		try {
+			result = pending.remove().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+		sink.accept(result);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An on-disk cache of posts as returned by wp.getPost, keyed by blog URL,
+ * blog ID and post ID. Each blog gets its own subdirectory (named by a
+ * hash of its URL and ID), and each post its own file within it.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class PostCache {
+	private static final String DEFAULT_DIR = ".wptools" + File.separator + "cache";
+	private static final String SUFFIX = ".post";
+
+	// All a wp.getPost struct can contain (Number being the superclass of
+	// Integer and Double, and HashMap checking its size as a Map.Entry[]).
+	// The cache directory may be anywhere, even somewhere others can write
+	// to, so nothing else gets deserialized.
+	private static final Set<Class<?>> ALLOWED = new HashSet<Class<?>>(Arrays.asList(
+		HashMap.class, String.class, Integer.class, Boolean.class, Double.class,
+		Number.class, Date.class, Object[].class, byte[].class, Map.Entry[].class));
+
+	private static final ObjectInputFilter FILTER = new ObjectInputFilter() {
+		public Status checkInput(FilterInfo info) {
+			Class<?> clazz = info.serialClass();
+			if (clazz == null)
+				return Status.UNDECIDED;
+			return ALLOWED.contains(clazz) ? Status.ALLOWED : Status.REJECTED;
+		}
+	};
+
+	private File dir;
+
+	/**
+	 * Constructor.
+	 * @param root      Root directory of cache.
+	 * @param url       Blog XML-RPC URL.
+	 * @param blogid    Blog ID.
+	 */
+	public PostCache(File root, String url, String blogid) {
+		dir = new File(root, hash(url + "\n" + blogid));
+	}
+
+	/**
+	 * Get the cache root directory, from the "cache-dir" property if
+	 * specified.
+	 * @param props     Properties.
+	 * @return          Cache directory.
+	 */
+	public static File getRoot(Properties props) {
+		if (props.hasKey("cache-dir"))
+			return Misc.getFile(props.get("cache-dir"));
+		return new File(System.getProperty("user.home"), DEFAULT_DIR);
+	}
+
+	/**
+	 * Get a cached post.
+	 * @param postid    Post ID.
+	 * @return          Post, or null if not cached.
+	 */
+	public Map<String, Object> get(int postid) {
+		File file = file(postid);
+		if (!file.exists())
+			return null;
+		try (ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(
+				new BufferedInputStream(new FileInputStream(file))))) {
+			in.setObjectInputFilter(FILTER);
+			return Misc.asStruct(in.readObject());
+		} catch (IOException|ClassNotFoundException|ClassCastException e) {
+			// Treat a damaged (or rejected) entry as a miss.
+			return null;
+		}
+	}
+
+	/**
+	 * Add or replace a post in the cache.
+	 * @param postid    Post ID.
+	 * @param post      Post, as returned by wp.getPost.
+	 */
+	public void put(int postid, Map<String, Object> post) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("unable to create " + dir);
+		File temp = File.createTempFile("post", ".tmp", dir);
+		try {
+			try (ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp))))) {
+				out.writeObject(new HashMap<String, Object>(post));
+			}
+			Files.move(temp.toPath(), file(postid).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Remove a post from the cache, if present.
+	 * @param postid    Post ID.
+	 */
+	public void remove(int postid) {
+		file(postid).delete();
+	}
+
+	private File file(int postid) {
+		return new File(dir, postid + SUFFIX);
+	}
+
+	static String hash(String s) {
+		MessageDigest md = null;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		StringBuilder ret = new StringBuilder();
+		for (byte b : md.digest(s.getBytes(StandardCharsets.UTF_8)))
+			ret.append(String.format("%02x", b));
+		return ret.toString();
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+
+/**
+ * Remembers, for each post we have sent content for, a hash of that
+ * content and the modification time the server gave the post afterwards.
+ * So long as the post's modification time is still the same, the server
+ * still has that content, and whether some content differs from it can
+ * be told without downloading it. Kept like PostCache, a subdirectory
+ * per blog and a file per post.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class PostHashes {
+	private static final String DEFAULT_DIR = ".wptools" + File.separator + "hashes";
+	private static final String SUFFIX = ".properties";
+
+	private File dir;
+
+	/**
+	 * What we know of a post.
+	 */
+	public static class Entry {
+		public Date modified;
+		public String hash;
+	}
+
+	/**
+	 * Constructor.
+	 * @param root      Root directory of hashes.
+	 * @param url       Blog XML-RPC URL.
+	 * @param blogid    Blog ID.
+	 */
+	public PostHashes(File root, String url, String blogid) {
+		dir = new File(root, PostCache.hash(url + "\n" + blogid));
+	}
+
+	/**
+	 * Get the root directory, from the "hash-dir" property if specified.
+	 * @param props     Properties.
+	 * @return          Directory.
+	 */
+	public static File getRoot(Properties props) {
+		if (props.hasKey("hash-dir"))
+			return Misc.getFile(props.get("hash-dir"));
+		return new File(System.getProperty("user.home"), DEFAULT_DIR);
+	}
+
+	/**
+	 * Hash some content.
+	 * @param content   Content.
+	 * @return          Hash.
+	 */
+	public static String hash(String content) {
+		return PostCache.hash(content);
+	}
+
+	/**
+	 * Get what we know of a post.
+	 * @param postid    Post ID.
+	 * @return          Entry, or null if nothing.
+	 */
+	public Entry get(int postid) {
+		File file = file(postid);
+		if (!file.exists())
+			return null;
+		java.util.Properties props = new java.util.Properties();
+		try (FileInputStream in = new FileInputStream(file)) {
+			props.load(in);
+			Entry ret = new Entry();
+			ret.modified = new Date(Long.parseLong(props.getProperty("modified")));
+			ret.hash = props.getProperty("hash");
+			return ret.hash == null ? null : ret;
+		} catch (IOException|NumberFormatException|NullPointerException e) {
+			// Treat a damaged entry as missing.
+			return null;
+		}
+	}
+
+	/**
+	 * Record what we know of a post.
+	 * @param postid    Post ID.
+	 * @param modified  Its modification time (post_modified_gmt).
+	 * @param hash      Hash of its content.
+	 */
+	public void put(int postid, Date modified, String hash) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("unable to create " + dir);
+		java.util.Properties props = new java.util.Properties();
+		props.setProperty("modified", Long.toString(modified.getTime()));
+		props.setProperty("hash", hash);
+		File temp = File.createTempFile("hash", ".tmp", dir);
+		try {
+			try (FileOutputStream out = new FileOutputStream(temp)) {
+				props.store(out, null);
+			}
+			Files.move(temp.toPath(), file(postid).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private File file(int postid) {
+		return new File(dir, postid + SUFFIX);
+	}
+}
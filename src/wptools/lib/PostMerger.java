@@ -0,0 +1,220 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the posts of several blogs into one listing, in the same
+ * descending order each blog's PostPager returns them in. All the blogs
+ * are read at once, each by its own thread, which hands posts to us
+ * through a small bounded queue; a thread whose queue is full simply
+ * waits (and with it, its response) until we catch up. So no matter how
+ * many posts there are, at most a few per blog are ever held in memory,
+ * along with the IDs each blog's PostPager keeps of the posts it returned
+ * within a couple of days of its current one.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class PostMerger {
+	// Posts read ahead per blog.
+	private static final int QUEUE_SIZE = 64;
+
+	// Marks the end of a blog's posts.
+	private static final Object END = new Object();
+
+	private List<Source> sources;
+	private volatile boolean stopped;
+
+	/**
+	 * What merged posts (and failures) get handed to.
+	 */
+	public interface Sink {
+		/**
+		 * Accept the next post.
+		 * @param name      Name of the blog it came from.
+		 * @param post      Post struct.
+		 */
+		public void accept(String name, Map<String, Object> post);
+
+		/**
+		 * Be told that reading a blog failed. Its posts, if any, stop
+		 * here; the other blogs' posts carry on.
+		 * @param name      Name of the blog.
+		 * @param e         What went wrong.
+		 */
+		public void failed(String name, Exception e);
+	}
+
+	// One blog being read.
+	private class Source implements Runnable {
+		public String name;
+		public int index;
+		public PostPager pager;
+		public BlockingQueue<Object> queue;
+		public Thread thread;
+
+		public void run() {
+			Object last = END;
+			try {
+				pager.each(new PostPager.Sink() {
+					public void accept(Map<String, Object> post) {
+						if (!put(post))
+							throw new Stopped();
+					}
+				});
+			} catch (Stopped e) {
+				return;
+			} catch (Exception e) {
+				last = e;
+			} catch (Throwable t) {
+				// Whatever happens, the merge must see this blog end.
+				last = new ExecutionException(t.toString(), t);
+			}
+			put(last);
+		}
+
+		private boolean put(Object item) {
+			try {
+				while (!stopped) {
+					if (queue.offer(item, 1, TimeUnit.SECONDS))
+						return true;
+				}
+			} catch (InterruptedException e) {
+				/* we are being stopped */
+			}
+			return false;
+		}
+
+		/**
+		 * Get the next post.
+		 * @return        The post, END, or the exception that ended
+		 *                the blog's posts.
+		 */
+		public Object take() {
+			try {
+				return queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	// Thrown to abandon a blog's posts once we have all we want.
+	private static class Stopped extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	// The next post from a blog, as held in the merge heap.
+	private static class Head {
+		public Source source;
+		public Map<String, Object> post;
+		public Date key;
+	}
+
+	/**
+	 * Constructor.
+	 */
+	public PostMerger() {
+		sources = new ArrayList<Source>();
+	}
+
+	/**
+	 * Add a blog. All blogs must be ordered the same way.
+	 * @param name      Name of the blog, passed to the sink with each post.
+	 * @param pager     Pager to read it with.
+	 */
+	public void add(String name, PostPager pager) {
+		Source source = new Source();
+		source.name = name;
+		source.index = sources.size();
+		source.pager = pager;
+		source.queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+		sources.add(source);
+	}
+
+	/**
+	 * Read all the blogs at once, passing their posts, merged into one
+	 * stream, to a sink. Posts with equal sort keys go in the order their
+	 * blogs were added.
+	 * @param sink      Where posts go.
+	 * @param limit     Maximum number of posts, or 0 for no limit.
+	 * @return          Number of posts passed to the sink.
+	 */
+	public int each(Sink sink, int limit) {
+		for (Source source : sources) {
+			source.thread = new Thread(source, "PostMerger-" + source.name);
+			source.thread.setDaemon(true);
+			source.thread.start();
+		}
+		PriorityQueue<Head> heap = new PriorityQueue<Head>(Math.max(1, sources.size()),
+			new Comparator<Head>() {
+				public int compare(Head a, Head b) {
+					// Latest first; posts with no key sort last.
+					int ret;
+					if (a.key == null || b.key == null)
+						ret = a.key == b.key ? 0 : (a.key == null ? 1 : -1);
+					else
+						ret = b.key.compareTo(a.key);
+					return ret != 0 ? ret : Integer.compare(a.source.index, b.source.index);
+				}
+			});
+		int returned = 0;
+		try {
+			for (Source source : sources)
+				pull(source, heap, sink);
+			while (!heap.isEmpty() && (limit <= 0 || returned < limit)) {
+				Head head = heap.remove();
+				sink.accept(head.source.name, head.post);
+				returned++;
+				pull(head.source, heap, sink);
+			}
+		} finally {
+			stop();
+		}
+		return returned;
+	}
+
+	/**
+	 * Put the next post from a blog, if there is one, on the heap.
+	 */
+	private void pull(Source source, PriorityQueue<Head> heap, Sink sink) {
+		Object item = source.take();
+		if (item == END)
+			return;
+		if (item instanceof Exception) {
+			sink.failed(source.name, (Exception) item);
+			return;
+		}
+		Head head = new Head();
+		head.source = source;
+		head.post = Misc.asStruct(item);
+		head.key = (Date) head.post.get(source.pager.getKeyField());
+		heap.add(head);
+	}
+
+	/**
+	 * Stop reading blogs that still have posts we don't want.
+	 */
+	private void stop() {
+		stopped = true;
+		for (Source source : sources)
+			if (source.thread != null)
+				source.thread.interrupt();
+	}
+}
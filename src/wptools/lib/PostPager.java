@@ -0,0 +1,288 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+
+/**
+ * Walks through the posts of a blog a page at a time using wp.getPosts,
+ * in descending order of either creation or modification time. Only one
+ * page is ever held in memory.
+ *
+ * The wp.getPosts filter has no way to ask for posts older than a given
+ * time, so pages must be requested by offset. Posts being created or
+ * edited while we walk can shift later pages, so we also remember the
+ * IDs of the posts returned and skip any we see again; that way a post
+ * is never returned twice. (The server sorts by the blog's local times,
+ * not the GMT ones we are given, and the two orders can differ, e.g.
+ * when clocks go back, so the times themselves cannot be used for this.)
+ * A post seen again still has the same sort key, and so can only turn
+ * up while the walk is within STOP_SLACK of it; IDs are forgotten once
+ * the walk is well past that, so however big the blog, only those of
+ * the posts returned within a couple of days of the current one are
+ * held.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class PostPager {
+	/** Page size used if none is specified. */
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
+	private XmlRpcClient client;
+	private Object[] auth;
+	private Map<String, Object> filter;
+	private String[] fields;
+	private String keyField;
+	private int pageSize;
+	private int limit;
+
+	private Object[] page;
+	private int pos;
+	private int offset;
+	private int returned;
+	private boolean exhausted;
+	private Date stopKey;
+
+	// Posts returned that may yet be seen again, in the order returned,
+	// and their IDs.
+	private Deque<Returned> window;
+	private Set<Object> seen;
+
+	// A post returned: its sort key (or that of the last post before it
+	// that had one) and ID.
+	private static class Returned {
+		public long key;
+		public Object id;
+	}
+
+	// Latest sort key seen.
+	private Long lastKey;
+
+	// How far apart the local and GMT orders of posts can get: the span
+	// of time zone offsets, from UTC-12 to UTC+14.
+	private static final long STOP_SLACK = 26L * 60L * 60L * 1000L;
+
+	/**
+	 * Constructor.
+	 * @param client    Client to make calls with.
+	 * @param blogid    Blog ID.
+	 * @param username  Username.
+	 * @param password  Password.
+	 * @param modified  True to order by modification time, false to
+	 *                  order by creation time.
+	 * @param fields    Fields to retrieve.
+	 * @param pageSize  Posts to request per call.
+	 * @param limit     Maximum number of posts to return, or 0 for no
+	 *                  limit.
+	 */
+	public PostPager(XmlRpcClient client, Object blogid, String username,
+			String password, boolean modified, String[] fields,
+			int pageSize, int limit) {
+		if (pageSize < 1)
+			throw new IllegalArgumentException("Invalid page size.");
+		this.client = client;
+		this.auth = new Object[] { blogid, username, password };
+		this.pageSize = pageSize;
+		this.limit = limit;
+		filter = new HashMap<String, Object>();
+		filter.put("orderby", modified ? "modified" : "date");
+		filter.put("order", "DESC");
+		keyField = modified ? "post_modified_gmt" : "post_date_gmt";
+		if (Arrays.asList(fields).contains(keyField)) {
+			this.fields = fields;
+		} else {
+			this.fields = Arrays.copyOf(fields, fields.length + 1);
+			this.fields[fields.length] = keyField;
+		}
+		window = new ArrayDeque<Returned>();
+		seen = new HashSet<Object>();
+	}
+
+	/**
+	 * Determine the page size to use from the "page-size" option or
+	 * property, if any.
+	 * @param props     Properties.
+	 * @return          Page size.
+	 */
+	public static int getPageSize(Properties props) {
+		if (!props.hasKey("page-size"))
+			return DEFAULT_PAGE_SIZE;
+		int ret = props.getInt("page-size");
+		if (ret < 1)
+			Misc.die("invalid page size: " + ret);
+		return ret;
+	}
+
+	/**
+	 * Add an extra entry to the filter passed to wp.getPosts (e.g.
+	 * post_type or post_status).
+	 * @param key       Filter key.
+	 * @param value     Filter value.
+	 */
+	public void addFilter(String key, Object value) {
+		filter.put(key, value);
+	}
+
+	/**
+	 * Skip posts whose sort key (creation or modification time) is
+	 * earlier than the specified time, and stop once they are all that
+	 * can be left. Since the server's order is by local time, that is
+	 * only once a post more than STOP_SLACK earlier is reached.
+	 * @param key       Time to stop at.
+	 */
+	public void stopBefore(Date key) {
+		stopKey = key;
+	}
+
+	/**
+	 * Get the next post.
+	 * @return          Post struct, or null if there are no more.
+	 */
+	public Map<String, Object> next() throws XmlRpcException {
+		while (limit <= 0 || returned < limit) {
+			if (page == null || pos >= page.length) {
+				if (exhausted || !fetch())
+					return null;
+			}
+			Map<String, Object> post = Misc.asStruct(page[pos++]);
+			if (!advance(post))
+				continue;
+			returned++;
+			return post;
+		}
+		return null;
+	}
+
+	/**
+	 * What streamed posts get handed to (see each, below).
+	 */
+	public interface Sink {
+		public void accept(Map<String, Object> post);
+	}
+
+	/**
+	 * Pass all remaining posts to a sink, one at a time as each is
+	 * parsed, so that not even a whole page need be held in memory.
+	 * @param sink      Where posts go.
+	 */
+	public void each(final Sink sink) throws XmlRpcException {
+		// Anything already fetched by next() goes first.
+		if (page != null) {
+			while (page != null && pos < page.length && (limit <= 0 || returned < limit)) {
+				Map<String, Object> post = Misc.asStruct(page[pos++]);
+				if (advance(post)) {
+					returned++;
+					sink.accept(post);
+				}
+			}
+			page = null;
+		}
+
+		while (!exhausted && (limit <= 0 || returned < limit)) {
+			int want = prepare();
+			int got = ResponseStreamer.execute(client, "wp.getPosts", params(),
+				new ResponseStreamer.Handler() {
+					public void begin(int index) {
+					}
+					public Writer member(int index, String name) {
+						return null;
+					}
+					public void end(int index, Object value) {
+						Map<String, Object> post = Misc.asStruct(value);
+						if (!exhausted && (limit <= 0 || returned < limit) && advance(post)) {
+							returned++;
+							sink.accept(post);
+						}
+					}
+				});
+			offset += got;
+			if (got < want)
+				exhausted = true;
+		}
+	}
+
+	/**
+	 * Get the name of the field posts are ordered by.
+	 */
+	public String getKeyField() {
+		return keyField;
+	}
+
+	/**
+	 * Get the number of posts returned so far.
+	 */
+	public int getReturned() {
+		return returned;
+	}
+
+	private boolean fetch() throws XmlRpcException {
+		int want = prepare();
+		page = (Object[]) client.execute("wp.getPosts", params());
+		pos = 0;
+		offset += page.length;
+		if (page.length < want)
+			exhausted = true;
+		return page.length > 0;
+	}
+
+	/**
+	 * Set up the filter for fetching the next page.
+	 * @return          Number of posts to ask for.
+	 */
+	private int prepare() {
+		int want = pageSize;
+		if (limit > 0)
+			want = Math.min(want, limit - returned);
+		filter.put("number", want);
+		filter.put("offset", offset);
+		return want;
+	}
+
+	private Object[] params() {
+		return new Object[] { auth[0], auth[1], auth[2], filter, fields };
+	}
+
+	/**
+	 * Check that a post is wanted and has not been returned already, and
+	 * if so remember it as returned.
+	 */
+	private boolean advance(Map<String, Object> post) {
+		Date key = (Date) post.get(keyField);
+		if (key != null && stopKey != null && key.before(stopKey)) {
+			if (key.getTime() < stopKey.getTime() - STOP_SLACK) {
+				exhausted = true;
+				page = null;
+			}
+			return false;
+		}
+		if (key != null) {
+			lastKey = key.getTime();
+			while (!window.isEmpty() && window.peekFirst().key > lastKey + 2 * STOP_SLACK)
+				seen.remove(window.removeFirst().id);
+		}
+		Object id = post.get("post_id");
+		if (!seen.add(id))
+			return false;
+		Returned entry = new Returned();
+		entry.key = lastKey == null ? Long.MAX_VALUE : lastKey;
+		entry.id = id;
+		window.addLast(entry);
+		return true;
+	}
+}
@@ -10,6 +10,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
 import org.apache.commons.cli.CommandLine;
 
 /**
@@ -21,27 +24,62 @@ import org.apache.commons.cli.CommandLine;
  */
 public class Properties {
 	private static final String DEFAULT_PROPS = "wptools.properties";
+
+	// Properties files already read, by absolute path.
+	private static class Cached {
+		public java.util.Properties props;
+		public long modified;
+		public long length;
+	}
+	private static final Map<String, Cached> CACHE = new HashMap<String, Cached>();
+
 	private java.util.Properties rawProps;
 	private CommandLine rawCmdLine;
+	private String group;
 	
 	public Properties(CommandLine args) {
 		super();
 		rawCmdLine = args;
-		rawProps = new java.util.Properties();
+		group = args.getOptionValue("group");
 		String specified = args.getOptionValue("properties");
 		File dprops = new File(System.getProperty("user.home"), DEFAULT_PROPS);
-		if (specified != null && !(new File(specified).exists())) {
+		if (specified != null && !(Misc.getFile(specified).exists())) {
 			Misc.die("'" + specified + "' not found");
 		} else if(!dprops.exists()) {
+			rawProps = new java.util.Properties();
 			return;
 		}
-		if (specified == null)
-			specified = dprops.getPath();
-		try (BufferedReader rdr = new BufferedReader(new FileReader(specified))) {
-			rawProps.load(rdr);
+		File file = specified == null ? dprops : Misc.getFile(specified);
+		rawProps = load(file);
+	}
+
+	/**
+	 * Load a properties file, reusing what we read last time if it
+	 * hasn't changed since (which matters in the daemon).
+	 */
+	private static java.util.Properties load(File file) {
+		String key = file.getAbsolutePath();
+		long modified = file.lastModified();
+		long length = file.length();
+		synchronized (CACHE) {
+			Cached cached = CACHE.get(key);
+			if (cached != null && cached.modified == modified && cached.length == length)
+				return cached.props;
+		}
+		java.util.Properties ret = new java.util.Properties();
+		try (BufferedReader rdr = new BufferedReader(new FileReader(file))) {
+			ret.load(rdr);
 		} catch (IOException e) {
 			Misc.die(e.getMessage());
 		}
+		Cached cached = new Cached();
+		cached.props = ret;
+		cached.modified = modified;
+		cached.length = length;
+		synchronized (CACHE) {
+			CACHE.put(key, cached);
+		}
+		return ret;
 	}
 	
 	public String get(String key) {
@@ -55,7 +93,6 @@ public class Properties {
 	}
 	
 	private String doGet(String key) {
-		String group = rawCmdLine.getOptionValue("group");
 		return rawProps.getProperty(group == null ? key : group + "." + key);
 	}
 
@@ -72,6 +109,35 @@ public class Properties {
 	public boolean hasKey(String key) {
 		return rawCmdLine.getOptionValue(key) != null || doGet(key) != null;
 	}
+
+	/**
+	 * Get properties like these, but for another group.
+	 * @param group     Group, or null for none.
+	 */
+	public Properties forGroup(String group) {
+		Properties ret = new Properties();
+		ret.rawProps = rawProps;
+		ret.rawCmdLine = rawCmdLine;
+		ret.group = group;
+		return ret;
+	}
+
+	private Properties() {
+		super();
+	}
+
+	/**
+	 * Get the names of all groups that define a blog (i.e. that have
+	 * a url property), in alphabetical order.
+	 */
+	public String[] getGroups() {
+		final String suffix = ".url";
+		TreeSet<String> ret = new TreeSet<String>();
+		for (String key : rawProps.stringPropertyNames())
+			if (key.endsWith(suffix) && key.length() > suffix.length())
+				ret.add(key.substring(0, key.length() - suffix.length()));
+		return ret.toArray(new String[ret.size()]);
+	}
 }
 
 	
\ No newline at end of file
@@ -0,0 +1,405 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.apache.xmlrpc.util.XmlRpcDateTimeDateFormat;
+
+/**
+ * Parses XML-RPC responses incrementally, instead of building the whole
+ * response as a tree of maps and arrays first. A response is treated as
+ * a sequence of records: each element of the top-level array if the
+ * response is an array (as for wp.getPosts and system.multicall), else
+ * the whole response value. Records are handed over one at a time as
+ * soon as each is complete, and selected string members can be written
+ * straight to a Writer as they are unescaped, without ever being held
+ * in memory whole.
+ *
+ * Streaming calls go through the normal XmlRpcClient, so they get the
+ * same serialization, transport, and SSL handling as any other call;
+ * the transport notices the special config (see Config below) and hands
+ * the response stream to us.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class ResponseStreamer {
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+	static {
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false);
+	}
+
+	/**
+	 * What gets told about records as they are parsed.
+	 */
+	public interface Handler {
+		/**
+		 * A record is starting.
+		 * @param index   Record number, counting from 0.
+		 */
+		public void begin(int index) throws IOException;
+
+		/**
+		 * A string-valued struct member is starting, somewhere inside a
+		 * record.
+		 * @param index   Record number.
+		 * @param name    Member name.
+		 * @return        Writer to send the value to, or null to collect
+		 *                it normally. Values sent to a writer are not
+		 *                put in the containing struct.
+		 */
+		public Writer member(int index, String name) throws IOException;
+
+		/**
+		 * A record is complete.
+		 * @param index   Record number.
+		 * @param value   The record's value.
+		 */
+		public void end(int index, Object value) throws IOException;
+	}
+
+	/**
+	 * A client config that marks a call as streaming.
+	 */
+	public static class Config extends XmlRpcClientConfigImpl {
+		private static final long serialVersionUID = 1L;
+		private transient Handler handler;
+
+		private Config(XmlRpcClientConfigImpl base, Handler handler) {
+			super();
+			this.handler = handler;
+			setServerURL(base.getServerURL());
+			setUserAgent(base.getUserAgent());
+			setBasicUserName(base.getBasicUserName());
+			setBasicPassword(base.getBasicPassword());
+			setBasicEncoding(base.getBasicEncoding());
+			setEncoding(base.getEncoding());
+			setTimeZone(base.getTimeZone());
+			setGzipCompressing(base.isGzipCompressing());
+			setGzipRequesting(base.isGzipRequesting());
+			setConnectionTimeout(base.getConnectionTimeout());
+			setReplyTimeout(base.getReplyTimeout());
+			setContentLengthOptional(base.isContentLengthOptional());
+			setEnabledForExtensions(base.isEnabledForExtensions());
+			setEnabledForExceptions(base.isEnabledForExceptions());
+		}
+
+		public Handler getHandler() {
+			return handler;
+		}
+
+		/**
+		 * Get a config like this one, but streaming to another handler.
+		 * @param handler   Handler.
+		 */
+		public Config withHandler(Handler handler) {
+			return new Config(this, handler);
+		}
+	}
+
+	/**
+	 * Make a call, streaming its response to a handler.
+	 * @param client    Client to make call with.
+	 * @param method    XML-RPC method name.
+	 * @param params    Parameters.
+	 * @param handler   Handler to stream response to.
+	 * @return          Number of records in the response.
+	 */
+	public static int execute(XmlRpcClient client, String method,
+			Object[] params, Handler handler) throws XmlRpcException {
+		Config config = new Config((XmlRpcClientConfigImpl) client.getClientConfig(),
+			handler);
+		return (Integer) client.execute(config, method, params);
+	}
+
+	/**
+	 * Called by our transports in place of their normal response
+	 * reading, whenever the config says to.
+	 * @param config    Config for this request.
+	 * @param in        Response stream.
+	 * @return          Number of records in the response.
+	 */
+	public static Object readResponse(XmlRpcStreamRequestConfig config,
+			InputStream in) throws XmlRpcException {
+		ResponseStreamer parser = new ResponseStreamer(config,
+			((Config) config).getHandler());
+		try {
+			XMLStreamReader rdr = FACTORY.createXMLStreamReader(in);
+			try {
+				parser.rdr = rdr;
+				return parser.parseResponse();
+			} finally {
+				rdr.close();
+			}
+		} catch (XMLStreamException|ParseException e) {
+			throw new XmlRpcClientException("Failed to parse server's response: "
+				+ e.getMessage(), e);
+		} catch (IOException e) {
+			throw new XmlRpcClientException("Failed to write response: "
+				+ e.getMessage(), e);
+		}
+	}
+
+	private XMLStreamReader rdr;
+	private Handler handler;
+	private XmlRpcDateTimeDateFormat dateFormat;
+	private StringBuilder text;
+	private int index;
+
+	private ResponseStreamer(final XmlRpcStreamRequestConfig config, Handler handler) {
+		this.handler = handler;
+		this.text = new StringBuilder();
+		this.dateFormat = new XmlRpcDateTimeDateFormat() {
+			private static final long serialVersionUID = 1L;
+			protected TimeZone getTimeZone() {
+				return config.getTimeZone();
+			}
+		};
+	}
+
+	private int parseResponse() throws XMLStreamException, IOException,
+			ParseException, XmlRpcException {
+		require("methodResponse");
+		String what = nextElement();
+		if ("fault".equals(what)) {
+			nextElement();
+			Map<String, Object> fault = Misc.asStruct(readValue());
+			Object code = fault.get("faultCode");
+			throw new XmlRpcException(code instanceof Integer ? (Integer) code : 0,
+				(String) fault.get("faultString"));
+		}
+		if (!"params".equals(what))
+			throw new XMLStreamException("Expecting params, got " + what);
+		require("param");
+		require("value");
+
+		// If not an array, the whole thing is a single record.
+		String type = nextElementOrText();
+		if (!"array".equals(type)) {
+			handler.begin(0);
+			handler.end(0, readValueBody(type));
+			return 1;
+		}
+
+		// Else each array element is.
+		require("data");
+		for (index = 0; "value".equals(nextElement()); index++) {
+			handler.begin(index);
+			handler.end(index, readValue());
+		}
+		return index;
+	}
+
+	/**
+	 * Read a value, the reader being positioned on its start tag.
+	 */
+	private Object readValue() throws XMLStreamException, IOException,
+			ParseException {
+		return readValueBody(nextElementOrText());
+	}
+
+	/**
+	 * Read the rest of a value, given the type returned by
+	 * nextElementOrText.
+	 */
+	private Object readValueBody(String type) throws XMLStreamException,
+			IOException, ParseException {
+		if (type == null) {
+			// Untyped, i.e. a string, which is already read.
+			return text.toString();
+		}
+		Object ret = null;
+		switch (type) {
+			case "string":
+				ret = readText();
+				break;
+			case "i4":
+			case "int":
+				ret = Integer.valueOf(readText().trim());
+				break;
+			case "i8":
+				ret = Long.valueOf(readText().trim());
+				break;
+			case "boolean":
+				ret = Boolean.valueOf("1".equals(readText().trim()));
+				break;
+			case "double":
+				ret = Double.valueOf(readText().trim());
+				break;
+			case "dateTime.iso8601":
+				ret = dateFormat.parseObject(readText().trim());
+				break;
+			case "base64":
+				ret = Base64.getMimeDecoder().decode(readText().trim());
+				break;
+			case "nil":
+				readText();
+				break;
+			case "struct":
+				ret = readStruct();
+				break;
+			case "array":
+				ret = readArray();
+				break;
+			default:
+				throw new XMLStreamException("Unknown type " + type);
+		}
+		endElement();  // </value>
+		return ret;
+	}
+
+	private Map<String, Object> readStruct() throws XMLStreamException,
+			IOException, ParseException {
+		Map<String, Object> ret = new HashMap<String, Object>();
+		while ("member".equals(nextElement())) {
+			require("name");
+			String name = readText();
+			require("value");
+			String type = nextElementOrText();
+			Writer w = "string".equals(type) ? handler.member(index, name) : null;
+			if (w == null) {
+				ret.put(name, readValueBody(type));
+			} else {
+				streamText(w);
+				endElement();  // </value>
+			}
+			endElement();  // </member>
+		}
+		return ret;
+	}
+
+	private Object[] readArray() throws XMLStreamException, IOException,
+			ParseException {
+		require("data");
+		ArrayList<Object> ret = new ArrayList<Object>();
+		while ("value".equals(nextElement()))
+			ret.add(readValue());
+		endElement();  // </array>
+		return ret.toArray();
+	}
+
+	/**
+	 * Advance to the next start tag, returning its local name, or null
+	 * if an end tag comes first.
+	 */
+	private String nextElement() throws XMLStreamException {
+		while (rdr.hasNext()) {
+			switch (rdr.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					return rdr.getLocalName();
+				case XMLStreamConstants.END_ELEMENT:
+					return null;
+			}
+		}
+		throw new XMLStreamException("Unexpected end of response");
+	}
+
+	/**
+	 * Inside a value, advance to its type tag, returning its local name.
+	 * If there is no type tag (an untyped string), collect the text in
+	 * the text buffer and return null.
+	 */
+	private String nextElementOrText() throws XMLStreamException {
+		text.setLength(0);
+		while (rdr.hasNext()) {
+			switch (rdr.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					return rdr.getLocalName();
+				case XMLStreamConstants.END_ELEMENT:
+					return null;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					text.append(rdr.getTextCharacters(), rdr.getTextStart(),
+						rdr.getTextLength());
+					break;
+			}
+		}
+		throw new XMLStreamException("Unexpected end of response");
+	}
+
+	/**
+	 * Skip to the end tag of the current element.
+	 */
+	private void endElement() throws XMLStreamException {
+		String name = nextElement();
+		if (name != null)
+			throw new XMLStreamException("Unexpected element " + name);
+	}
+
+	private void require(String name) throws XMLStreamException {
+		String got = nextElement();
+		if (!name.equals(got))
+			throw new XMLStreamException("Expecting " + name + ", got " + got);
+	}
+
+	/**
+	 * Read the text content of the current element, up to and including
+	 * its end tag.
+	 */
+	private String readText() throws XMLStreamException {
+		text.setLength(0);
+		while (rdr.hasNext()) {
+			switch (rdr.next()) {
+				case XMLStreamConstants.END_ELEMENT:
+					return text.toString();
+				case XMLStreamConstants.START_ELEMENT:
+					throw new XMLStreamException("Unexpected element " + rdr.getLocalName());
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					text.append(rdr.getTextCharacters(), rdr.getTextStart(),
+						rdr.getTextLength());
+					break;
+			}
+		}
+		throw new XMLStreamException("Unexpected end of response");
+	}
+
+	/**
+	 * Like readText, but write the text (which the parser has already
+	 * unescaped) to a Writer as it arrives.
+	 */
+	private void streamText(Writer w) throws XMLStreamException, IOException {
+		while (rdr.hasNext()) {
+			switch (rdr.next()) {
+				case XMLStreamConstants.END_ELEMENT:
+					return;
+				case XMLStreamConstants.START_ELEMENT:
+					throw new XMLStreamException("Unexpected element " + rdr.getLocalName());
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					w.write(rdr.getTextCharacters(), rdr.getTextStart(),
+						rdr.getTextLength());
+					break;
+			}
+		}
+		throw new XMLStreamException("Unexpected end of response");
+	}
+}
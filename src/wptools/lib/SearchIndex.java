@@ -0,0 +1,804 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A local full-text index of a blog's posts (their titles, content,
+ * excerpts and terms), so that finding every post that mentions
+ * something needs neither the server nor more than a few milliseconds.
+ *
+ * Posts are numbered in the order they are added to the index (a post
+ * that changes is added again, and its old number marked deleted). The
+ * numbers of the posts each word appears in (its postings) are stored,
+ * in ascending order, as variable-length differences, so a word in
+ * most posts takes about a byte per post. Postings are written in
+ * segments, each covering the posts added since the last one, so adding
+ * changed posts never means rewriting what is already there; when there
+ * get to be too many segments, they are merged into one. Segments (and
+ * the table of what post each number stands for) are memory-mapped when
+ * searched, so a search reads only the parts of them it needs.
+ *
+ * Changes become visible all at once, when commit writes a new
+ * index.properties naming the files that make up the index; files are
+ * only ever added to, or replaced by new ones, so an interrupted update
+ * leaves the index as it was.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class SearchIndex {
+	/** Fields needed from each post. */
+	public static final String[] FIELDS = { "post_id", "post_title",
+		"post_content", "post_excerpt", "terms", "post_modified_gmt" };
+
+	private static final String DEFAULT_DIR = ".wptools" + File.separator + "index";
+	private static final String META_FILE = "index.properties";
+	private static final int VERSION = 2;
+
+	// Each post's entry in the docs file: modification time, post ID,
+	// length and offset of its title in the titles file.
+	private static final int DOC_SIZE = 24;
+
+	// Each word's entry in a segment's dictionary: offset and length of
+	// the word in the words file, offset and count of its postings.
+	private static final int ENTRY_SIZE = 20;
+
+	// Posts per segment written while adding.
+	private static final int FLUSH_DOCS = 5000;
+
+	// Segments allowed before they are merged.
+	private static final int MAX_SEGMENTS = 8;
+
+	// Longest word indexed, in code points (anything longer is probably
+	// not a word, and is cut to this length).
+	private static final int MAX_WORD = 64;
+
+	// Orders words as their UTF-8 encodings do, i.e. by code point.
+	private static final Comparator<String> WORD_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			int i = 0, j = 0;
+			while (i < a.length() && j < b.length()) {
+				int ca = a.codePointAt(i), cb = b.codePointAt(j);
+				if (ca != cb)
+					return Integer.compare(ca, cb);
+				i += Character.charCount(ca);
+				j += Character.charCount(cb);
+			}
+			return Integer.compare(a.length() - i, b.length() - j);
+		}
+	};
+
+	private File dir;
+
+	// What was committed.
+	private int generation;
+	private int docs;
+	private long titlesLength;
+	private Date mark;
+	private List<Segment> segments;
+	private BitSet deleted;
+	private String deletesFile;
+	private int nextFile;
+
+	// Reading the docs table.
+	private ByteBuffer docTable;
+	private ByteBuffer titleTable;
+
+	// Adding posts.
+	private Map<Integer, Integer> live;
+	private TreeMap<String, IntList> pending;
+	private int pendingDocs;
+	private FileChannel docsOut;
+	private FileChannel titlesOut;
+	private List<Segment> obsolete;
+
+	/**
+	 * A post found by a search.
+	 */
+	public static class Hit {
+		public int postId;
+		public String title;
+		public Date modified;
+	}
+
+	/**
+	 * Open an index (which needn't exist yet; if it doesn't, it is empty
+	 * until something is added and committed).
+	 * @param dir       Directory holding it.
+	 */
+	public SearchIndex(File dir) throws IOException {
+		this.dir = dir;
+		segments = new ArrayList<Segment>();
+		deleted = new BitSet();
+		obsolete = new ArrayList<Segment>();
+		File meta = new File(dir, META_FILE);
+		if (!meta.exists())
+			return;
+		java.util.Properties props = new java.util.Properties();
+		try (FileInputStream in = new FileInputStream(meta)) {
+			props.load(in);
+		}
+		try {
+			if (Integer.parseInt(props.getProperty("version")) != VERSION)
+				throw new IOException(meta + " - unsupported version, rebuild index");
+			generation = Integer.parseInt(props.getProperty("generation"));
+			docs = Integer.parseInt(props.getProperty("docs"));
+			titlesLength = Long.parseLong(props.getProperty("titles-length"));
+			nextFile = Integer.parseInt(props.getProperty("next-file"));
+			String rmark = props.getProperty("mark");
+			mark = rmark == null ? null : new Date(Long.parseLong(rmark));
+			deletesFile = props.getProperty("deletes");
+			for (String name : props.getProperty("segments", "").trim().split("\\s+"))
+				if (!name.isEmpty())
+					segments.add(new Segment(name));
+		} catch (NumberFormatException|NullPointerException e) {
+			throw new IOException(meta + " - invalid index, rebuild it");
+		}
+		if (deletesFile != null)
+			deleted = BitSet.valueOf(Files.readAllBytes(new File(dir, deletesFile).toPath()));
+	}
+
+	/**
+	 * Get the directory the index of the blog the properties specify
+	 * belongs in, under the "index-dir" property if specified, else under
+	 * ~/.wptools/index.
+	 * @param props     Properties.
+	 */
+	public static File getDir(Properties props) {
+		File root = props.hasKey("index-dir") ? Misc.getFile(props.get("index-dir")) :
+			new File(System.getProperty("user.home"), DEFAULT_DIR);
+		return new File(root, PostCache.hash(props.get("url") + "\n" + props.get("blogid")));
+	}
+
+	/**
+	 * Determine if anything has ever been committed to the index.
+	 */
+	public boolean exists() {
+		return new File(dir, META_FILE).exists();
+	}
+
+	/**
+	 * Get the latest modification time of any post added, as passed to
+	 * commit, or null if none.
+	 */
+	public Date getMark() {
+		return mark;
+	}
+
+	/**
+	 * Get the number of posts in the index.
+	 */
+	public int size() {
+		return docs - deleted.cardinality();
+	}
+
+	/**
+	 * Split text into the words we index: runs of letters and digits,
+	 * lower-cased, and cut to MAX_WORD code points. Queries are split the
+	 * same way, so a long word still finds the posts containing it.
+	 * @param text      Text.
+	 * @param html      True if text is HTML, whose tags and entities
+	 *                  are to be skipped.
+	 * @param words     Where to put them.
+	 */
+	public static void tokenize(String text, boolean html, Collection<String> words) {
+		if (text == null)
+			return;
+		StringBuilder word = new StringBuilder();
+		int wordLength = 0;
+		int len = text.length();
+		int i = 0;
+		while (i <= len) {
+			int c = i < len ? text.codePointAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (wordLength++ < MAX_WORD)
+					word.appendCodePoint(Character.toLowerCase(c));
+				i += Character.charCount(c);
+				continue;
+			}
+			if (wordLength > 0)
+				words.add(word.toString());
+			word.setLength(0);
+			wordLength = 0;
+			i += i < len ? Character.charCount(c) : 1;
+			if (html && c == '<') {
+				int end = text.indexOf('>', i);
+				i = end < 0 ? len : end + 1;
+			} else if (html && c == '&') {
+				int end = i;
+				while (end < len && end - i < 10 && (text.charAt(end) == '#' || Character.isLetterOrDigit(text.charAt(end))))
+					end++;
+				if (end < len && end > i && text.charAt(end) == ';')
+					i = end + 1;
+			}
+		}
+	}
+
+	/**
+	 * Find the posts containing all the words in a query. A word ending
+	 * in * matches all words beginning with it.
+	 * @param query     Query words.
+	 * @return          Posts found, most recently modified first.
+	 */
+	public List<Hit> search(List<String> query) throws IOException {
+		BitSet found = null;
+		for (String raw : query) {
+			boolean prefix = raw.endsWith("*");
+			List<String> words = new ArrayList<String>();
+			tokenize(prefix ? raw.substring(0, raw.length() - 1) : raw, false, words);
+			for (int i = 0; i < words.size(); i++) {
+				BitSet matches = new BitSet(docs);
+				byte[] word = words.get(i).getBytes(StandardCharsets.UTF_8);
+				boolean last = i == words.size() - 1;
+				for (Segment segment : segments)
+					segment.collect(word, prefix && last, matches);
+				if (found == null)
+					found = matches;
+				else
+					found.and(matches);
+			}
+		}
+		List<Hit> ret = new ArrayList<Hit>();
+		if (found == null)
+			return ret;
+		found.andNot(deleted);
+		mapDocs();
+		for (int doc = found.nextSetBit(0); doc >= 0 && doc < docs; doc = found.nextSetBit(doc + 1)) {
+			int base = doc * DOC_SIZE;
+			Hit hit = new Hit();
+			long modified = docTable.getLong(base);
+			hit.modified = modified == Long.MIN_VALUE ? null : new Date(modified);
+			hit.postId = docTable.getInt(base + 8);
+			byte[] title = new byte[docTable.getInt(base + 12)];
+			titleTable.get((int) docTable.getLong(base + 16), title);
+			hit.title = new String(title, StandardCharsets.UTF_8);
+			ret.add(hit);
+		}
+		Collections.sort(ret, new Comparator<Hit>() {
+			public int compare(Hit a, Hit b) {
+				long ma = a.modified == null ? Long.MIN_VALUE : a.modified.getTime();
+				long mb = b.modified == null ? Long.MIN_VALUE : b.modified.getTime();
+				int ret = Long.compare(mb, ma);
+				return ret != 0 ? ret : Integer.compare(b.postId, a.postId);
+			}
+		});
+		return ret;
+	}
+
+	private void mapDocs() throws IOException {
+		if (docTable != null)
+			return;
+		docTable = map(docsName(), (long) docs * DOC_SIZE);
+		titleTable = map(titlesName(), titlesLength);
+	}
+
+	/**
+	 * Throw away everything in the index, so it can be rebuilt. Nothing
+	 * changes on disk until commit.
+	 */
+	public void clear() throws IOException {
+		closeOutputs();
+		obsolete.addAll(segments);
+		segments.clear();
+		deleted = new BitSet();
+		docs = 0;
+		titlesLength = 0;
+		mark = null;
+		generation = nextFile++;
+		live = new HashMap<Integer, Integer>();
+	}
+
+	/**
+	 * Add a post (as returned by wp.getPosts or wp.getPost, with at least
+	 * the fields in FIELDS) to the index, replacing any older version of
+	 * it. Nothing changes on disk until commit.
+	 * @param post      Post.
+	 */
+	public void add(Map<String, Object> post) throws IOException {
+		if (live == null)
+			loadLive();
+		if (docsOut == null)
+			openOutputs();
+		int postId = Integer.parseInt(post.get("post_id").toString());
+		Integer old = live.get(postId);
+		if (old != null)
+			deleted.set(old);
+		int doc = docs++;
+		live.put(postId, doc);
+
+		String title = (String) post.get("post_title");
+		byte[] btitle = (title == null ? "" : title).getBytes(StandardCharsets.UTF_8);
+		Date modified = (Date) post.get("post_modified_gmt");
+		ByteBuffer record = ByteBuffer.allocate(DOC_SIZE);
+		record.putLong(modified == null ? Long.MIN_VALUE : modified.getTime());
+		record.putInt(postId);
+		record.putInt(btitle.length);
+		record.putLong(titlesLength);
+		record.flip();
+		writeFully(docsOut, record, (long) doc * DOC_SIZE);
+		writeFully(titlesOut, ByteBuffer.wrap(btitle), titlesLength);
+		titlesLength += btitle.length;
+
+		Set<String> words = new HashSet<String>();
+		tokenize(title, true, words);
+		tokenize((String) post.get("post_content"), true, words);
+		tokenize((String) post.get("post_excerpt"), true, words);
+		Object terms = post.get("terms");
+		if (terms instanceof Object[]) {
+			for (Object term : (Object[]) terms)
+				if (term instanceof Map)
+					tokenize((String) Misc.asStruct(term).get("name"), false, words);
+		}
+		for (String word : words) {
+			IntList list = pending.get(word);
+			if (list == null) {
+				list = new IntList();
+				pending.put(word, list);
+			}
+			list.add(doc);
+		}
+		if (++pendingDocs >= FLUSH_DOCS)
+			flush();
+	}
+
+	/**
+	 * Make everything added since the index was opened (or cleared) part
+	 * of it.
+	 * @param mark      Latest modification time of any post added, to
+	 *                  be returned by getMark, or null to leave it as is.
+	 */
+	public void commit(Date mark) throws IOException {
+		flush();
+		if (segments.size() > MAX_SEGMENTS)
+			merge();
+		if (docsOut != null) {
+			docsOut.force(true);
+			titlesOut.force(true);
+		}
+		if (mark != null)
+			this.mark = mark;
+
+		// Deletions, then the properties file naming everything.
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("unable to create " + dir);
+		String oldDeletes = deletesFile;
+		deletesFile = null;
+		if (!deleted.isEmpty()) {
+			deletesFile = "deletes." + nextFile++;
+			writeAtomically(deletesFile, deleted.toByteArray());
+		}
+		java.util.Properties props = new java.util.Properties();
+		props.setProperty("version", Integer.toString(VERSION));
+		props.setProperty("generation", Integer.toString(generation));
+		props.setProperty("docs", Integer.toString(docs));
+		props.setProperty("titles-length", Long.toString(titlesLength));
+		props.setProperty("next-file", Integer.toString(nextFile));
+		if (this.mark != null)
+			props.setProperty("mark", Long.toString(this.mark.getTime()));
+		if (deletesFile != null)
+			props.setProperty("deletes", deletesFile);
+		StringBuilder names = new StringBuilder();
+		for (Segment segment : segments)
+			names.append(names.length() == 0 ? "" : " ").append(segment.name);
+		props.setProperty("segments", names.toString());
+		File temp = File.createTempFile("index", ".tmp", dir);
+		try {
+			try (FileOutputStream out = new FileOutputStream(temp)) {
+				props.store(out, "SearchPosts index; do not edit");
+				out.getFD().sync();
+			}
+			// The files it names must be there before it is.
+			syncDir();
+			Files.move(temp.toPath(), new File(dir, META_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			syncDir();
+		} finally {
+			temp.delete();
+		}
+
+		// Now nothing refers to what was replaced.
+		closeOutputs();
+		if (oldDeletes != null && !oldDeletes.equals(deletesFile))
+			new File(dir, oldDeletes).delete();
+		for (Segment segment : obsolete)
+			segment.delete();
+		obsolete.clear();
+		String current = Integer.toString(generation);
+		for (String name : new String[] { "docs.", "titles." }) {
+			File[] stale = dir.listFiles();
+			for (File file : stale == null ? new File[0] : stale)
+				if (file.getName().startsWith(name) && !file.getName().equals(name + current))
+					file.delete();
+		}
+		docTable = titleTable = null;
+	}
+
+	private String docsName() {
+		return "docs." + generation;
+	}
+
+	private String titlesName() {
+		return "titles." + generation;
+	}
+
+	/**
+	 * Learn which post each (non-deleted) number stands for.
+	 */
+	private void loadLive() throws IOException {
+		live = new HashMap<Integer, Integer>();
+		if (docs == 0)
+			return;
+		ByteBuffer table = map(docsName(), (long) docs * DOC_SIZE);
+		for (int doc = 0; doc < docs; doc++)
+			if (!deleted.get(doc))
+				live.put(table.getInt(doc * DOC_SIZE + 8), doc);
+	}
+
+	private void openOutputs() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("unable to create " + dir);
+		docsOut = FileChannel.open(new File(dir, docsName()).toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		titlesOut = FileChannel.open(new File(dir, titlesName()).toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		// Anything past what was committed is left over from an update
+		// that never finished.
+		docsOut.truncate((long) docs * DOC_SIZE);
+		titlesOut.truncate(titlesLength);
+		pending = new TreeMap<String, IntList>(WORD_ORDER);
+		pendingDocs = 0;
+	}
+
+	private void closeOutputs() throws IOException {
+		if (docsOut == null)
+			return;
+		docsOut.close();
+		titlesOut.close();
+		docsOut = titlesOut = null;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long position)
+			throws IOException {
+		while (buf.hasRemaining())
+			position += channel.write(buf, position);
+	}
+
+	private void writeAtomically(String name, byte[] contents) throws IOException {
+		File temp = File.createTempFile("index", ".tmp", dir);
+		try {
+			try (FileOutputStream out = new FileOutputStream(temp)) {
+				out.write(contents);
+				out.getFD().sync();
+			}
+			Files.move(temp.toPath(), new File(dir, name).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Make the directory's entries (files created or renamed in it)
+	 * durable. Not every platform can do this; where it cannot, we do
+	 * without.
+	 */
+	private void syncDir() {
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Not supported here.
+		}
+	}
+
+	private ByteBuffer map(String name, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(new File(dir, name).toPath(),
+				StandardOpenOption.READ)) {
+			if (channel.size() < size)
+				throw new IOException(name + " - truncated index, rebuild it");
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+	}
+
+	/**
+	 * Write the postings of the posts added since the last flush as a
+	 * new segment.
+	 */
+	private void flush() throws IOException {
+		if (pending == null || pending.isEmpty())
+			return;
+		SegmentWriter writer = new SegmentWriter("seg." + nextFile++);
+		try {
+			for (Map.Entry<String, IntList> entry : pending.entrySet()) {
+				IntList list = entry.getValue();
+				writer.add(entry.getKey().getBytes(StandardCharsets.UTF_8), list.values, list.size);
+			}
+		} finally {
+			writer.close();
+		}
+		segments.add(new Segment(writer.name));
+		pending.clear();
+		pendingDocs = 0;
+	}
+
+	/**
+	 * Merge all the segments into one, dropping deleted posts. Since
+	 * each segment's postings all come after the last one's, each word's
+	 * merged postings are just its postings in each segment, in order.
+	 */
+	private void merge() throws IOException {
+		final List<Segment> merging = new ArrayList<Segment>(segments);
+		PriorityQueue<int[]> heap = new PriorityQueue<int[]>(merging.size(), new Comparator<int[]>() {
+			// Each element is a segment index and a word index in it.
+			public int compare(int[] a, int[] b) {
+				int ret = merging.get(a[0]).compareWords(a[1], merging.get(b[0]), b[1]);
+				return ret != 0 ? ret : Integer.compare(a[0], b[0]);
+			}
+		});
+		for (int i = 0; i < merging.size(); i++)
+			if (merging.get(i).count > 0)
+				heap.add(new int[] { i, 0 });
+		SegmentWriter writer = new SegmentWriter("seg." + nextFile++);
+		IntList postings = new IntList();
+		try {
+			while (!heap.isEmpty()) {
+				int[] top = heap.remove();
+				byte[] word = merging.get(top[0]).word(top[1]);
+				postings.size = 0;
+				while (true) {
+					merging.get(top[0]).postings(top[1], postings, deleted);
+					if (++top[1] < merging.get(top[0]).count)
+						heap.add(top);
+					if (heap.isEmpty() || !Arrays.equals(word, merging.get(heap.peek()[0]).word(heap.peek()[1])))
+						break;
+					top = heap.remove();
+				}
+				if (postings.size > 0)
+					writer.add(word, postings.values, postings.size);
+			}
+		} finally {
+			writer.close();
+		}
+		obsolete.addAll(merging);
+		segments.clear();
+		segments.add(new Segment(writer.name));
+	}
+
+	/**
+	 * A growable list of ints.
+	 */
+	private static class IntList {
+		public int[] values = new int[4];
+		public int size = 0;
+
+		public void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+	}
+
+	/**
+	 * Writes a segment: a dictionary of fixed-size entries, one per word
+	 * in order, the words themselves, and their postings.
+	 */
+	private class SegmentWriter {
+		public String name;
+		private FileOutputStream dictFile;
+		private FileOutputStream wordsFile;
+		private FileOutputStream postingsFile;
+		private DataOutputStream dict;
+		private OutputStream words;
+		private OutputStream postings;
+		private int wordsLength;
+		private long postingsLength;
+
+		public SegmentWriter(String name) throws IOException {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("unable to create " + dir);
+			this.name = name;
+			dictFile = new FileOutputStream(new File(dir, name + ".dic"));
+			wordsFile = new FileOutputStream(new File(dir, name + ".wrd"));
+			postingsFile = new FileOutputStream(new File(dir, name + ".pst"));
+			dict = new DataOutputStream(new BufferedOutputStream(dictFile));
+			words = new BufferedOutputStream(wordsFile);
+			postings = new BufferedOutputStream(postingsFile);
+			wordsLength = 0;
+			postingsLength = 0;
+		}
+
+		public void add(byte[] word, int[] docs, int count) throws IOException {
+			dict.writeInt(wordsLength);
+			dict.writeInt(word.length);
+			dict.writeLong(postingsLength);
+			dict.writeInt(count);
+			words.write(word);
+			wordsLength += word.length;
+			int last = 0;
+			for (int i = 0; i < count; i++) {
+				int delta = docs[i] - last;
+				last = docs[i];
+				while ((delta & ~0x7f) != 0) {
+					postings.write((delta & 0x7f) | 0x80);
+					delta >>>= 7;
+					postingsLength++;
+				}
+				postings.write(delta);
+				postingsLength++;
+			}
+		}
+
+		/**
+		 * Close, first making sure all that was written is on disk, since
+		 * the next commit will name this segment.
+		 */
+		public void close() throws IOException {
+			try {
+				close(dict, dictFile);
+			} finally {
+				try {
+					close(words, wordsFile);
+				} finally {
+					close(postings, postingsFile);
+				}
+			}
+		}
+
+		private void close(OutputStream out, FileOutputStream file) throws IOException {
+			try {
+				out.flush();
+				file.getFD().sync();
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * A segment, memory-mapped for reading.
+	 */
+	private class Segment {
+		public String name;
+		public int count;
+		private ByteBuffer dict;
+		private ByteBuffer words;
+		private ByteBuffer postings;
+
+		public Segment(String name) throws IOException {
+			this.name = name;
+			dict = mapAll(name + ".dic");
+			words = mapAll(name + ".wrd");
+			postings = mapAll(name + ".pst");
+			count = dict.capacity() / ENTRY_SIZE;
+		}
+
+		private ByteBuffer mapAll(String file) throws IOException {
+			return map(file, new File(dir, file).length());
+		}
+
+		public byte[] word(int i) {
+			byte[] ret = new byte[dict.getInt(i * ENTRY_SIZE + 4)];
+			words.get(dict.getInt(i * ENTRY_SIZE), ret);
+			return ret;
+		}
+
+		/**
+		 * Compare word i to a word, as unsigned bytes, treating the word
+		 * as a prefix if asked to.
+		 */
+		private int compare(int i, byte[] word, boolean prefix) {
+			int offset = dict.getInt(i * ENTRY_SIZE);
+			int length = dict.getInt(i * ENTRY_SIZE + 4);
+			int n = Math.min(length, word.length);
+			for (int j = 0; j < n; j++) {
+				int ret = Integer.compare(words.get(offset + j) & 0xff, word[j] & 0xff);
+				if (ret != 0)
+					return ret;
+			}
+			return prefix && length >= word.length ? 0 : Integer.compare(length, word.length);
+		}
+
+		public int compareWords(int i, Segment other, int j) {
+			return -other.compare(j, word(i), false);
+		}
+
+		/**
+		 * Find the first word equal to (or beginning with) a word.
+		 * @return        Its index, or -1 if none.
+		 */
+		private int find(byte[] word, boolean prefix) {
+			int lo = 0, hi = count;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compare(mid, word, prefix) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo < count && compare(lo, word, prefix) == 0 ? lo : -1;
+		}
+
+		/**
+		 * Note the posts a word (or all words beginning with it) appear in.
+		 */
+		public void collect(byte[] word, boolean prefix, BitSet into) {
+			int i = find(word, prefix);
+			if (i < 0)
+				return;
+			do {
+				int n = dict.getInt(i * ENTRY_SIZE + 16);
+				int pos = (int) dict.getLong(i * ENTRY_SIZE + 8);
+				int doc = 0;
+				for (int j = 0; j < n; j++) {
+					int delta = 0;
+					for (int shift = 0; ; shift += 7) {
+						int b = postings.get(pos++);
+						delta |= (b & 0x7f) << shift;
+						if ((b & 0x80) == 0)
+							break;
+					}
+					doc += delta;
+					into.set(doc);
+				}
+			} while (prefix && ++i < count && compare(i, word, true) == 0);
+		}
+
+		/**
+		 * Append the postings of word i, less deleted posts, to a list.
+		 */
+		public void postings(int i, IntList into, BitSet deleted) {
+			int n = dict.getInt(i * ENTRY_SIZE + 16);
+			int pos = (int) dict.getLong(i * ENTRY_SIZE + 8);
+			int doc = 0;
+			for (int j = 0; j < n; j++) {
+				int delta = 0;
+				for (int shift = 0; ; shift += 7) {
+					int b = postings.get(pos++);
+					delta |= (b & 0x7f) << shift;
+					if ((b & 0x80) == 0)
+						break;
+				}
+				doc += delta;
+				if (!deleted.get(doc))
+					into.add(doc);
+			}
+		}
+
+		public void delete() {
+			for (String suffix : new String[] { ".dic", ".wrd", ".pst" })
+				new File(dir, name + suffix).delete();
+		}
+	}
+}
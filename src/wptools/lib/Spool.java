@@ -0,0 +1,103 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Writer that holds what is written to it until it is copied
+ * somewhere else. Small amounts of text are kept in memory; anything
+ * bigger overflows to a temporary file, so memory use stays bounded.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class Spool extends Writer {
+	/** Characters held in memory before we overflow to a file. */
+	public static final int DEFAULT_LIMIT = 1024 * 1024;
+
+	private static final int BUFSIZE = 65536;
+
+	private int limit;
+	private StringBuilder buf;
+	private File file;
+	private Writer fileWriter;
+
+	public Spool() {
+		this(DEFAULT_LIMIT);
+	}
+
+	public Spool(int limit) {
+		this.limit = limit;
+		this.buf = new StringBuilder();
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (fileWriter == null && buf.length() + len > limit)
+			overflow();
+		if (fileWriter == null)
+			buf.append(cbuf, off, len);
+		else
+			fileWriter.write(cbuf, off, len);
+	}
+
+	private void overflow() throws IOException {
+		file = File.createTempFile("wptools", ".spool");
+		file.deleteOnExit();
+		fileWriter = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(file), StandardCharsets.UTF_8), BUFSIZE);
+		fileWriter.append(buf);
+		buf = null;
+	}
+
+	/**
+	 * Copy everything written so far to the specified Writer.
+	 * @param w         Where to copy to.
+	 */
+	public void copyTo(Writer w) throws IOException {
+		if (fileWriter == null) {
+			w.append(buf);
+			return;
+		}
+		fileWriter.flush();
+		try (Reader rdr = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.UTF_8))) {
+			char[] cbuf = new char[BUFSIZE];
+			int nread;
+			while ((nread = rdr.read(cbuf)) != -1)
+				w.write(cbuf, 0, nread);
+		}
+	}
+
+	public void flush() throws IOException {
+		if (fileWriter != null)
+			fileWriter.flush();
+	}
+
+	/**
+	 * Discard everything, deleting any temporary file.
+	 */
+	public void close() throws IOException {
+		if (fileWriter != null) {
+			fileWriter.close();
+			fileWriter = null;
+			file.delete();
+			file = null;
+		}
+		buf = new StringBuilder();
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+
+/**
+ * Keeps statistics on the XML-RPC calls we make, by method: how many
+ * there were, how long they took (as a histogram, from which
+ * percentiles are reported), how many failed with a fault or some
+ * other error, and how many were retried or hedged (see CallPolicy).
+ * Calls packed into system.multicall batches are counted under their
+ * own methods too, as "batched" calls. Bytes sent and received come
+ * from Traffic. Like Traffic, everything is process-wide.
+ *
+ * Times are of whole calls, as the command saw them, retries and all.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class Stats {
+	private static final ConcurrentHashMap<String, Method> METHODS =
+		new ConcurrentHashMap<String, Method>();
+	private static long start = System.nanoTime();
+	private static boolean reporting = false;
+
+	private static final double NANOS_PER_MILLI = 1e6;
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	// Percentiles reported.
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99" };
+
+	/**
+	 * Counts for one method.
+	 */
+	private static class Method {
+		public String name;
+		public AtomicLong calls = new AtomicLong();
+		public AtomicLong batched = new AtomicLong();
+		public AtomicLong faults = new AtomicLong();
+		public AtomicLong errors = new AtomicLong();
+		public AtomicLong retries = new AtomicLong();
+		public AtomicLong hedges = new AtomicLong();
+		public Histogram latency = new Histogram();
+
+		public Method(String name) {
+			this.name = name;
+		}
+	}
+
+	private static Method get(String name) {
+		Method ret = METHODS.get(name);
+		if (ret == null) {
+			ret = new Method(name);
+			Method old = METHODS.putIfAbsent(name, ret);
+			if (old != null)
+				ret = old;
+		}
+		return ret;
+	}
+
+	/**
+	 * Note that a call was made.
+	 * @param method    XML-RPC method.
+	 * @param nanos     How long it took.
+	 * @param e         What it threw, or null if it succeeded.
+	 */
+	public static void called(String method, long nanos, Throwable e) {
+		Method m = get(method);
+		m.calls.incrementAndGet();
+		m.latency.add(nanos);
+		if (e != null)
+			failed(m, e);
+	}
+
+	/**
+	 * Note that calls were made as part of a system.multicall batch.
+	 * @param method    XML-RPC method.
+	 * @param results   Their results; failures are exceptions.
+	 */
+	public static void batched(String method, Object[] results) {
+		Method m = get(method);
+		m.batched.addAndGet(results.length);
+		for (Object result : results)
+			if (result instanceof Throwable)
+				failed(m, (Throwable) result);
+	}
+
+	/**
+	 * Note that a call made as part of a batch failed.
+	 * @param method    XML-RPC method.
+	 * @param e         What it threw.
+	 */
+	public static void batchFailed(String method, Throwable e) {
+		failed(get(method), e);
+	}
+
+	/**
+	 * Note that calls were made as part of a batch whose results were
+	 * streamed (and so are reported as they arrive, see batchFailed).
+	 * @param method    XML-RPC method.
+	 * @param count     Number of calls.
+	 */
+	public static void batched(String method, int count) {
+		get(method).batched.addAndGet(count);
+	}
+
+	/**
+	 * Count a failure as a fault (which the server sent) or an error
+	 * (which happened on the way to or from it; the library reports
+	 * those as exceptions with a cause, when not as client exceptions).
+	 */
+	private static void failed(Method m, Throwable e) {
+		if (e instanceof XmlRpcException && !(e instanceof XmlRpcClientException)
+				&& e.getCause() == null)
+			m.faults.incrementAndGet();
+		else
+			m.errors.incrementAndGet();
+	}
+
+	/**
+	 * Note that a call is being retried.
+	 */
+	public static void retried(String method) {
+		get(method).retries.incrementAndGet();
+	}
+
+	/**
+	 * Note that a hedge (second copy) of a call is being sent.
+	 */
+	public static void hedged(String method) {
+		get(method).hedges.incrementAndGet();
+	}
+
+	/**
+	 * Wrap a transport factory, so that all calls made through it are
+	 * timed and counted.
+	 * @param factory   Factory to wrap.
+	 * @return          Wrapped factory.
+	 */
+	public static XmlRpcTransportFactory wrap(final XmlRpcTransportFactory factory) {
+		return new XmlRpcTransportFactory() {
+			public XmlRpcTransport getTransport() {
+				final XmlRpcTransport transport = factory.getTransport();
+				return new XmlRpcTransport() {
+					public Object sendRequest(XmlRpcRequest request) throws XmlRpcException {
+						long begin = System.nanoTime();
+						Throwable error = null;
+						try {
+							return transport.sendRequest(request);
+						} catch (XmlRpcException e) {
+							// (Not counting anything else, such as what a
+							// streaming handler throws to stop a call.)
+							error = e;
+							throw e;
+						} finally {
+							called(request.getMethodName(), System.nanoTime() - begin, error);
+						}
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Get a printable summary: a table with a line per method, then
+	 * totals and throughput.
+	 */
+	public static String summary() {
+		StringBuilder ret = new StringBuilder();
+		String format = "%-20s %7s %7s %6s %6s %7s %6s %8s %8s %8s %8s %10s %10s%n";
+		ret.append(String.format(format, "METHOD", "CALLS", "BATCHED", "FAULTS",
+			"ERRORS", "RETRIES", "HEDGES", "P50", "P90", "P99", "MAX", "SENT", "RECEIVED"));
+		long calls = 0, batched = 0, sent = 0, received = 0;
+		for (Method m : methods()) {
+			Histogram h = m.latency;
+			ret.append(String.format(format, m.name, m.calls.get(), m.batched.get(),
+				m.faults.get(), m.errors.get(), m.retries.get(), m.hedges.get(),
+				millis(h, h.percentile(0.5)), millis(h, h.percentile(0.9)),
+				millis(h, h.percentile(0.99)), millis(h, h.getMax()),
+				Traffic.getSentWire(m.name), Traffic.getReceivedWire(m.name)));
+			calls += m.calls.get();
+			batched += m.batched.get();
+			sent += Traffic.getSentWire(m.name);
+			received += Traffic.getReceivedWire(m.name);
+		}
+		double seconds = getElapsed() / NANOS_PER_SECOND;
+		ret.append(String.format("%d calls (%d batched) in %.2f s: %.1f calls/s (%.1f batched/s), %.1f KB/s sent, %.1f KB/s received",
+			calls, batched, seconds, rate(calls, seconds), rate(batched, seconds),
+			rate(sent, seconds) / 1024.0, rate(received, seconds) / 1024.0));
+		return ret.toString();
+	}
+
+	private static String millis(Histogram h, long nanos) {
+		if (h.getCount() == 0)
+			return "-";
+		return String.format("%.1fms", nanos / NANOS_PER_MILLI);
+	}
+
+	private static double rate(long count, double seconds) {
+		return seconds > 0.0 ? count / seconds : 0.0;
+	}
+
+	private static List<Method> methods() {
+		List<String> names = new ArrayList<String>(METHODS.keySet());
+		Collections.sort(names);
+		List<Method> ret = new ArrayList<Method>(names.size());
+		for (String name : names)
+			ret.add(METHODS.get(name));
+		return ret;
+	}
+
+	/**
+	 * Get the nanoseconds since we started counting.
+	 */
+	public static synchronized long getElapsed() {
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Write everything out as JSON.
+	 * @param out       Where to write.
+	 */
+	public static void writeJson(Writer out) throws IOException {
+		JsonWriter json = new JsonWriter(out);
+		json.beginObject();
+		json.name("elapsed_ms").value(getElapsed() / NANOS_PER_MILLI);
+		json.name("methods").beginObject();
+		for (Method m : methods()) {
+			Histogram h = m.latency;
+			json.name(m.name).beginObject();
+			json.name("calls").value(m.calls.get());
+			json.name("batched").value(m.batched.get());
+			json.name("faults").value(m.faults.get());
+			json.name("errors").value(m.errors.get());
+			json.name("retries").value(m.retries.get());
+			json.name("hedges").value(m.hedges.get());
+			json.name("latency_ms").beginObject();
+			if (h.getCount() > 0) {
+				for (int i = 0; i < PERCENTILES.length; i++)
+					json.name(PERCENTILE_NAMES[i]).value(h.percentile(PERCENTILES[i]) / NANOS_PER_MILLI);
+				json.name("max").value(h.getMax() / NANOS_PER_MILLI);
+				json.name("mean").value(h.getTotal() / NANOS_PER_MILLI / h.getCount());
+			}
+			json.endObject();
+			json.name("bytes_sent").value(Traffic.getSentWire(m.name));
+			json.name("bytes_received").value(Traffic.getReceivedWire(m.name));
+			json.endObject();
+		}
+		json.endObject();
+		json.endObject();
+		out.write(System.lineSeparator());
+		json.flush();
+	}
+
+	/**
+	 * Arrange for the statistics to be reported when we exit.
+	 * @param file      File to write JSON to, or null to print the
+	 *                  summary to standard error.
+	 */
+	public static synchronized void reportOnExit(final File file) {
+		if (reporting)
+			return;
+		reporting = true;
+		Misc.atExit(new Runnable() {
+			public void run() {
+				if (file == null) {
+					Misc.error("call statistics:" + System.lineSeparator() + summary());
+					return;
+				}
+				try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+						StandardCharsets.UTF_8)) {
+					writeJson(out);
+				} catch (IOException e) {
+					Misc.error(file + " - " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Zero everything and forget any report request, e.g. before the
+	 * daemon runs another command.
+	 */
+	public static synchronized void reset() {
+		METHODS.clear();
+		start = System.nanoTime();
+		reporting = false;
+	}
+
+	/**
+	 * A histogram of times, in buckets an eighth of a power of two wide
+	 * (so percentiles are within about 6% of the truth), that may be
+	 * added to from any number of threads without locking.
+	 */
+	private static class Histogram {
+		// Times below this many microseconds get a bucket each.
+		private static final int LINEAR = 16;
+		private static final int SUB_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int BUCKETS = LINEAR + (64 - 4) * SUB_BUCKETS;
+
+		private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong total = new AtomicLong();
+		private AtomicLong max = new AtomicLong();
+
+		public void add(long nanos) {
+			long micros = Math.max(0L, nanos / 1000L);
+			buckets.incrementAndGet(index(micros));
+			count.incrementAndGet();
+			total.addAndGet(nanos);
+			long old;
+			while (nanos > (old = max.get()) && !max.compareAndSet(old, nanos))
+				;
+		}
+
+		private static int index(long micros) {
+			if (micros < LINEAR)
+				return (int) micros;
+			int exp = 63 - Long.numberOfLeadingZeros(micros);
+			int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return LINEAR + (exp - 4) * SUB_BUCKETS + sub;
+		}
+
+		// Middle of a bucket, in nanoseconds.
+		private static long middle(int index) {
+			if (index < LINEAR)
+				return index * 1000L + 500L;
+			int exp = (index - LINEAR) / SUB_BUCKETS + 4;
+			int sub = (index - LINEAR) % SUB_BUCKETS;
+			long low = (long) (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+			long width = 1L << (exp - SUB_BITS);
+			return (low + width / 2) * 1000L;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotal() {
+			return total.get();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * Get a percentile, in nanoseconds.
+		 * @param p       Percentile, as a fraction.
+		 */
+		public long percentile(double p) {
+			long n = count.get();
+			if (n == 0)
+				return 0L;
+			long rank = Math.max(1L, (long) Math.ceil(p * n));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank)
+					return Math.min(middle(i), getMax());
+			}
+			return getMax();
+		}
+	}
+}
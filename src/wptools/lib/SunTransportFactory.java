@@ -0,0 +1,147 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
+import org.apache.xmlrpc.client.XmlRpcSunHttpTransport;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactoryImpl;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.xml.sax.SAXException;
+
+/**
+ * The standard HttpURLConnection-based transport, taught to hand
+ * responses to streaming calls over to ResponseStreamer, and to send
+ * requests containing files (see UploadFile) as they are written.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class SunTransportFactory extends XmlRpcTransportFactoryImpl {
+	private static final HostnameVerifier ANY_HOST = new HostnameVerifier() {
+		public boolean verify(String hostname, SSLSession session) {
+			return true;
+		}
+	};
+
+	// Chunk size for requests sent as they are written.
+	private static final int CHUNK_SIZE = 65536;
+
+	private SSLContext sslContext;
+
+	/**
+	 * Constructor.
+	 * @param client         XML-RPC client we are the factory for.
+	 * @param sslContext     SSL context to use (trusting whatever it
+	 *                       trusts, regardless of host name), or null
+	 *                       for the default.
+	 */
+	public SunTransportFactory(XmlRpcClient client, SSLContext sslContext) {
+		super(client);
+		this.sslContext = sslContext;
+	}
+
+	public XmlRpcTransport getTransport() {
+		return new XmlRpcSunHttpTransport(getClient()) {
+			private boolean streaming;
+			private Trace trace;
+
+			public Object sendRequest(XmlRpcRequest request) throws XmlRpcException {
+				streaming = UploadFile.isStreaming(request);
+				trace = Trace.begin(request);
+				trace.resolve();
+				return super.sendRequest(request);
+			}
+
+			// Requests are serialized here when written to memory first,
+			// and as they are sent otherwise.
+			protected ReqWriter newReqWriter(XmlRpcRequest request) throws XmlRpcException,
+					IOException, SAXException {
+				Trace.Phase phase = trace.phase(Trace.SERIALIZE);
+				try {
+					return super.newReqWriter(request);
+				} finally {
+					phase.end();
+				}
+			}
+
+			// Connect (and do any TLS handshake) first, so as to be able
+			// to tell that apart from sending the request.
+			protected void writeRequest(ReqWriter writer) throws XmlRpcException,
+					IOException, SAXException {
+				Trace.Phase phase = trace.phase(Trace.CONNECT);
+				try {
+					getURLConnection().connect();
+				} finally {
+					phase.end();
+				}
+				phase = trace.phase(Trace.SEND);
+				try {
+					super.writeRequest(writer);
+				} finally {
+					phase.end();
+				}
+			}
+
+			protected InputStream getInputStream() throws XmlRpcException {
+				Trace.Phase phase = trace.phase(Trace.WAIT);
+				try {
+					return super.getInputStream();
+				} finally {
+					phase.end();
+				}
+			}
+
+			protected boolean isUsingByteArrayOutput(XmlRpcHttpClientConfig config) {
+				return !streaming && super.isUsingByteArrayOutput(config);
+			}
+
+			// The library says it's sending gzip whenever asked to, but
+			// only actually compresses if extensions are enabled.
+			protected boolean isCompressingRequest(XmlRpcStreamRequestConfig config) {
+				return config.isGzipCompressing();
+			}
+
+			protected Object readResponse(XmlRpcStreamRequestConfig config,
+					InputStream in) throws XmlRpcException {
+				Trace.Phase phase = trace.phase(Trace.PARSE);
+				try {
+					if (config instanceof ResponseStreamer.Config)
+						return ResponseStreamer.readResponse(config, in);
+					return super.readResponse(config, in);
+				} finally {
+					phase.end();
+				}
+			}
+
+			protected URLConnection newURLConnection(URL url) throws IOException {
+				URLConnection ret = super.newURLConnection(url);
+				if (streaming && ret instanceof HttpURLConnection)
+					((HttpURLConnection) ret).setChunkedStreamingMode(CHUNK_SIZE);
+				if (sslContext != null && ret instanceof HttpsURLConnection) {
+					HttpsURLConnection https = (HttpsURLConnection) ret;
+					https.setSSLSocketFactory(sslContext.getSocketFactory());
+					https.setHostnameVerifier(ANY_HOST);
+				}
+				return ret;
+			}
+		};
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
+
+/**
+ * Times the phases of XML-RPC calls: looking up the server's address,
+ * connecting to it, writing the request, waiting for the response to
+ * start, and reading and parsing it (see the constants below). Each
+ * phase is a Java Flight Recorder event (wptools.CallPhase), so a
+ * recording of a run shows where its calls spent their time; and if
+ * asked (see traceTo), each is also written to a file as a line of
+ * JSON. When neither is happening, which is usual, this costs next to
+ * nothing.
+ *
+ * Our transports say when each phase begins and ends. What they can see
+ * differs: the HttpURLConnection one connects (and does any TLS
+ * handshake) as a separate step, but java.net.http doesn't let us see
+ * that, so with it connecting is part of waiting for the response. (The
+ * JDK's own jdk.TLSHandshake event, if enabled, shows handshakes.)
+ * Checking server certificates against a fingerprint (see
+ * Misc.bypassSslAuth) is a phase of its own, but since it happens deep
+ * in the TLS code, it isn't tied to any particular call.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class Trace {
+	/** Looking up the server's address. */
+	public static final String RESOLVE = "resolve";
+	/** Connecting, including any TLS handshake. */
+	public static final String CONNECT = "connect";
+	/** Checking a server's certificates against a fingerprint. */
+	public static final String VERIFY = "tls-verify";
+	/** Writing the request into memory. */
+	public static final String SERIALIZE = "serialize";
+	/** Writing the request to the server. */
+	public static final String SEND = "send";
+	/** Waiting for the response to start (time to first byte). */
+	public static final String WAIT = "wait";
+	/** Reading and parsing the response. */
+	public static final String PARSE = "parse";
+
+	private static final EventType PHASE_TYPE = EventType.getEventType(PhaseEvent.class);
+	private static final AtomicLong CALLS = new AtomicLong();
+
+	private static Writer out;
+	private static JsonWriter json;
+	private static long origin;
+
+	// Used when not tracing.
+	private static final Trace NONE = new Trace(0L, null, null);
+	private static final Phase NO_PHASE = NONE.new Phase(null);
+
+	private long call;
+	private String method;
+	private String server;
+
+	/**
+	 * A phase of a call, as recorded by Java Flight Recorder.
+	 */
+	@Name("wptools.CallPhase")
+	@Label("XML-RPC Call Phase")
+	@Category("WPTools")
+	@Description("A phase of an XML-RPC call.")
+	@StackTrace(false)
+	public static class PhaseEvent extends jdk.jfr.Event {
+		@Label("Call")
+		@Description("Number of the call, counting from 1; 0 if not tied to one.")
+		public long call;
+
+		@Label("Method")
+		public String method;
+
+		@Label("Server")
+		public String server;
+
+		@Label("Phase")
+		public String phase;
+	}
+
+	private Trace(long call, String method, String server) {
+		this.call = call;
+		this.method = method;
+		this.server = server;
+	}
+
+	/**
+	 * Start tracing a call.
+	 * @param request   The call.
+	 * @return          Object to time its phases with.
+	 */
+	public static Trace begin(XmlRpcRequest request) {
+		if (!isEnabled())
+			return NONE;
+		URL url = ((XmlRpcHttpClientConfig) request.getConfig()).getServerURL();
+		return new Trace(CALLS.incrementAndGet(), request.getMethodName(), url.getHost());
+	}
+
+	/**
+	 * Start timing a phase that isn't part of any one call.
+	 * @param name      Phase.
+	 * @param server    Server involved, or null if unknown.
+	 * @return          Phase, whose end method must be called when it
+	 *                  is over.
+	 */
+	public static Phase standalone(String name, String server) {
+		if (!isEnabled())
+			return NO_PHASE;
+		return new Trace(0L, null, server).phase(name);
+	}
+
+	private static boolean isEnabled() {
+		return out != null || PHASE_TYPE.isEnabled();
+	}
+
+	/**
+	 * Start timing a phase of this call.
+	 * @param name      Phase.
+	 * @return          Phase, whose end method must be called when it
+	 *                  is over.
+	 */
+	public Phase phase(String name) {
+		if (this == NONE)
+			return NO_PHASE;
+		return new Phase(name);
+	}
+
+	/**
+	 * Look up the server's address, timing that as a phase. The JDK
+	 * caches what it looks up, so this only takes time if the transport
+	 * would otherwise have had to. Only done when tracing.
+	 */
+	public void resolve() {
+		if (this == NONE)
+			return;
+		Phase p = phase(RESOLVE);
+		try {
+			InetAddress.getAllByName(server);
+		} catch (UnknownHostException e) {
+			/* the transport will say so */
+		}
+		p.end();
+	}
+
+	/**
+	 * A phase being timed.
+	 */
+	public class Phase {
+		private String name;
+		private PhaseEvent event;
+		private long start;
+
+		private Phase(String name) {
+			this.name = name;
+			if (name == null)
+				return;
+			event = new PhaseEvent();
+			event.begin();
+			start = System.nanoTime();
+		}
+
+		/**
+		 * End the phase, recording it.
+		 */
+		public void end() {
+			if (name == null)
+				return;
+			long end = System.nanoTime();
+			event.end();
+			if (event.shouldCommit()) {
+				event.call = call;
+				event.method = method;
+				event.server = server;
+				event.phase = name;
+				event.commit();
+			}
+			write(name, start, end);
+		}
+	}
+
+	private void write(String phase, long start, long end) {
+		synchronized (Trace.class) {
+			if (json == null)
+				return;
+			try {
+				json.beginObject();
+				json.name("call").value(call);
+				json.name("method").value(method);
+				json.name("server").value(server);
+				json.name("phase").value(phase);
+				json.name("start_ms").value(millis(start - origin));
+				json.name("duration_ms").value(millis(end - start));
+				json.endObject();
+				out.write('\n');
+			} catch (IOException e) {
+				Misc.error("trace - " + e.getMessage());
+				close();
+			}
+		}
+	}
+
+	// Nanoseconds to milliseconds, to the nearest microsecond.
+	private static double millis(long nanos) {
+		return (nanos / 1000L) / 1000.0;
+	}
+
+	/**
+	 * Write each phase, as it ends, to a file, one JSON object per line.
+	 * The file is closed when we exit. Times are in milliseconds, with
+	 * start times counted from when this is called.
+	 * @param file      File to write.
+	 */
+	public static synchronized void traceTo(File file) {
+		if (out != null)
+			return;
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			Misc.die(file + " - " + e.getMessage());
+		}
+		json = new JsonWriter(out);
+		origin = System.nanoTime();
+		Misc.atExit(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Stop writing to any trace file, e.g. before the daemon runs
+	 * another command.
+	 */
+	public static synchronized void close() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			Misc.error("trace - " + e.getMessage());
+		}
+		out = null;
+		json = null;
+	}
+}
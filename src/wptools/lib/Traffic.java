@@ -0,0 +1,176 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Keeps track of how many bytes we send and receive, both as they go
+ * over the wire and before compression (the two differ only when gzip
+ * is being used). Counts are process-wide; wire counts are also kept
+ * per XML-RPC method.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class Traffic {
+	private static final AtomicLong SENT_WIRE = new AtomicLong();
+	private static final AtomicLong SENT_RAW = new AtomicLong();
+	private static final AtomicLong RECEIVED_WIRE = new AtomicLong();
+	private static final AtomicLong RECEIVED_RAW = new AtomicLong();
+	private static final ConcurrentHashMap<String, AtomicLong[]> BY_METHOD =
+		new ConcurrentHashMap<String, AtomicLong[]>();
+	private static boolean reporting = false;
+
+	// Indices into the per-method counts.
+	private static final int SENT = 0;
+	private static final int RECEIVED = 1;
+
+	/**
+	 * Note that a request body has been sent.
+	 * @param method    XML-RPC method called.
+	 * @param wire      Bytes on the wire.
+	 * @param raw       Bytes before compression.
+	 */
+	public static void sent(String method, long wire, long raw) {
+		SENT_WIRE.addAndGet(wire);
+		SENT_RAW.addAndGet(raw);
+		forMethod(method)[SENT].addAndGet(wire);
+	}
+
+	/**
+	 * Wrap a response body so that what is read from it gets counted,
+	 * decompressing it if need be.
+	 * @param method    XML-RPC method called.
+	 * @param in        Response body, as received.
+	 * @param gzipped   True if the body is gzip-compressed.
+	 * @return          Stream to read the (uncompressed) response from.
+	 */
+	public static InputStream received(String method, InputStream in, boolean gzipped) throws IOException {
+		InputStream wire = new CountingInputStream(
+			new CountingInputStream(in, forMethod(method)[RECEIVED]), RECEIVED_WIRE);
+		return new CountingInputStream(gzipped ? new GZIPInputStream(wire) : wire,
+			RECEIVED_RAW);
+	}
+
+	private static AtomicLong[] forMethod(String method) {
+		AtomicLong[] ret = BY_METHOD.get(method);
+		if (ret == null) {
+			ret = new AtomicLong[] { new AtomicLong(), new AtomicLong() };
+			AtomicLong[] old = BY_METHOD.putIfAbsent(method, ret);
+			if (old != null)
+				ret = old;
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the bytes sent on the wire in calls to a method.
+	 */
+	public static long getSentWire(String method) {
+		AtomicLong[] counts = BY_METHOD.get(method);
+		return counts == null ? 0 : counts[SENT].get();
+	}
+
+	/**
+	 * Get the bytes received on the wire in calls to a method.
+	 */
+	public static long getReceivedWire(String method) {
+		AtomicLong[] counts = BY_METHOD.get(method);
+		return counts == null ? 0 : counts[RECEIVED].get();
+	}
+
+	public static long getSentWire() {
+		return SENT_WIRE.get();
+	}
+
+	public static long getSentRaw() {
+		return SENT_RAW.get();
+	}
+
+	public static long getReceivedWire() {
+		return RECEIVED_WIRE.get();
+	}
+
+	public static long getReceivedRaw() {
+		return RECEIVED_RAW.get();
+	}
+
+	/**
+	 * Get a printable summary of the counts.
+	 */
+	public static String summary() {
+		return String.format("sent %d bytes (%d uncompressed), received %d bytes (%d uncompressed)",
+			getSentWire(), getSentRaw(), getReceivedWire(), getReceivedRaw());
+	}
+
+	/**
+	 * Arrange for the summary to be printed to standard error when we
+	 * exit.
+	 */
+	public static synchronized void reportOnExit() {
+		if (reporting)
+			return;
+		reporting = true;
+		Misc.atExit(new Runnable() {
+			public void run() {
+				Misc.error(summary());
+			}
+		});
+	}
+
+	/**
+	 * Zero the counts and forget any report request, e.g. before the
+	 * daemon runs another command.
+	 */
+	public static synchronized void reset() {
+		SENT_WIRE.set(0);
+		SENT_RAW.set(0);
+		RECEIVED_WIRE.set(0);
+		RECEIVED_RAW.set(0);
+		BY_METHOD.clear();
+		reporting = false;
+	}
+
+	/**
+	 * An InputStream that adds the number of bytes read to a counter.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private AtomicLong counter;
+
+		public CountingInputStream(InputStream in, AtomicLong counter) {
+			super(in);
+			this.counter = counter;
+		}
+
+		public int read() throws IOException {
+			int ret = super.read();
+			if (ret >= 0)
+				counter.incrementAndGet();
+			return ret;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int ret = super.read(b, off, len);
+			if (ret > 0)
+				counter.addAndGet(ret);
+			return ret;
+		}
+
+		public long skip(long n) throws IOException {
+			long ret = super.skip(n);
+			if (ret > 0)
+				counter.addAndGet(ret);
+			return ret;
+		}
+	}
+}
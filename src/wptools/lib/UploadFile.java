@@ -0,0 +1,206 @@
+/*
+ * This software is distributed under the Creative Commons Attribution 4.0
+ * International license. See LICENSE.TXT in the main directory of this
+ * repository for more information.
+ */
+
+package wptools.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ws.commons.serialize.XMLWriter;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.common.TypeFactoryImpl;
+import org.apache.xmlrpc.common.XmlRpcController;
+import org.apache.xmlrpc.common.XmlRpcStreamConfig;
+import org.apache.xmlrpc.serializer.TypeSerializer;
+import org.apache.xmlrpc.serializer.TypeSerializerImpl;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * A file to be sent as an XML-RPC base64 value (e.g. the bits passed to
+ * wp.uploadFile), without ever being read into memory whole. Pass one
+ * wherever a byte[] would otherwise go; it is read and encoded a chunk
+ * at a time as the request is written, and our transports notice such
+ * requests (see isStreaming) and send them as they are written, instead
+ * of building the whole body first to learn its length.
+ *
+ * The number of bytes read so far is kept, so that progress can be
+ * shown while the request is being sent.
+ *
+ * @author David Barts <david.w.barts@gmail.com>
+ *
+ */
+public class UploadFile {
+	private static final String BASE64_TAG = "base64";
+
+	// Bytes read and encoded at a time; a multiple of 3, so that only the
+	// last chunk gets padded.
+	private static final int CHUNK_SIZE = 3 * 16384;
+
+	private File file;
+	private long length;
+	private AtomicLong sent;
+
+	/**
+	 * Constructor.
+	 * @param file      File to send.
+	 */
+	public UploadFile(File file) {
+		this.file = file;
+		this.length = file.length();
+		this.sent = new AtomicLong();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the size of the file, as of when this object was made.
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Get how many bytes of the file have been sent so far. If a request
+	 * is retried, this starts over.
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * Determine if a request has an UploadFile anywhere in its
+	 * parameters, and so needs to be sent as it is written.
+	 * @param request   Request.
+	 */
+	public static boolean isStreaming(XmlRpcRequest request) {
+		for (int i = 0; i < request.getParameterCount(); i++)
+			if (contains(request.getParameter(i)))
+				return true;
+		return false;
+	}
+
+	private static boolean contains(Object value) {
+		if (value instanceof UploadFile)
+			return true;
+		if (value instanceof Object[]) {
+			for (Object o : (Object[]) value)
+				if (contains(o))
+					return true;
+		} else if (value instanceof Collection) {
+			for (Object o : (Collection<?>) value)
+				if (contains(o))
+					return true;
+		} else if (value instanceof Map) {
+			for (Object o : ((Map<?, ?>) value).values())
+				if (contains(o))
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A type factory that knows how to serialize UploadFile objects, and
+	 * otherwise behaves like the standard one.
+	 */
+	public static class Factory extends TypeFactoryImpl {
+		private static final TypeSerializer SERIALIZER = new Serializer();
+
+		public Factory(XmlRpcController controller) {
+			super(controller);
+		}
+
+		public TypeSerializer getSerializer(XmlRpcStreamConfig config,
+				Object object) throws SAXException {
+			if (object instanceof UploadFile)
+				return SERIALIZER;
+			return super.getSerializer(config, object);
+		}
+	}
+
+	/**
+	 * Writes a file as a base64 value, a chunk at a time.
+	 */
+	private static class Serializer extends TypeSerializerImpl {
+		public void write(ContentHandler handler, Object object) throws SAXException {
+			UploadFile upload = (UploadFile) object;
+			upload.sent.set(0);
+			handler.startElement("", VALUE_TAG, VALUE_TAG, ZERO_ATTRIBUTES);
+			handler.startElement("", BASE64_TAG, BASE64_TAG, ZERO_ATTRIBUTES);
+			byte[] raw = new byte[CHUNK_SIZE];
+			byte[] encoded = new byte[CHUNK_SIZE / 3 * 4];
+			char[] chars = new char[encoded.length];
+			Base64.Encoder encoder = Base64.getEncoder();
+			// Base64 never needs escaping, so if we can, we skip the
+			// handler (which escapes, and writes, a character at a time)
+			// and write straight to where it writes. Telling it about no
+			// characters first makes it finish the start tag.
+			Writer direct = null;
+			if (handler instanceof XMLWriter) {
+				handler.characters(chars, 0, 0);
+				direct = ((XMLWriter) handler).getWriter();
+			}
+			InputStream in = null;
+			try {
+				in = new FileInputStream(upload.file);
+				int len;
+				while ((len = fill(in, raw)) > 0) {
+					int elen = encoder.encode(len == raw.length ? raw :
+						Arrays.copyOf(raw, len), encoded);
+					for (int i = 0; i < elen; i++)
+						chars[i] = (char) encoded[i];
+					if (direct == null) {
+						handler.characters(chars, 0, elen);
+					} else {
+						try {
+							direct.write(chars, 0, elen);
+						} catch (IOException e) {
+							throw new SAXException(e);
+						}
+					}
+					upload.sent.addAndGet(len);
+				}
+			} catch (IOException e) {
+				throw new SAXException(upload.file + " - " + e.getMessage(), e);
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						/* ignore */
+					}
+				}
+			}
+			handler.endElement("", BASE64_TAG, BASE64_TAG);
+			handler.endElement("", VALUE_TAG, VALUE_TAG);
+		}
+
+		/**
+		 * Read until the buffer is full or the file ends.
+		 * @return    Bytes read (0 at end of file).
+		 */
+		private static int fill(InputStream in, byte[] buf) throws IOException {
+			int len = 0;
+			while (len < buf.length) {
+				int n = in.read(buf, len, buf.length - len);
+				if (n < 0)
+					break;
+				len += n;
+			}
+			return len;
+		}
+	}
+}